@@ -0,0 +1,121 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff.bench;
+
+import bmdiff.BMDiffCodec;
+import bmdiff.BatchCodec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Small records, the lines of a corpus, encoded and decoded one at a time
+ * against as a {@link BatchCodec} batch. The byte counters give the ratio of
+ * each.
+ *
+ * @author srikchan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BatchBenchmark {
+
+    @Param({"8", "16", "32"})
+    public int blockLen;
+    @Param({Corpora.JSON, Corpora.LOGS})
+    public String corpus;
+    @Param({"262144"})
+    public int size;
+    private BMDiffCodec codec;
+    private BatchCodec batch;
+    private byte[][] records;
+    private byte[][] encodedEach;
+    private byte[] encodedBatch;
+    private long rawBytes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        codec = new BMDiffCodec(blockLen);
+        batch = new BatchCodec(blockLen);
+        byte[] input = Corpora.generate(corpus, size);
+        List<byte[]> lines = new ArrayList<byte[]>();
+        int from = 0;
+        for (int i = 0; i < input.length; i++) {
+            if (input[i] == '\n') {
+                lines.add(Arrays.copyOfRange(input, from, i + 1));
+                from = i + 1;
+            }
+        }
+        records = lines.toArray(new byte[lines.size()][]);
+        encodedEach = new byte[records.length][];
+        for (int k = 0; k < records.length; k++) {
+            rawBytes += records[k].length;
+            encodedEach[k] = codec.encode(records[k]);
+        }
+        encodedBatch = batch.encode(records);
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+
+        public long rawBytes;
+        public long encodedBytes;
+    }
+
+    @Benchmark
+    public void encodeEach(Bytes bytes, Blackhole bh) {
+        for (byte[] record : records) {
+            byte[] enc = codec.encode(record);
+            bytes.encodedBytes += enc.length;
+            bh.consume(enc);
+        }
+        bytes.rawBytes += rawBytes;
+    }
+
+    @Benchmark
+    public byte[] encodeBatch(Bytes bytes) {
+        byte[] enc = batch.encode(records);
+        bytes.encodedBytes += enc.length;
+        bytes.rawBytes += rawBytes;
+        return enc;
+    }
+
+    @Benchmark
+    public void decodeEach(Blackhole bh) {
+        for (byte[] enc : encodedEach) {
+            bh.consume(codec.decode(enc));
+        }
+    }
+
+    @Benchmark
+    public byte[][] decodeBatch() {
+        return batch.decodeAll(encodedBatch);
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff.bench;
+
+import bmdiff.BlockCache;
+import bmdiff.BlockStore;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Skewed reads of a {@link BlockStore} holding the lines of a corpus, most of
+ * them from a small hot set, with no cache against a cache of a tenth of the
+ * decoded store. Run with -t to add readers.
+ *
+ * @author srikchan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BlockStoreBenchmark {
+
+    @Param({"0", "10"})
+    public int cachePercent;
+    @Param({Corpora.JSON, Corpora.LOGS})
+    public String corpus;
+    @Param({"8388608"})
+    public int size;
+    private Path file;
+    private BlockStore store;
+    private long records;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = Files.createTempFile("bmdiff", ".store");
+        Files.delete(file);
+        byte[] input = Corpora.generate(corpus, size);
+        try (BlockStore writer = new BlockStore(file, 0)) {
+            int from = 0;
+            for (int i = 0; i < input.length; i++) {
+                if (input[i] == '\n') {
+                    writer.append(Arrays.copyOfRange(input, from, i + 1));
+                    from = i + 1;
+                }
+            }
+        }
+        store = new BlockStore(file, (long) size * cachePercent / 100);
+        records = store.size();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        Files.delete(file);
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+
+        private final Random random = new Random();
+    }
+
+    /**
+     * Nine reads in ten go to the first percent of the records.
+     */
+    @Benchmark
+    public byte[] get(Reader reader) throws IOException {
+        Random r = reader.random;
+        long bound = r.nextInt(10) == 0 ? records : Math.max(1, records / 100);
+        return store.get((long) (r.nextDouble() * bound));
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff.bench;
+
+import bmdiff.BMDiffCodec;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encode and decode throughput of the binary and the legacy text format. The
+ * byte counters are totals over the iteration, their ratio is the compression
+ * ratio; run with -prof gc for the allocation rate.
+ *
+ * @author srikchan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CodecBenchmark {
+
+    @Param({"8", "16", "32", "64"})
+    public int blockLen;
+    @Param({Corpora.ENGLISH, Corpora.LOGS, Corpora.JSON, Corpora.REPETITIVE, Corpora.RANDOM, Corpora.MICRO})
+    public String corpus;
+    @Param({"1048576"})
+    public int size;
+    private BMDiffCodec codec;
+    private byte[] input;
+    private byte[] encoded;
+    private char[] chars;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        codec = new BMDiffCodec(blockLen);
+        input = Corpora.generate(corpus, size);
+        encoded = codec.encode(input);
+        chars = new String(input, java.nio.charset.StandardCharsets.ISO_8859_1).toCharArray();
+    }
+
+    /**
+     * Bytes seen by the operations, reported next to the score.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+
+        public long rawBytes;
+        public long encodedBytes;
+    }
+
+    @Benchmark
+    public byte[] encode(Bytes bytes) {
+        byte[] enc = codec.encode(input);
+        bytes.rawBytes += input.length;
+        bytes.encodedBytes += enc.length;
+        return enc;
+    }
+
+    @Benchmark
+    public byte[] decode(Bytes bytes) {
+        byte[] dec = codec.decode(encoded);
+        bytes.rawBytes += dec.length;
+        bytes.encodedBytes += encoded.length;
+        return dec;
+    }
+
+    @Benchmark
+    public char[] encodeText() {
+        return codec.encode(chars);
+    }
+
+    @Benchmark
+    public char[] encodeTextAndDecode() {
+        codec.encode(chars);
+        return codec.decode();
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff.bench;
+
+import bmdiff.test.SimpleTests;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generated inputs with a fixed seed so every run and every fork sees the same
+ * bytes.
+ *
+ * @author srikchan
+ */
+public final class Corpora {
+
+    public static final String ENGLISH = "english";
+    public static final String LOGS = "logs";
+    public static final String JSON = "json";
+    public static final String REPETITIVE = "repetitive";
+    public static final String RANDOM = "random";
+    public static final String MICRO = "micro";
+    private static final String[] WORDS = ("the of and to a in that is was he for it with as his on be at by i "
+            + "this had not are but from or have an they which one you were her all she there would their we him "
+            + "been has when who will more no if out so said what up its about into than them can only other new "
+            + "some could time these two may then do first any my now such like our over man me even most made "
+            + "after also did many before must through back years where much your way well down should because "
+            + "each just those people how too little state good very make world still own see men work long get "
+            + "here between both life being under never day same another know while last might us great old year "
+            + "off come since against go came right used take three chapter house author intended letter morning").split(" ");
+    private static final String[] LEVELS = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+    private static final String[] LOGGERS = {"org.apache.hadoop.hbase.regionserver.HRegion",
+        "org.apache.hadoop.hbase.regionserver.Store", "org.apache.hadoop.hdfs.DFSClient",
+        "com.example.ingest.BatchWriter", "com.example.rpc.Handler"};
+    private static final String[] MESSAGES = {"Flushing memstore for region %s, size=%dK",
+        "Compacted store %s from %d files", "Slow response from datanode %s took %dms",
+        "Wrote batch %s with %d records", "Request %s finished in %dms"};
+
+    private Corpora() {
+    }
+
+    /**
+     * @param name one of the corpus names.
+     * @param size approximate size in bytes, ignored by the micro corpus.
+     * @return
+     */
+    public static byte[] generate(String name, int size) {
+        Random random = new Random(name.hashCode());
+        switch (name) {
+            case ENGLISH:
+                return english(random, size);
+            case LOGS:
+                return logs(random, size);
+            case JSON:
+                return json(random, size);
+            case REPETITIVE:
+                return repetitive(random, size);
+            case RANDOM: {
+                byte[] b = new byte[size];
+                random.nextBytes(b);
+                return b;
+            }
+            case MICRO: {
+                StringBuilder sb = new StringBuilder();
+                for (String s : SimpleTests.edgeCaseStrings()) {
+                    sb.append(s);
+                }
+                return sb.toString().getBytes(StandardCharsets.UTF_8);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown corpus " + name);
+        }
+    }
+
+    /**
+     * The edge case strings of SimpleTests, each a separate input.
+     */
+    public static byte[][] micro() {
+        String[] strings = SimpleTests.edgeCaseStrings();
+        byte[][] b = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            b[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return b;
+    }
+
+    /**
+     * Zipf like word choice so common words dominate, as in prose.
+     */
+    private static byte[] english(Random random, int size) {
+        StringBuilder sb = new StringBuilder(size + 100);
+        boolean capital = true;
+        while (sb.length() < size) {
+            double u = random.nextDouble();
+            String w = WORDS[(int) (WORDS.length * u * u * u)];
+            sb.append(capital ? Character.toUpperCase(w.charAt(0)) + w.substring(1) : w);
+            capital = false;
+            int r = random.nextInt(100);
+            if (r < 6) {
+                sb.append(". ");
+                capital = true;
+            } else if (r < 10) {
+                sb.append(", ");
+            } else if (r < 11) {
+                sb.append(".\n\n");
+                capital = true;
+            } else {
+                sb.append(' ');
+            }
+        }
+        sb.setLength(size);
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] logs(Random random, int size) {
+        StringBuilder sb = new StringBuilder(size + 200);
+        long millis = 1400000000000L;
+        while (sb.length() < size) {
+            millis += random.nextInt(50);
+            int m = random.nextInt(MESSAGES.length);
+            sb.append("2014-05-").append(13 + (int) ((millis / 86400000L) % 10)).append(' ')
+                    .append(String.format("%02d:%02d:%02d,%03d", (millis / 3600000) % 24, (millis / 60000) % 60,
+                                    (millis / 1000) % 60, millis % 1000))
+                    .append(' ').append(LEVELS[random.nextInt(LEVELS.length)])
+                    .append(" [").append(LOGGERS[random.nextInt(LOGGERS.length)]).append("] ")
+                    .append(String.format(MESSAGES[m], Long.toHexString(random.nextLong() & 0xFFFFFFFL), random.nextInt(5000)))
+                    .append('\n');
+        }
+        sb.setLength(size);
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] json(Random random, int size) {
+        StringBuilder sb = new StringBuilder(size + 300);
+        sb.append("[\n");
+        int id = 1000;
+        while (sb.length() < size) {
+            sb.append("  {\"id\": ").append(id++)
+                    .append(", \"user\": \"user").append(random.nextInt(300))
+                    .append("\", \"active\": ").append(random.nextBoolean())
+                    .append(", \"score\": ").append(random.nextInt(100000) / 100.0)
+                    .append(", \"tags\": [\"").append(WORDS[random.nextInt(20)]).append("\", \"")
+                    .append(WORDS[random.nextInt(40)]).append("\"]")
+                    .append(", \"address\": {\"city\": \"").append(WORDS[random.nextInt(WORDS.length)])
+                    .append("\", \"zip\": \"").append(10000 + random.nextInt(90000)).append("\"}},\n");
+        }
+        sb.setLength(size);
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A handful of lines repeated in long runs, like the padded chapters and
+     * rulers of the SimpleTests strings.
+     */
+    private static byte[] repetitive(Random random, int size) {
+        String[] lines = new String[8];
+        for (int i = 0; i < lines.length; i++) {
+            StringBuilder line = new StringBuilder();
+            int len = 20 + random.nextInt(100);
+            for (int k = 0; k < len; k++) {
+                line.append((char) ('a' + random.nextInt(26)));
+            }
+            lines[i] = line.append('\n').toString();
+        }
+        StringBuilder sb = new StringBuilder(size + 200);
+        while (sb.length() < size) {
+            String line = lines[random.nextInt(lines.length)];
+            for (int n = 1 + random.nextInt(20); n > 0; n--) {
+                sb.append(line);
+            }
+        }
+        sb.setLength(size);
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff.bench;
+
+import bmdiff.RollingHash;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Prints, for every corpus and hash function, the fraction of distinct
+ * blocks whose fingerprint is shared with a different block. Every block
+ * position is hashed, as in the encoder's lookups. A plain main like
+ * {@link Ratios}, the count does not depend on warm up.
+ *
+ * @author srikchan
+ */
+public class HashCollisions {
+
+    static final int[] BLOCK_LENS = {8, 32};
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+        RollingHash.Kind[] kinds = RollingHash.Kind.values();
+        System.out.printf("%-12s%6s", "corpus", "b");
+        for (RollingHash.Kind kind : kinds) {
+            System.out.printf("%12s", kind.name().toLowerCase());
+        }
+        System.out.println();
+        for (String corpus : Ratios.CORPORA) {
+            byte[] input = Corpora.generate(corpus, size);
+            for (int blockLen : BLOCK_LENS) {
+                System.out.printf("%-12s%6d", corpus, blockLen);
+                for (RollingHash.Kind kind : kinds) {
+                    System.out.printf("%12.6f", collisionRate(kind.create(blockLen), input));
+                }
+                System.out.println();
+            }
+        }
+    }
+
+    static double collisionRate(RollingHash hash, byte[] in) {
+        int blockLen = hash.blockLen();
+        if (in.length < blockLen) {
+            return 0;
+        }
+        Map<Long, ByteBuffer> first = new HashMap<Long, ByteBuffer>();
+        Set<ByteBuffer> distinct = new HashSet<ByteBuffer>();
+        Set<ByteBuffer> colliding = new HashSet<ByteBuffer>();
+        long fp = hash.hash(in, 0);
+        for (int p = 0; p + blockLen <= in.length; p++) {
+            if (p > 0) {
+                fp = hash.roll(fp, in[p - 1] & 0xFF, in[p + blockLen - 1] & 0xFF);
+            }
+            ByteBuffer block = ByteBuffer.wrap(in, p, blockLen).slice();
+            distinct.add(block);
+            ByteBuffer seen = first.get(fp);
+            if (seen == null) {
+                first.put(fp, block);
+            } else if (!seen.equals(block)) {
+                colliding.add(block);
+                colliding.add(seen);
+            }
+        }
+        return colliding.size() / (double) distinct.size();
+    }
+}
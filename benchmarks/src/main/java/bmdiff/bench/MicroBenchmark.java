@@ -0,0 +1,72 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff.bench;
+
+import bmdiff.BMDiffCodec;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per call cost on the tiny SimpleTests strings, where the fixed work of every
+ * encode (table reset, output buffers) dominates.
+ *
+ * @author srikchan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MicroBenchmark {
+
+    @Param({"8", "16", "32", "64"})
+    public int blockLen;
+    private BMDiffCodec codec;
+    private byte[][] inputs;
+    private byte[][] encoded;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        codec = new BMDiffCodec(blockLen);
+        inputs = Corpora.micro();
+        encoded = new byte[inputs.length][];
+        for (int i = 0; i < inputs.length; i++) {
+            encoded[i] = codec.encode(inputs[i]);
+        }
+    }
+
+    @Benchmark
+    public void encodeAll(Blackhole bh) {
+        for (byte[] input : inputs) {
+            bh.consume(codec.encode(input));
+        }
+    }
+
+    @Benchmark
+    public void decodeAll(Blackhole bh) {
+        for (byte[] enc : encoded) {
+            bh.consume(codec.decode(enc));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff.bench;
+
+import bmdiff.BMDiffCodec;
+import bmdiff.Mismatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encode throughput with match verification through Arrays.mismatch against
+ * the scalar loop. The choice is made once per JVM and JMH forks every
+ * parameter combination, so the property is set before the codec is first
+ * used.
+ *
+ * @author srikchan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MismatchBenchmark {
+
+    @Param({"false", "true"})
+    public boolean scalar;
+    @Param({"8", "16", "32", "64"})
+    public int blockLen;
+    @Param({Corpora.ENGLISH, Corpora.LOGS, Corpora.REPETITIVE})
+    public String corpus;
+    @Param({"1048576"})
+    public int size;
+    private BMDiffCodec codec;
+    private byte[] input;
+    private char[] chars;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        System.setProperty("bmdiff.scalar", String.valueOf(scalar));
+        if (Mismatch.accelerated() == scalar) {
+            throw new IllegalStateException("Mismatch was initialized before the property was set");
+        }
+        codec = new BMDiffCodec(blockLen);
+        input = Corpora.generate(corpus, size);
+        chars = new String(input, java.nio.charset.StandardCharsets.ISO_8859_1).toCharArray();
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(input);
+    }
+
+    @Benchmark
+    public char[] encodeText() {
+        return codec.encode(chars);
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff.bench;
+
+import bmdiff.BMDiffCodec;
+
+/**
+ * Prints the compression ratio (encoded / original) of every corpus and block
+ * length, ratios do not need warm up or forks so this is a plain main.
+ *
+ * @author srikchan
+ */
+public class Ratios {
+
+    static final int[] BLOCK_LENS = {8, 16, 32, 64};
+    static final String[] CORPORA = {Corpora.ENGLISH, Corpora.LOGS, Corpora.JSON,
+        Corpora.REPETITIVE, Corpora.RANDOM, Corpora.MICRO};
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+        System.out.printf("%-12s", "corpus");
+        for (int blockLen : BLOCK_LENS) {
+            System.out.printf("%10s", "b=" + blockLen);
+        }
+        System.out.println();
+        for (String corpus : CORPORA) {
+            byte[] input = Corpora.generate(corpus, size);
+            System.out.printf("%-12s", corpus);
+            for (int blockLen : BLOCK_LENS) {
+                byte[] enc = new BMDiffCodec(blockLen).encode(input);
+                System.out.printf("%10.4f", enc.length / (double) input.length);
+            }
+            System.out.println();
+        }
+    }
+}
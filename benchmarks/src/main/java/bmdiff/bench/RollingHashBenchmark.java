@@ -0,0 +1,73 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff.bench;
+
+import bmdiff.RollingHash;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rolls every hash function over a whole corpus, the inner loop of the
+ * encoder without the table lookups. Collision rates are printed by
+ * {@link HashCollisions}.
+ *
+ * @author srikchan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RollingHashBenchmark {
+
+    @Param({"POLYNOMIAL", "RABIN_KARP", "BUZHASH", "GEAR"})
+    public String kind;
+    @Param({"english", "json", "random"})
+    public String corpus;
+    @Param({"16", "64"})
+    public int blockLen;
+    @Param({"1048576"})
+    public int size;
+    private RollingHash hash;
+    private byte[] input;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        hash = RollingHash.Kind.valueOf(kind).create(blockLen);
+        input = Corpora.generate(corpus, size);
+    }
+
+    @Benchmark
+    public long roll() {
+        byte[] in = input;
+        RollingHash h = hash;
+        int b = blockLen;
+        long fp = h.hash(in, 0);
+        long sum = fp;
+        for (int p = 1; p + b <= in.length; p++) {
+            fp = h.roll(fp, in[p - 1] & 0xFF, in[p + b - 1] & 0xFF);
+            sum += fp;
+        }
+        return sum;
+    }
+}
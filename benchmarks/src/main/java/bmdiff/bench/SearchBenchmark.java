@@ -0,0 +1,98 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff.bench;
+
+import bmdiff.BMDiffCodec;
+import bmdiff.CompressedSearch;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Counts the occurrences of a word in an encoded corpus with
+ * {@link CompressedSearch} against decoding it and scanning the result.
+ *
+ * @author srikchan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SearchBenchmark {
+
+    @Param({"32"})
+    public int blockLen;
+    @Param({Corpora.LOGS, Corpora.JSON, Corpora.REPETITIVE})
+    public String corpus;
+    @Param({"4194304"})
+    public int size;
+    @Param({"region", "memstore for"})
+    public String word;
+    private BMDiffCodec codec;
+    private CompressedSearch search;
+    private byte[] pattern;
+    private int[] fail;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        codec = new BMDiffCodec(blockLen);
+        encoded = codec.encode(Corpora.generate(corpus, size));
+        pattern = word.getBytes(StandardCharsets.UTF_8);
+        search = new CompressedSearch(pattern);
+        fail = new int[pattern.length + 1];
+        for (int i = 1, k = 0; i < pattern.length; i++) {
+            while (k > 0 && pattern[i] != pattern[k]) {
+                k = fail[k];
+            }
+            if (pattern[i] == pattern[k]) {
+                k++;
+            }
+            fail[i + 1] = k;
+        }
+    }
+
+    @Benchmark
+    public int compressed() {
+        return search.find(encoded).length;
+    }
+
+    @Benchmark
+    public int decodeAndScan() {
+        byte[] text = codec.decode(encoded);
+        int m = pattern.length;
+        int state = 0;
+        int count = 0;
+        for (byte b : text) {
+            while (state > 0 && pattern[state] != b) {
+                state = fail[state];
+            }
+            if (pattern[state] == b && ++state == m) {
+                count++;
+                state = fail[m];
+            }
+        }
+        return count;
+    }
+}
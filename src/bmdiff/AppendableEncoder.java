@@ -0,0 +1,279 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Encodes data which grows by appending, such as a log, into one stream
+ * without rewriting what was already written. The first append writes an
+ * ordinary {@link BMDiffOutputStream} stream, every later one a continuation
+ * segment after it whose back references may reach the last window bytes of
+ * everything appended before. The segments decode as one stream with
+ * {@link BMDiffInputStream} or {@link BMDiffCodec#decode(byte[])}.
+ *
+ * Between appends the encoder holds the last window bytes and the
+ * fingerprints of their blocks. {@link #save(Path)} writes them with the
+ * lookup position to a snapshot:
+ *
+ * <pre>
+ * header  : 'B' 'A' version flags
+ * stream  : varint(blockLen) varint(window) byte(hash kind)
+ *           varlong(length) varlong(encodedLength) varint(segments)
+ * state   : varint(history) varint(position) varint(nextStore) history bytes
+ * table   : varint(depth) varint(entries) entries x (int64 fingerprint, varint block)
+ * </pre>
+ *
+ * The state section and table are left out until the first append. Loading
+ * a snapshot reads only it, so it takes time proportional to the window and
+ * its index, not to the data encoded so far.
+ *
+ * The snapshot has to be saved after the append it follows and matched
+ * with the encoded data: {@link #encodedLength()} is where the next segment
+ * goes. After an append fails the encoder refuses more, reload the last
+ * snapshot and truncate the encoded data to its encodedLength. An instance
+ * is not thread safe.
+ *
+ * @author srikchan
+ */
+public final class AppendableEncoder {
+
+    static final byte MAGIC_0 = 'B';
+    static final byte MAGIC_1 = 'A';
+    static final int VERSION = 1;
+    private static final int FLAG_STARTED = 1;
+    private final int window;
+    private int blockLen;
+    private ByteEncoder encoder;// Null until the first append.
+    private byte[] buf;
+    private int filled;
+    private long length;
+    private long encodedLength;
+    private int segments;
+    private boolean failed;
+    private Counter counter;// Of the segment being written.
+
+    /**
+     * @param blockLen a positive length or {@link BMDiffCodec#AUTO} to pick
+     * one from the first append.
+     * @param window maximum back reference distance, at least 2 * blockLen.
+     */
+    public AppendableEncoder(int blockLen, int window) {
+        int maxBlockLen = blockLen == BMDiffCodec.AUTO ? new BlockLengthSelector().maxBlockLen() : blockLen;
+        if (blockLen < 0 || window < 2 * maxBlockLen) {
+            throw new IllegalArgumentException("Window " + window + " smaller than twice the block length " + maxBlockLen);
+        }
+        this.blockLen = blockLen;
+        this.window = window;
+    }
+
+    private AppendableEncoder(int window) {
+        this.window = window;
+    }
+
+    /**
+     * Encodes len bytes of b as the next segment.
+     *
+     * @param b
+     * @param off
+     * @param len
+     * @param out where the previous segments were written, at their end.
+     * @return bytes written to out.
+     * @throws IOException
+     */
+    public long append(byte[] b, int off, int len, OutputStream out) throws IOException {
+        BMDiffOutputStream stream = open(out);
+        stream.write(b, off, len);
+        return close(stream);
+    }
+
+    /**
+     * Encodes everything left in in as the next segment.
+     *
+     * @param in
+     * @param out where the previous segments were written, at their end.
+     * @return bytes written to out.
+     * @throws IOException
+     */
+    public long append(InputStream in, OutputStream out) throws IOException {
+        BMDiffOutputStream stream = open(out);
+        byte[] chunk = new byte[1 << 16];
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            stream.write(chunk, 0, n);
+        }
+        return close(stream);
+    }
+
+    private BMDiffOutputStream open(OutputStream out) throws IOException {
+        if (failed) {
+            throw new IOException("An append failed, reload the last snapshot");
+        }
+        failed = true;// Until the segment is complete.
+        counter = new Counter(out);
+        if (encoder == null) {
+            return new BMDiffOutputStream(counter, blockLen, window);
+        }
+        return new BMDiffOutputStream(counter, encoder, buf, filled, window);
+    }
+
+    private long close(BMDiffOutputStream stream) throws IOException {
+        stream.finish();
+        stream.compact();
+        encoder = stream.encoder();
+        blockLen = encoder.blockLen();
+        buf = stream.buffer();
+        filled = stream.buffered();
+        long n = counter.count;
+        length += stream.written();
+        encodedLength += n;
+        segments++;
+        failed = false;
+        return n;
+    }
+
+    /**
+     * @return bytes appended so far.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return bytes of encoding written so far.
+     */
+    public long encodedLength() {
+        return encodedLength;
+    }
+
+    public int segments() {
+        return segments;
+    }
+
+    /**
+     * Writes the snapshot to file, through a temporary file which replaces it
+     * so a crash leaves the old snapshot or the new one.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void save(Path file) throws IOException {
+        if (failed) {
+            throw new IOException("An append failed, reload the last snapshot");
+        }
+        ByteOutput out = new ByteOutput();
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(VERSION);
+        out.write(encoder == null ? 0 : FLAG_STARTED);
+        out.writeVarInt(blockLen);
+        out.writeVarInt(window);
+        out.write(encoder == null ? RollingHash.DEFAULT.ordinal() : encoder.hashKind().ordinal());
+        out.writeVarLong(length);
+        out.writeVarLong(encodedLength);
+        out.writeVarInt(segments);
+        if (encoder != null) {
+            out.writeVarInt(filled);
+            out.writeVarInt(encoder.position());
+            out.writeVarInt(encoder.nextStore());
+            out.write(buf, 0, filled);
+            ((LongIntHashTable) encoder.table()).writeTo(out);
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, out.toByteArray());
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param file written by {@link #save(Path)}.
+     * @return an encoder continuing where the saved one stopped.
+     * @throws IOException when the file can not be read or is corrupt.
+     */
+    public static AppendableEncoder load(Path file) throws IOException {
+        byte[] snapshot = Files.readAllBytes(file);
+        try {
+            return read(new BinaryFormat.Reader(snapshot, 0, snapshot.length));
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Corrupt BMDiff snapshot: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static AppendableEncoder read(BinaryFormat.Reader r) {
+        if (r.readByte() != MAGIC_0 || r.readByte() != MAGIC_1) {
+            throw BinaryFormat.corrupt("Not a BMDiff encoder snapshot");
+        }
+        int version = r.readByte();
+        if (version != VERSION) {
+            throw BinaryFormat.corrupt("Unsupported version " + version);
+        }
+        int flags = r.readByte();
+        int blockLen = r.readVarInt();
+        int window = r.readVarInt();
+        int kind = r.readByte();
+        if (window < 2 * Math.max(blockLen, 1) || window > Integer.MAX_VALUE / 2 || kind >= RollingHash.Kind.values().length) {
+            throw BinaryFormat.corrupt("Bad block length " + blockLen + ", window " + window + " or hash " + kind);
+        }
+        AppendableEncoder e = new AppendableEncoder(window);
+        e.blockLen = blockLen;
+        e.length = r.readVarLong();
+        e.encodedLength = r.readVarLong();
+        e.segments = r.readVarInt();
+        if ((flags & FLAG_STARTED) != 0) {
+            if (blockLen < 1) {
+                throw BinaryFormat.corrupt("Bad block length " + blockLen);
+            }
+            e.buf = new byte[BMDiffOutputStream.historySize(window)];
+            e.filled = r.readVarInt();
+            int position = r.readVarInt();
+            int nextStore = r.readVarInt();
+            if (e.filled > e.buf.length || e.filled > r.end - r.pos || position > e.filled
+                    || nextStore < position || nextStore > e.filled) {
+                throw BinaryFormat.corrupt("Bad state " + e.filled + ", " + position + ", " + nextStore);
+            }
+            System.arraycopy(r.src, r.pos, e.buf, 0, e.filled);
+            r.pos += e.filled;
+            LongIntHashTable table = LongIntHashTable.readFrom(r, Math.max(e.filled - blockLen + 1, 0));
+            e.encoder = new ByteEncoder(RollingHash.Kind.values()[kind].create(blockLen), table);
+            e.encoder.resume(e.buf, e.filled, position, nextStore);
+        }
+        return e;
+    }
+
+    /**
+     * Counts the bytes of a segment on their way to the output.
+     */
+    private static final class Counter extends FilterOutputStream {
+
+        long count;
+
+        Counter(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -10,18 +10,23 @@
  */
 package bmdiff;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  *
  * Bentley and McIlroy "Data compression using long common strings"
  *
+ * Two formats are supported. The legacy text format works on char[] and writes
+ * &lt;n,m&gt; tokens as decimal text (see {@link #encode(char[])}), the binary
+ * format works on bytes and writes varint tokens (see {@link BinaryFormat} and
+ * {@link #encode(byte[])}).
+ *
  * @author srikchan
  */
 public class BMDiffCodec {
 
-    public Map<Long, Integer> fingerPrintTable = new HashMap<>();
+    public FingerPrintTable fingerPrintTable = new LongIntHashTable();
     private long[] cachedPows;// All calculated to base B
     private static final int B = 11;// Prime
     private static final String OPEN = "<".intern();
@@ -43,20 +48,399 @@ public class BMDiffCodec {
     private boolean mostRecentEncFlag = false;
     private static final int BUCKET_FACTOR = 1;
     private int blockLen = 10;// Block size
+    /**
+     * Block length which makes every encode pick its own, see
+     * {@link BlockLengthSelector}.
+     */
+    public static final int AUTO = 0;
+    private BlockLengthSelector selector;// Only in AUTO mode.
 
     public BMDiffCodec(int b) {
-        this.blockLen = b;
+        setBlockLen(b);
     }
     public BMDiffCodec() {
     }
 
+    /**
+     * @param blockLen a positive length or {@link #AUTO}.
+     */
     public void setBlockLen(int blockLen) {
-        this.blockLen = blockLen;
+        if (blockLen == AUTO) {
+            if (selector == null) {
+                selector = new BlockLengthSelector();
+            }
+        } else {
+            this.blockLen = blockLen;
+            selector = null;
+        }
+    }
+
+    /**
+     * @return the block length, in AUTO mode the one chosen by the last
+     * encode.
+     */
+    public int getBlockLen() {
+        return blockLen;
+    }
+
+    /**
+     * By default fingerprints are kept in a primitive open addressing table,
+     * passing true switches back to the boxing HashMap so that the two can be
+     * compared for throughput and allocation.
+     *
+     * @param useHashMap
+     */
+    public void setUseHashMapTable(boolean useHashMap) {
+        if (useHashMap != (fingerPrintTable instanceof MapFingerPrintTable)) {
+            fingerPrintTable = useHashMap ? new MapFingerPrintTable() : new LongIntHashTable();
+            byteEncoder = null;
+        }
+    }
+
+    /**
+     * Lets the binary encoder keep up to depth blocks per fingerprint instead
+     * of only the first, so a block whose fingerprint collides with different
+     * text is still found. All candidates are verified and the one matching
+     * furthest is used, CodecStats reports how often that was not the first.
+     *
+     * @param depth 1 (the default) to {@link LongIntHashTable#MAX_DEPTH}.
+     */
+    public void setBucketDepth(int depth) {
+        if (depth < 1 || depth > LongIntHashTable.MAX_DEPTH) {
+            throw new IllegalArgumentException("Bucket depth " + depth + " not in 1.." + LongIntHashTable.MAX_DEPTH);
+        }
+        bucketDepth = depth;
+        byteEncoder = null;
+    }
+
+    /**
+     * Caps the memory of the fingerprint index of both formats, see
+     * {@link BoundedFingerPrintTable} for what happens once it is full. The
+     * ratio given up shows in the INDEX_SKIPPED and INDEX_EVICTED counters of
+     * {@link CodecStats}.
+     *
+     * @param budgetBytes 0 or less for no cap (the default), which keeps a
+     * HashMap table chosen with {@link #setUseHashMapTable(boolean)}.
+     * @param policy
+     */
+    public void setIndexBudget(long budgetBytes, BoundedFingerPrintTable.Policy policy) {
+        indexBudget = budgetBytes;
+        indexPolicy = policy;
+        if (budgetBytes > 0) {
+            fingerPrintTable = new BoundedFingerPrintTable(budgetBytes, policy);
+        } else if (fingerPrintTable instanceof BoundedFingerPrintTable) {
+            fingerPrintTable = new LongIntHashTable();
+        }
+        byteEncoder = null;
+    }
+
+    /**
+     * Fingerprint function of the binary encoder. Only speed and ratio depend
+     * on it, encodings made with any of them decode the same way.
+     *
+     * @param kind
+     */
+    public void setRollingHash(RollingHash.Kind kind) {
+        if (kind == null) {
+            throw new IllegalArgumentException("No rolling hash");
+        }
+        hashKind = kind;
+        byteEncoder = null;
+    }
+
+    /**
+     * Stores the fingerprints of the binary encoder, and of the base indexes
+     * it builds, at content defined anchors instead of multiples of the block
+     * length, so text shifted by an insertion is indexed the same way.
+     *
+     * @param anchors null for the fixed offsets (the default).
+     */
+    public void setContentAnchors(ContentAnchors anchors) {
+        this.anchors = anchors;
+        byteEncoder = null;
+    }
+
+    private ByteEncoder byteEncoder;
+    private ContentAnchors anchors;
+    private RollingHash.Kind hashKind = RollingHash.DEFAULT;
+    private final ByteOutput byteOutBuff = new ByteOutput();
+    private int bucketDepth = 1;
+    private long indexBudget;
+    private BoundedFingerPrintTable.Policy indexPolicy;
+    private CodecListener listener;
+    private final CallStats call = new CallStats();
+    private byte[] cachedBase;
+    private BaseIndex cachedBaseIndex;
+    private ContentAnchors cachedAnchors;
+
+    /**
+     * Encodes the bytes into the binary format.
+     *
+     * @param in uncompressed bytes
+     * @return
+     */
+    public byte[] encode(byte[] in) {
+        return encode(in, 0, in.length);
+    }
+
+    public byte[] encode(byte[] in, int off, int len) {
+        long startTime = listener == null ? 0 : System.nanoTime();
+        byteOutBuff.reset();
+        ByteEncoder encoder;
+        if (selector != null) {
+            blockLen = selector.select(in, off, len);
+            encoder = indexBudget > 0 || bucketDepth > 1 || hashKind != RollingHash.DEFAULT || anchors != null
+                    || fingerPrintTable instanceof MapFingerPrintTable ? byteEncoder() : selector.encoderFor(blockLen);
+        } else {
+            encoder = byteEncoder();
+        }
+        encoder.encode(in, off, len, byteOutBuff);
+        encoder.setInput(null);
+        byte[] enc = byteOutBuff.toByteArray();
+        if (listener != null) {
+            call.clear(true);
+            encoder.collect(call);
+            selected(call);
+            report(startTime, len, enc.length);
+        }
+        return enc;
+    }
+
+    /**
+     * Encodes the remaining bytes of the buffer, the position is moved to the
+     * limit.
+     *
+     * @param in
+     * @return a heap buffer with the encoding.
+     */
+    public ByteBuffer encode(ByteBuffer in) {
+        return ByteBuffer.wrap(encode(remaining(in)));
+    }
+
+    /**
+     * Decodes the binary format.
+     *
+     * @param enc bytes produced by {@link #encode(byte[])}
+     * @return
+     */
+    public byte[] decode(byte[] enc) {
+        return decode(enc, 0, enc.length);
+    }
+
+    public byte[] decode(byte[] enc, int off, int len) {
+        long startTime = listener == null ? 0 : System.nanoTime();
+        long length = decodedLength(enc, off, len);
+        byte[] dec;
+        if (length >= 0 && length <= Integer.MAX_VALUE) {
+            // Exact size known, decode straight into the result.
+            dec = new byte[(int) length];
+            ByteDecoder.decode(enc, off, len, ByteOutput.wrap(dec, 0, dec.length));
+        } else {
+            byteOutBuff.reset();
+            ByteDecoder.decode(enc, off, len, byteOutBuff);
+            dec = byteOutBuff.toByteArray();
+        }
+        if (listener != null) {
+            call.clear(false);
+            report(startTime, len, dec.length);
+        }
+        return dec;
+    }
+
+    /**
+     * Decodes into dst at dstOff, size dst with
+     * {@link #decodedLength(byte[], int, int)}.
+     *
+     * @return the number of bytes written.
+     * @throws IllegalArgumentException when enc is corrupt or the decoded
+     * bytes do not fit dst.
+     */
+    public int decode(byte[] enc, int off, int len, byte[] dst, int dstOff) {
+        long startTime = listener == null ? 0 : System.nanoTime();
+        ByteOutput out = ByteOutput.wrap(dst, dstOff, dst.length - dstOff);
+        ByteDecoder.decode(enc, off, len, out);
+        if (listener != null) {
+            call.clear(false);
+            report(startTime, len, out.written());
+        }
+        return out.written();
+    }
+
+    /**
+     * Reads the decoded length from the header without decoding.
+     *
+     * @return the length or -1 when the encoding does not record it, as with
+     * {@link BMDiffOutputStream}.
+     * @throws IllegalArgumentException when the header is corrupt.
+     */
+    public static long decodedLength(byte[] enc, int off, int len) {
+        BinaryFormat.Reader r = new BinaryFormat.Reader(enc, off, len);
+        r.readHeader();
+        return r.length;
+    }
+
+    /**
+     * Decodes the remaining bytes of the buffer, the position is moved to the
+     * limit.
+     *
+     * @param enc
+     * @return a heap buffer with the decoded bytes.
+     */
+    public ByteBuffer decode(ByteBuffer enc) {
+        return ByteBuffer.wrap(decode(remaining(enc)));
+    }
+
+    /**
+     * Indexes base with this codec's block length, in AUTO mode one chosen
+     * from the base. The result can be shared by any number of codecs and
+     * threads.
+     *
+     * @param base
+     * @return
+     */
+    public BaseIndex index(byte[] base) {
+        if (selector != null) {
+            blockLen = selector.select(base, 0, base.length);
+        }
+        return BaseIndex.build(base, blockLen, hashKind, anchors);
+    }
+
+    /**
+     * Encodes target so it may copy from the base as well as from itself,
+     * decode with {@link #decode(byte[], byte[])} and the same base.
+     *
+     * @param target
+     * @param base
+     * @return
+     */
+    public byte[] encode(byte[] target, BaseIndex base) {
+        long startTime = listener == null ? 0 : System.nanoTime();
+        if (selector != null) {
+            blockLen = base.blockLen();
+        }
+        ByteEncoder encoder = byteEncoder();
+        byteOutBuff.reset();
+        encoder.setBase(base);
+        try {
+            encoder.encode(target, 0, target.length, byteOutBuff);
+        } finally {
+            encoder.setBase(null);
+        }
+        byte[] enc = byteOutBuff.toByteArray();
+        if (listener != null) {
+            call.clear(true);
+            encoder.collect(call);
+            report(startTime, target.length, enc.length);
+        }
+        return enc;
+    }
+
+    /**
+     * Delta of target against base. The base index is cached, so encoding
+     * many versions against the same base array indexes it only once. The
+     * base must not be modified while it is cached.
+     *
+     * @param base
+     * @param target
+     * @return
+     */
+    public byte[] encodeDelta(byte[] base, byte[] target) {
+        if (cachedBase != base || cachedBaseIndex.hashKind() != hashKind || cachedAnchors != anchors
+                || (selector == null && cachedBaseIndex.blockLen() != blockLen)) {
+            if (selector != null) {
+                blockLen = selector.select(base, 0, base.length);
+            }
+            cachedBaseIndex = BaseIndex.build(base, 0, base.length, hashKind.create(blockLen), anchors);
+            cachedBase = base;
+            cachedAnchors = anchors;
+        }
+        return encode(target, cachedBaseIndex);
+    }
+
+    /**
+     * Decodes an encoding made against a base.
+     *
+     * @param enc
+     * @param base the same bytes the encoding was made against.
+     * @return
+     */
+    public byte[] decode(byte[] enc, byte[] base) {
+        long startTime = listener == null ? 0 : System.nanoTime();
+        long length = decodedLength(enc, 0, enc.length);
+        byte[] dec;
+        if (length >= 0 && length <= Integer.MAX_VALUE) {
+            dec = new byte[(int) length];
+            ByteDecoder.decode(enc, 0, enc.length, ByteOutput.wrap(dec, 0, dec.length), base, 0, base.length);
+        } else {
+            byteOutBuff.reset();
+            ByteDecoder.decode(enc, 0, enc.length, byteOutBuff, base, 0, base.length);
+            dec = byteOutBuff.toByteArray();
+        }
+        if (listener != null) {
+            call.clear(false);
+            report(startTime, enc.length, dec.length);
+        }
+        return dec;
+    }
+
+    private static byte[] remaining(ByteBuffer buf) {
+        byte[] bytes;
+        if (buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0 && buf.remaining() == buf.array().length) {
+            bytes = buf.array();
+            buf.position(buf.limit());
+        } else {
+            bytes = new byte[buf.remaining()];
+            buf.get(bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Every encode and decode is reported to the listener, null (the default)
+     * turns reporting off so not even the clock is read.
+     *
+     * @param listener for example a {@link CodecStats}.
+     */
+    public void setListener(CodecListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Adds what AUTO mode chose and the time it took.
+     */
+    private void selected(CallStats call) {
+        if (selector != null) {
+            call.selectedBlockLen = blockLen;
+            call.selectNanos = selector.lastNanos();
+        }
+    }
+
+    private void report(long startTime, long bytesIn, long bytesOut) {
+        call.nanos = System.nanoTime() - startTime;
+        call.bytesIn = bytesIn;
+        call.bytesOut = bytesOut;
+        listener.onCall(call);
+    }
+
+    private ByteEncoder byteEncoder() {
+        if (byteEncoder == null || byteEncoder.blockLen() != blockLen || byteEncoder.hashKind() != hashKind
+                || byteEncoder.anchors() != anchors) {
+            FingerPrintTable table;
+            if (indexBudget > 0) {
+                table = new BoundedFingerPrintTable(indexBudget, indexPolicy);
+            } else {
+                table = fingerPrintTable instanceof MapFingerPrintTable ? new MapFingerPrintTable() : new LongIntHashTable(16, bucketDepth);
+            }
+            byteEncoder = new ByteEncoder(hashKind.create(blockLen), table, anchors);
+        }
+        return byteEncoder;
     }
 
-    
     private void reinit(int capHint) {
-        fingerPrintTable = new HashMap<>(capHint / BUCKET_FACTOR);
+        fingerPrintTable.reset(capHint / BUCKET_FACTOR);
+        if (cachedPows != null && cachedPows.length == blockLen) {
+            return;
+        }
         cachedPows = new long[blockLen];// All calculated to base B
         cachedPows[0] = 1;
         for (int i = 1; i < blockLen; i++) {
@@ -66,27 +450,35 @@ public class BMDiffCodec {
     private char[] encIpCharArray;
     private char[] encOpCharArray;
     private char[] decOpCharArray;
+    private char[] decOut;
+    private int decLen;
     private long fingerPrint ;
     
     
     
     private StringBuilder encOutBuff;
     /**
-     * Encodes the string based on BMDiffCodec algorithm. We are reusing EncData
+     * Encodes the string based on BMDiffCodec algorithm into the legacy text
+     * format. We are reusing EncData
      * objects by using setters because creating object is costlier than mutating it. 
      *
      * @param chArray  uncompressed string
     */
     public char[] encode(char[] chArray) {
+        long startTime = listener == null ? 0 : System.nanoTime();
+        if (selector != null) {
+            blockLen = selector.select(chArray, 0, chArray.length);
+        }
         encIpCharArray = chArray;
         reinit(encIpCharArray.length / blockLen);
-        long startTime = System.nanoTime();
+        call.clear(true);
+        selected(call);
         fingerPrint = rollingHash(encIpCharArray, 0, blockLen);
         encOutBuff = new StringBuilder();
         int rawDataStartIndex = 0;
         int encCnt = 0;
         int collisionCounter = 0;
-        Integer fpIndex = -1;// Index of the first block with a given fingerPrint.
+        int fpIndex = -1;// Index of the first block with a given fingerPrint.
         int mostRecentFpIndex = -1;
         int blockStartIndex = -1;
         int toBeRemovedCharIndex = -1;
@@ -108,7 +500,7 @@ public class BMDiffCodec {
             }
 
             fpIndex = fingerPrintTable.get(fingerPrint);
-            if (fpIndex != null) {// We can encode current block or club with earlier blocks.
+            if (fpIndex != FingerPrintTable.NOT_FOUND) {// We can encode current block or club with earlier blocks.
                 if (!checkSubStringMatch(fpIndex, blockStartIndex)) {// A collision
                     collisionCounter++;
                     writeEncBlock(mostRecentFpIndex);
@@ -141,12 +533,14 @@ public class BMDiffCodec {
                                 encOutBuff.append(encIpCharArray[j]);
                                 if (encIpCharArray[j] == OPEN_CHAR) {
                                     encOutBuff.append(OPEN_CHAR);
+                                    call.escapes++;
                                 }
                             }
                             seenOpen = false;
                         } else {
                             encOutBuff.append(encIpCharArray, rawDataStartIndex, blockStartIndex - rawDataStartIndex);
                         }
+                        call.literalTokens++;
                     }
                     mostRecentEnc.set(newEncData);
                     mostRecentEncFlag = true;
@@ -159,18 +553,27 @@ public class BMDiffCodec {
             }
         }
         writeEncBlock(mostRecentFpIndex);
-        if (rawDataStartIndex >= 0) {
+        if (rawDataStartIndex >= 0 && rawDataStartIndex < encIpCharArray.length) {
             for (int j = rawDataStartIndex;j < encIpCharArray.length;j++) {
                 encOutBuff.append(encIpCharArray[j]);
                 if (encIpCharArray[j] == OPEN_CHAR) {
                     encOutBuff.append(OPEN_CHAR);
+                    call.escapes++;
                 }
             }
+            call.literalTokens++;
         }
-        long timeTaken = (System.nanoTime() - startTime);
-        System.out.println("Collisions count=" + collisionCounter);
-        System.out.println("Encoding speed " + (encIpCharArray.length * 2 * 1000.0) / timeTaken  + "MB/sec");
         encOpCharArray = encOutBuff.toString().toCharArray();
+        if (listener != null) {
+            call.collisions = collisionCounter;
+            call.fingerPrintHits = call.copyTokens + call.repeatTokens;
+            call.tableSize = fingerPrintTable.size();
+            if (fingerPrintTable instanceof BoundedFingerPrintTable) {
+                call.indexSkipped = ((BoundedFingerPrintTable) fingerPrintTable).skipped();
+                call.indexEvicted = ((BoundedFingerPrintTable) fingerPrintTable).evicted();
+            }
+            report(startTime, encIpCharArray.length, encOpCharArray.length);
+        }
         return encOpCharArray;
     }
 /**
@@ -190,26 +593,23 @@ public class BMDiffCodec {
  * @return 
  */
     private boolean checkSubStringMatch(int startIndex1, int startIndex2) {
-        for (int i = 0; i < blockLen; i++) {
-            if (encIpCharArray[i + startIndex1] != encIpCharArray[i + startIndex2]) {
-                return false;
-            }
-        }
-        return true;
+        return Mismatch.chars(encIpCharArray, startIndex1, encIpCharArray, startIndex2, blockLen) == blockLen;
     }
 
     /**
+     * Decodes the text format produced by the last {@link #encode(char[])}.
      * Decoding is straight forward except when runLength is greater than
      * decoderBuffer length.
      *
      * @return
      */
     public char[] decode() {
-        long startTime = System.nanoTime();
-        // The decoded output is atleast as big as encoded string, so give a good initial size.
-        StringBuilder decodeBuffer = new StringBuilder(encOpCharArray.length);
+        long startTime = listener == null ? 0 : System.nanoTime();
+        // The output is exactly as big as what was encoded, so size it once.
+        decOut = new char[Math.max(encIpCharArray.length, 1)];
+        decLen = 0;
         // Atleast 1 character will not be encoded.
-        decodeBuffer.append(encOpCharArray, 0, 1);
+        appendRaw(encOpCharArray, 0, 1);
 
         /**
          * If we see <n,m> then index of n is encIndexStart and is reset to -1
@@ -228,7 +628,7 @@ public class BMDiffCodec {
                 if (i < encOpCharArray.length- 1) {
                     if (encOpCharArray[i + 1] != '<') {
                         if (rawUnEncIndexStart < i) {
-                            decodeBuffer.append(encOpCharArray, rawUnEncIndexStart, i - rawUnEncIndexStart);
+                            appendRaw(encOpCharArray, rawUnEncIndexStart, i - rawUnEncIndexStart);
                             rawUnEncIndexStart = Integer.MAX_VALUE;
                         }
                         encIndexStart = i + 1;
@@ -247,18 +647,9 @@ public class BMDiffCodec {
                             repeatition = true;
                         }
                         int endIndex = startIndex + runLen;
-                        if (startIndex < decodeBuffer.length()) { // One could not have encoded something one has not seen yet.
+                        if (startIndex < decLen) { // One could not have encoded something one has not seen yet.
                             if (repeatition) {
-                                int rStartIndex = startIndex;
-                                int rEndIndex = startIndex + blockLen;
-                                if (startIndex + blockLen > decodeBuffer.length()) {
-                                    rEndIndex = decodeBuffer.length();
-                                }
-                                int totalChunks = runLen / (rEndIndex - rStartIndex);
-                                for (int k = 0; k < totalChunks; k++) {
-                                    decodeBuffer.append(decodeBuffer, rStartIndex, rEndIndex);
-                                }
-                                decodeBuffer.append(decodeBuffer, rStartIndex, rStartIndex + runLen % (rEndIndex - rStartIndex));
+                                appendRepeat(startIndex, runLen, Math.min(blockLen, decLen - startIndex));
                             } /**
                              * We cannot derive the repetition from decoded data
                              * but we need to generate from a small repetition
@@ -270,24 +661,18 @@ public class BMDiffCodec {
                              * means the string aaa has been repeated 6 times to
                              * get runLength 18.
                              */
-                            else if (endIndex > decodeBuffer.length()) {// Still a repeatition but a different one.
-                                int rStartIndex = startIndex;
-                                int rEndIndex = decodeBuffer.length();
-                                int totalChunks = runLen / (rEndIndex - rStartIndex);
-                                for (int k = 0; k < totalChunks; k++) {
-                                    decodeBuffer.append(decodeBuffer, rStartIndex, rEndIndex);
-                                }
-                                decodeBuffer.append(decodeBuffer, rStartIndex, rStartIndex + runLen % (rEndIndex - rStartIndex));
+                            else if (endIndex > decLen) {// Still a repeatition but a different one.
+                                appendRepeat(startIndex, runLen, decLen - startIndex);
                             } else {// Simplest case
-                                decodeBuffer.append(decodeBuffer, startIndex, endIndex);
+                                appendRepeat(startIndex, runLen, runLen);
                             }
                         }
                         rawUnEncIndexStart = i + 1;
                     } else {// There was << in input stream so flush raw data(if any).
                         if (rawUnEncIndexStart < encOpCharArray.length) {
-                            decodeBuffer.append(encOpCharArray, rawUnEncIndexStart, i - rawUnEncIndexStart);
+                            appendRaw(encOpCharArray, rawUnEncIndexStart, i - rawUnEncIndexStart);
                         }
-                        decodeBuffer.append(OPEN_CHAR);
+                        appendChar(OPEN_CHAR);
                         i++;// As we also processed the next '<' character.
                         rawUnEncIndexStart = i + 1;// Adjust the pointer as we just flushed the raw data.
                     }
@@ -295,13 +680,53 @@ public class BMDiffCodec {
             }// Otherwise this is just a raw character keep going.
         }
         if (rawUnEncIndexStart < encOpCharArray.length) {
-            decodeBuffer.append(encOpCharArray, rawUnEncIndexStart, encOpCharArray.length- rawUnEncIndexStart);
+            appendRaw(encOpCharArray, rawUnEncIndexStart, encOpCharArray.length- rawUnEncIndexStart);
+        }
+        decOpCharArray = decLen == decOut.length ? decOut : Arrays.copyOf(decOut, decLen);
+        decOut = null;
+        if (listener != null) {
+            call.clear(false);
+            report(startTime, encOpCharArray.length, decOpCharArray.length);
         }
-        System.out.println("Decoding speed " + (encOpCharArray.length * 2 * 1000.0) / (System.nanoTime() - startTime) + "MB/sec");
-        decOpCharArray = decodeBuffer.toString().toCharArray();
         return decOpCharArray;
     }
 
+    private void appendRaw(char[] src, int from, int n) {
+        ensureDecCapacity(n);
+        System.arraycopy(src, from, decOut, decLen, n);
+        decLen += n;
+    }
+
+    private void appendChar(char c) {
+        ensureDecCapacity(1);
+        decOut[decLen++] = c;
+    }
+
+    /**
+     * Appends runLen chars made of the period chars at startIndex repeated.
+     * The first period is copied from startIndex, after that the copy doubles
+     * by reading what it just wrote, so long runs take a logarithmic number
+     * of array copies instead of one append per period.
+     */
+    private void appendRepeat(int startIndex, int runLen, int period) {
+        ensureDecCapacity(runLen);
+        int pos = decLen;
+        int done = Math.min(period, runLen);
+        System.arraycopy(decOut, startIndex, decOut, pos, done);
+        while (done < runLen) {
+            int k = Math.min(done, runLen - done);
+            System.arraycopy(decOut, pos, decOut, pos + done, k);
+            done += k;
+        }
+        decLen += runLen;
+    }
+
+    private void ensureDecCapacity(int n) {
+        if (decLen + n > decOut.length) {// Only when decoding foreign text.
+            decOut = Arrays.copyOf(decOut, Math.max(decOut.length * 2, decLen + n));
+        }
+    }
+
     /**
      * See Rabin Karp's algorithm.
      *
@@ -319,18 +744,6 @@ public class BMDiffCodec {
         return hash;
     }
 
-    /**
-     * See Rabin Karp's algorithm.
-     *
-     * @param a
-     * @param startIndex
-     * @param m
-     * @return
-     */
-    private void rollingHashUpdate(char[] encIpCharArray, int startIndex, int m) {
-        fingerPrint = (fingerPrint - encIpCharArray[startIndex - 1] * cachedPows[(m - 1)]) * B + encIpCharArray[startIndex + m - 1];
-    }
-
     /**
      * Store fingerprint (i.e hash of block of 'b' characters starting at index
      * i in the input stream.
@@ -339,10 +752,7 @@ public class BMDiffCodec {
      * @param i
      */
     private void store(int i) {
-        if (!fingerPrintTable.containsKey(fingerPrint)) {
-            fingerPrintTable.put(fingerPrint, i);
-        }
-        
+        fingerPrintTable.putIfAbsent(fingerPrint, i);
     }
 
     /**
@@ -441,6 +851,12 @@ public class BMDiffCodec {
                 encOutBuff.append(PIPE_CHAR);
             }
             encOutBuff.append(CLOSE_CHAR);
+            if (perpetual) {
+                call.copyTokens++;
+            } else {
+                call.repeatTokens++;
+            }
+            call.matchedBytes += runLength;
 
         }
     }
@@ -0,0 +1,356 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes a stream written by {@link BMDiffOutputStream}, followed by the
+ * continuation segments an {@link AppendableEncoder} adds. Only the last window
+ * bytes of decoded output are kept as history, tokens longer than the free
+ * space are decoded piecewise, so memory is bounded by the window of the
+ * stream.
+ *
+ * @author srikchan
+ */
+public class BMDiffInputStream extends InputStream {
+
+    private static final int IN_BUF_SIZE = 1 << 13;
+    private final InputStream in;
+    private final byte[] inBuf = new byte[IN_BUF_SIZE];
+    private int inPos;
+    private int inLimit;
+    private boolean headerRead;
+    private int blockLen;
+    private int window;
+    private long length = -1;
+    /**
+     * Decoded bytes, [readPos, histLen) are not yet handed out and everything
+     * before is history for back references.
+     */
+    private byte[] hist;
+    private int histLen;
+    private int readPos;
+    private long totalOut;
+    // State of the token being decoded.
+    private int literalLeft;
+    private int copyLeft;
+    private int copyDist;
+    private int repeatLeft;
+    private boolean eof;
+    private boolean closed;
+    private final byte[] oneByte = new byte[1];
+
+    public BMDiffInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(oneByte, 0, 1) == -1 ? -1 : oneByte[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (readPos == histLen) {
+            fill();
+            if (readPos == histLen) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, histLen - readPos);
+        System.arraycopy(hist, readPos, b, off, n);
+        readPos += n;
+        return n;
+    }
+
+    /**
+     * Reads into the remaining space of dst, straight from the decoder's
+     * history, so a mapped or direct buffer costs one copy.
+     *
+     * @param dst
+     * @return bytes read, -1 at the end of the stream.
+     * @throws IOException
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (readPos == histLen) {
+            fill();
+            if (readPos == histLen) {
+                return -1;
+            }
+        }
+        int n = Math.min(dst.remaining(), histLen - readPos);
+        dst.put(hist, readPos, n);
+        readPos += n;
+        return n;
+    }
+
+    /**
+     * Reads the header if that was not done yet.
+     *
+     * @return the decoded length declared by the stream, -1 when it was
+     * written without one.
+     * @throws IOException
+     */
+    public long length() throws IOException {
+        ensureOpen();
+        if (!headerRead) {
+            readHeader();
+        }
+        return length;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (readPos == histLen) {
+                fill();
+                if (readPos == histLen) {
+                    break;
+                }
+            }
+            int k = (int) Math.min(n - skipped, histLen - readPos);
+            readPos += k;
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        return histLen - readPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            in.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * Decodes until the history is full, the stream ended or some output is
+     * ready and no more input is buffered, so a reader never blocks on input
+     * it does not need.
+     */
+    private void fill() throws IOException {
+        if (!headerRead) {
+            readHeader();
+        }
+        if (histLen == hist.length) {// Everything was read, keep only the window.
+            int shift = histLen - window;
+            System.arraycopy(hist, shift, hist, 0, window);
+            histLen = window;
+            readPos -= shift;
+        }
+        int start = histLen;
+        while (!eof && histLen < hist.length && (histLen == start || inPos < inLimit)) {
+            step();
+        }
+    }
+
+    private void step() throws IOException {
+        int space = hist.length - histLen;
+        if (literalLeft > 0) {
+            if (inPos == inLimit) {
+                refill();
+            }
+            int n = Math.min(Math.min(literalLeft, space), inLimit - inPos);
+            System.arraycopy(inBuf, inPos, hist, histLen, n);
+            inPos += n;
+            literalLeft -= n;
+            produced(n);
+        } else if (copyLeft > 0) {
+            int n = Math.min(copyLeft, space);
+            int from = histLen - copyDist;
+            if (copyDist >= n) {
+                System.arraycopy(hist, from, hist, histLen, n);
+            } else {
+                ByteDecoder.repeat(hist, from, histLen, copyDist, n);
+            }
+            copyLeft -= n;
+            produced(n);
+            if (copyLeft == 0 && repeatLeft > 0) {// The rest of a repeat copies the block just written.
+                copyLeft = repeatLeft;
+                copyDist = blockLen;
+                repeatLeft = 0;
+            }
+        } else {
+            readToken();
+        }
+    }
+
+    private void produced(int n) {
+        histLen += n;
+        totalOut += n;
+    }
+
+    private void readToken() throws IOException {
+        long tag = readVarLong();
+        if (tag == BinaryFormat.END) {
+            if (length >= 0 && totalOut != length) {
+                throw corrupt(totalOut + " bytes decoded, " + length + " declared");
+            }
+            eof = !readContinuation();
+            return;
+        }
+        int kind = (int) (tag & BinaryFormat.KIND_MASK);
+        long runLength = tag >>> BinaryFormat.KIND_BITS;
+        if (runLength > Integer.MAX_VALUE) {
+            throw corrupt("Token length out of range " + runLength);
+        }
+        int n = (int) runLength;
+        if (length >= 0 && totalOut + n > length) {
+            throw corrupt("Decodes past the declared length " + length);
+        }
+        switch (kind) {
+            case BinaryFormat.LITERAL:
+                literalLeft = n;
+                break;
+            case BinaryFormat.COPY:
+            case BinaryFormat.REPEAT: {
+                long distance = readVarLong();
+                if (distance <= 0 || distance > window || distance > totalOut) {
+                    throw corrupt("Bad back reference " + distance + " at " + totalOut);
+                }
+                copyDist = (int) distance;
+                if (kind == BinaryFormat.REPEAT && n > blockLen) {
+                    copyLeft = blockLen;
+                    repeatLeft = n - blockLen;
+                } else {
+                    copyLeft = n;
+                }
+                break;
+            }
+            default:
+                throw corrupt("Unknown token kind " + kind);
+        }
+    }
+
+    private void readHeader() throws IOException {
+        int magic0 = readByte();
+        int magic1 = readByte();
+        int version = readByte();
+        int flags = readByte();
+        long b = readVarLong();
+        try {
+            BinaryFormat.checkHeader(magic0, magic1, version, (int) Math.min(b, Integer.MAX_VALUE));
+        } catch (IllegalArgumentException ex) {
+            throw corrupt(ex.getMessage());
+        }
+        if ((flags & BinaryFormat.FLAG_WINDOW) == 0 || (flags & BinaryFormat.FLAG_BASE) != 0) {
+            throw corrupt("Not a stream encoding, use BMDiffCodec.decode");
+        }
+        if ((flags & BinaryFormat.FLAG_CONTINUE) != 0) {
+            throw corrupt("Continues a stream which is missing");
+        }
+        long w = readVarLong();
+        if (w < 2 * b || w > Integer.MAX_VALUE / 2) {
+            throw corrupt("Bad window " + w);
+        }
+        if ((flags & BinaryFormat.FLAG_LENGTH) != 0) {
+            length = readVarLong();
+            if (length < 0) {
+                throw corrupt("Bad length " + length);
+            }
+        }
+        blockLen = (int) b;
+        window = (int) w;
+        hist = new byte[BMDiffOutputStream.historySize(window)];
+        headerRead = true;
+    }
+
+    /**
+     * Reads the header of the segment after an END, if there is one.
+     *
+     * @return false at the end of the input.
+     */
+    private boolean readContinuation() throws IOException {
+        if (inPos == inLimit) {
+            int n = in.read(inBuf, 0, inBuf.length);
+            if (n <= 0) {
+                return false;
+            }
+            inPos = 0;
+            inLimit = n;
+        }
+        int magic0 = readByte();
+        int magic1 = readByte();
+        int version = readByte();
+        int flags = readByte();
+        long b = readVarLong();
+        long w = (flags & BinaryFormat.FLAG_WINDOW) != 0 ? readVarLong() : -1;
+        try {
+            BinaryFormat.checkContinuation(magic0, magic1, version, flags, b, w, blockLen, window);
+        } catch (IllegalArgumentException ex) {
+            throw corrupt(ex.getMessage());
+        }
+        return true;
+    }
+
+    private void refill() throws IOException {
+        int n = in.read(inBuf, 0, inBuf.length);
+        if (n <= 0) {
+            throw new EOFException("Unexpected end of BMDiff stream");
+        }
+        inPos = 0;
+        inLimit = n;
+    }
+
+    private int readByte() throws IOException {
+        if (inPos == inLimit) {
+            refill();
+        }
+        return inBuf[inPos++] & 0xFF;
+    }
+
+    private long readVarLong() throws IOException {
+        long v = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 63) {
+                throw corrupt("Malformed varint");
+            }
+            b = readByte();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return v;
+    }
+
+    private static IOException corrupt(String msg) {
+        return new IOException("Corrupt BMDiff stream: " + msg);
+    }
+}
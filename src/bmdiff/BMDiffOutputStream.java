@@ -0,0 +1,320 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes everything written to it into the {@link BinaryFormat} and writes
+ * the tokens to the underlying stream as soon as they are final. Back
+ * references never reach further than the window, so the stream holds at most
+ * window + chunk bytes of input and the fingerprint table only holds blocks of
+ * that range, whatever the total size of the input.
+ *
+ * The output can be read back with {@link BMDiffInputStream} or, when it fits
+ * in memory, with {@link BMDiffCodec#decode(byte[])}. When the total length is
+ * known up front it can be declared, the header then carries it so a decoder
+ * can preallocate its output, and writing more or fewer bytes is an error.
+ *
+ * @author srikchan
+ */
+public class BMDiffOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BLOCK_LEN = 32;
+    public static final int DEFAULT_WINDOW = 1 << 20;
+    private static final int MIN_CHUNK = 1 << 16;
+    private final OutputStream out;
+    private ByteEncoder encoder;// Created by the first encode in AUTO mode.
+    private final ByteOutput encOutBuff = new ByteOutput();
+    private final int window;
+    /**
+     * [0, filled) holds the last window bytes already looked up followed by
+     * the bytes still to be encoded.
+     */
+    private final byte[] buf;
+    private int filled;
+    private int blockLen;
+    private boolean finished;
+    private boolean closed;
+    private final byte[] oneByte = new byte[1];
+    private BlockLengthSelector selector;// Until the block length is chosen.
+    private final long length;// Declared length or -1.
+    private long written;
+
+    public BMDiffOutputStream(OutputStream out) {
+        this(out, DEFAULT_BLOCK_LEN, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param out
+     * @param blockLen a positive length or {@link BMDiffCodec#AUTO} to pick
+     * one from the first buffer full, or what was written before the first
+     * flush.
+     * @param window maximum back reference distance, at least 2 * blockLen.
+     */
+    public BMDiffOutputStream(OutputStream out, int blockLen, int window) {
+        this(out, blockLen, window, -1);
+    }
+
+    /**
+     * @param out
+     * @param blockLen a positive length or {@link BMDiffCodec#AUTO}.
+     * @param window maximum back reference distance, at least 2 * blockLen.
+     * @param length exact number of bytes which will be written, or -1 if
+     * not known.
+     */
+    public BMDiffOutputStream(OutputStream out, int blockLen, int window, long length) {
+        if (length < -1) {
+            throw new IllegalArgumentException("Negative length " + length);
+        }
+        int maxBlockLen = blockLen;
+        if (blockLen == BMDiffCodec.AUTO) {
+            selector = new BlockLengthSelector();
+            maxBlockLen = selector.maxBlockLen();
+        }
+        if (blockLen < 0 || window < 2 * maxBlockLen) {
+            throw new IllegalArgumentException("Window " + window + " smaller than twice the block length " + maxBlockLen);
+        }
+        this.out = out;
+        this.blockLen = blockLen;
+        this.window = window;
+        this.length = length;
+        this.buf = new byte[historySize(window)];
+        if (selector == null) {
+            start();
+        }
+    }
+
+    /**
+     * Continues a stream which was finished, writing a continuation segment.
+     * The encoder and buffer are those of the finished stream, buf[0, filled)
+     * is its history.
+     */
+    BMDiffOutputStream(OutputStream out, ByteEncoder encoder, byte[] buf, int filled, int window) {
+        if (buf.length != historySize(window)) {
+            throw new IllegalArgumentException("Buffer of " + buf.length + " bytes for a window of " + window);
+        }
+        this.out = out;
+        this.encoder = encoder;
+        this.blockLen = encoder.blockLen();
+        this.window = window;
+        this.length = -1;
+        this.buf = buf;
+        this.filled = filled;
+        encoder.setInput(buf);
+        encoder.setWindow(window);
+        BinaryFormat.writeHeader(encOutBuff, blockLen, BinaryFormat.FLAG_CONTINUE, window);
+    }
+
+    private void start() {
+        if (selector != null) {
+            blockLen = selector.select(buf, 0, filled);
+            encoder = selector.encoderFor(blockLen);
+            selector = null;
+        } else {
+            encoder = new ByteEncoder(blockLen, new LongIntHashTable());
+        }
+        encoder.begin(buf, 0, buf.length / blockLen);
+        encoder.setWindow(window);
+        if (length < 0) {
+            BinaryFormat.writeHeader(encOutBuff, blockLen, 0, window);
+        } else {
+            BinaryFormat.writeHeader(encOutBuff, blockLen, 0, window, length);
+        }
+    }
+
+    /**
+     * Size of the buffer holding the window plus the next chunk of input, the
+     * same is used by the decoder for its history.
+     */
+    static int historySize(int window) {
+        return window + Math.max(window, MIN_CHUNK);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        oneByte[0] = (byte) b;
+        write(oneByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureWritable();
+        if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        count(len);
+        while (len > 0) {
+            int n = Math.min(len, buf.length - filled);
+            System.arraycopy(b, off, buf, filled, n);
+            filled += n;
+            off += n;
+            len -= n;
+            if (filled == buf.length) {
+                encodeBuffered();
+                slide();
+                drain();
+            }
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of src, which are copied straight into the
+     * encoder's buffer, so a mapped or direct buffer costs one copy.
+     *
+     * @param src
+     * @throws IOException
+     */
+    public void write(ByteBuffer src) throws IOException {
+        ensureWritable();
+        count(src.remaining());
+        while (src.hasRemaining()) {
+            int n = Math.min(src.remaining(), buf.length - filled);
+            src.get(buf, filled, n);
+            filled += n;
+            if (filled == buf.length) {
+                encodeBuffered();
+                slide();
+                drain();
+            }
+        }
+    }
+
+    private void count(int n) throws IOException {
+        written += n;
+        if (length >= 0 && written > length) {
+            throw new IOException("More than the declared " + length + " bytes written");
+        }
+    }
+
+    private void encodeBuffered() {
+        if (encoder == null) {
+            start();
+        }
+        encoder.setEnd(filled);
+        encoder.process(encOutBuff, filled - blockLen + 1);
+    }
+
+    /**
+     * Keeps the window bytes before the next lookup position and drops the
+     * rest of the buffer.
+     */
+    private void slide() {
+        int p = encoder.position();
+        encoder.flushLiteral(encOutBuff, p);
+        int shift = p - window;
+        if (shift > 0) {
+            System.arraycopy(buf, shift, buf, 0, filled - shift);
+            filled -= shift;
+            encoder.slide(shift);
+        }
+    }
+
+    private void drain() throws IOException {
+        if (encOutBuff.size() > 0) {
+            out.write(encOutBuff.array(), 0, encOutBuff.size());
+            encOutBuff.reset();
+        }
+    }
+
+    /**
+     * Encodes all the bytes written so far and flushes them to the underlying
+     * stream. Matches cannot span a flush so frequent flushing costs ratio.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (!finished) {
+            encodeBuffered();
+            encoder.flushLiteral(encOutBuff, filled);
+            drain();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the rest of the encoding without closing the underlying stream.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        ensureOpen();
+        if (!finished) {
+            if (length >= 0 && written != length) {
+                throw new IOException(written + " bytes written, " + length + " declared");
+            }
+            encodeBuffered();
+            encoder.flushLiteral(encOutBuff, filled);
+            BinaryFormat.writeEnd(encOutBuff);
+            drain();
+            finished = true;
+        }
+    }
+
+    /**
+     * Drops the buffered bytes no later segment can reach, once finished.
+     */
+    void compact() {
+        slide();
+    }
+
+    ByteEncoder encoder() {
+        return encoder;
+    }
+
+    byte[] buffer() {
+        return buf;
+    }
+
+    int buffered() {
+        return filled;
+    }
+
+    /**
+     * @return bytes written to this stream, not counting what a continued
+     * stream held before.
+     */
+    long written() {
+        return written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            try {
+                finish();
+            } finally {
+                closed = true;
+                out.close();
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * Nothing may follow the END of a finished stream.
+     */
+    private void ensureWritable() throws IOException {
+        ensureOpen();
+        if (finished) {
+            throw new IOException("write beyond end of stream");
+        }
+    }
+}
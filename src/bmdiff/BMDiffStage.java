@@ -0,0 +1,40 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+/**
+ * The long match pass, the {@link BinaryFormat} encoding of the input.
+ *
+ * @author srikchan
+ */
+public final class BMDiffStage implements Stage {
+
+    private final ByteEncoder encoder;
+
+    public BMDiffStage(int blockLen) {
+        encoder = new ByteEncoder(blockLen, new LongIntHashTable());
+    }
+
+    @Override
+    public String name() {
+        return "bmdiff(" + encoder.blockLen() + ")";
+    }
+
+    @Override
+    public void encode(byte[] src, int off, int len, ByteOutput out) {
+        encoder.encode(src, off, len, out);
+    }
+
+    @Override
+    public void decode(byte[] src, int off, int len, ByteOutput out) {
+        ByteDecoder.decode(src, off, len, out);
+    }
+}
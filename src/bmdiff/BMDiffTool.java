@@ -0,0 +1,642 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Command line tool compressing and decompressing files and directory trees.
+ *
+ * <pre>
+ * java -cp BMDiff.jar bmdiff.BMDiffTool [-d] [options] path...
+ * </pre>
+ *
+ * Every file becomes a {@link FramedCodec} container (name.bmd), so an output
+ * can also be read with {@link FramedCodec#decode(byte[])}. The work is a
+ * pipeline: one reader thread cuts the files into frames and submits them to
+ * a pool of encoders (or decoders), the futures go through a bounded queue to
+ * the writer, which is the calling thread and writes them in order. A full
+ * queue blocks the reader, so at most about 2 x threads frames are in memory
+ * whatever the size or number of the files, while all the workers stay busy
+ * across file boundaries, which is what matters for many small files.
+ *
+ * A file which can not be read, decoded or written is reported, its partial
+ * output removed, and the others carry on; the exit status is then 1. Inputs
+ * are never deleted and existing outputs are only replaced with --force.
+ *
+ * @author srikchan
+ */
+public final class BMDiffTool {
+
+    static final String SUFFIX = ".bmd";
+    static final int EXIT_FAILED = 1;
+    static final int EXIT_USAGE = 2;
+    private static final String USAGE = "usage: bmdiff [-d] [--threads N] [--virtual] [--block N|auto] [--frame BYTES]\n"
+            + "              [--out DIR] [--force] [--progress] [--stats] path...\n"
+            + "  -d, --decompress  decompress " + SUFFIX + " files instead of compressing\n"
+            + "  --threads N       encoder/decoder threads, default the number of cores\n"
+            + "  --virtual         run the workers on virtual threads (Java 21 and later)\n"
+            + "  --block N|auto    block length, default " + BMDiffOutputStream.DEFAULT_BLOCK_LEN + "\n"
+            + "  --frame BYTES     bytes encoded per task, default " + FramedCodec.DEFAULT_FRAME_SIZE + "\n"
+            + "  --out DIR         write outputs under DIR instead of next to the inputs\n"
+            + "  --force           replace existing outputs\n"
+            + "  --progress        print progress once a second\n"
+            + "  --stats           print the codec counters at the end";
+    private final PrintStream out;
+    private final PrintStream err;
+    private boolean decompress;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean virtual;
+    private int blockLen = BMDiffOutputStream.DEFAULT_BLOCK_LEN;
+    private int frameSize = FramedCodec.DEFAULT_FRAME_SIZE;
+    private Path outDir;
+    private boolean force;
+    private boolean progress;
+    private boolean printStats;
+    private final List<Task> tasks = new ArrayList<Task>();
+    private final CodecStats stats = new CodecStats();
+    private final ConcurrentLinkedQueue<BMDiffCodec> idleCodecs = new ConcurrentLinkedQueue<BMDiffCodec>();
+    // Totals, only touched by the writer.
+    private int done;
+    private int failed;
+    private long bytesIn;
+    private long bytesOut;
+
+    private BMDiffTool(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * Same as main without exiting.
+     *
+     * @return the exit status, 0 when every file was done.
+     */
+    public static int run(String[] args, PrintStream out, PrintStream err) {
+        for (String arg : args) {
+            if (arg.equals("-h") || arg.equals("--help")) {
+                out.println(USAGE);
+                return 0;
+            }
+        }
+        BMDiffTool tool = new BMDiffTool(out, err);
+        List<String> paths;
+        try {
+            paths = tool.parse(args);
+        } catch (IllegalArgumentException e) {
+            err.println("bmdiff: " + e.getMessage());
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        for (String path : paths) {
+            tool.collect(Paths.get(path));
+        }
+        try {
+            tool.runPipeline();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            err.println("bmdiff: interrupted");
+            return EXIT_FAILED;
+        }
+        return tool.failed == 0 ? 0 : EXIT_FAILED;
+    }
+
+    private List<String> parse(String[] args) {
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("-") || arg.equals("-")) {
+                paths.add(arg);
+            } else if (arg.equals("--")) {
+                while (++i < args.length) {
+                    paths.add(args[i]);
+                }
+            } else if (arg.equals("-d") || arg.equals("--decompress")) {
+                decompress = true;
+            } else if (arg.equals("--threads")) {
+                threads = intValue(args, ++i, 1);
+            } else if (arg.equals("--virtual")) {
+                virtual = true;
+            } else if (arg.equals("--block")) {
+                blockLen = i + 1 < args.length && args[i + 1].equals("auto") ? BMDiffCodec.AUTO : intValue(args, i + 1, 1);
+                i++;
+            } else if (arg.equals("--frame")) {
+                frameSize = intValue(args, ++i, 1);
+            } else if (arg.equals("--out")) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException("--out needs a directory");
+                }
+                outDir = Paths.get(args[i]);
+            } else if (arg.equals("--force")) {
+                force = true;
+            } else if (arg.equals("--progress")) {
+                progress = true;
+            } else if (arg.equals("--stats")) {
+                printStats = true;
+            } else {
+                throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        if (paths.isEmpty()) {
+            throw new IllegalArgumentException("no input");
+        }
+        return paths;
+    }
+
+    private static int intValue(String[] args, int i, int min) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(args[i - 1] + " needs a value");
+        }
+        try {
+            int v = Integer.parseInt(args[i]);
+            if (v >= min) {
+                return v;
+            }
+        } catch (NumberFormatException e) {
+        }
+        throw new IllegalArgumentException("bad value for " + args[i - 1] + ": " + args[i]);
+    }
+
+    /**
+     * Adds the file, or every file under the directory, to the tasks.
+     * Directories only contribute files with the suffix when decompressing
+     * and files without it when compressing.
+     */
+    private void collect(final Path path) {
+        if (Files.isDirectory(path)) {
+            Path name = path.toAbsolutePath().normalize().getFileName();
+            final Path prefix = name == null ? Paths.get("") : name;
+            try {
+                Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (attrs.isRegularFile() && file.getFileName().toString().endsWith(SUFFIX) == decompress) {
+                            tasks.add(new Task(file, target(file, prefix.resolve(path.relativize(file).toString()))));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        fail(file, e);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                fail(path, e);
+            }
+        } else if (!Files.exists(path)) {
+            fail(path, "no such file");
+        } else if (path.getFileName().toString().endsWith(SUFFIX) != decompress) {
+            fail(path, decompress ? "no " + SUFFIX + " suffix" : "already has the " + SUFFIX + " suffix");
+        } else {
+            tasks.add(new Task(path, target(path, path.getFileName())));
+        }
+    }
+
+    /**
+     * @param relative where the output goes under --out.
+     */
+    private Path target(Path source, Path relative) {
+        Path base = outDir == null ? source : outDir.resolve(relative.toString());
+        String name = base.getFileName().toString();
+        name = decompress ? name.substring(0, name.length() - SUFFIX.length()) : name + SUFFIX;
+        return base.resolveSibling(name);
+    }
+
+    private void runPipeline() throws InterruptedException {
+        long startTime = System.nanoTime();
+        ExecutorService pool = newPool();
+        final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(2 * threads);
+        final ExecutorService workers = pool;
+        Thread reader = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    for (Task task : tasks) {
+                        try {
+                            if (decompress) {
+                                readContainer(task, workers, queue);
+                            } else {
+                                readFile(task, workers, queue);
+                            }
+                        } catch (IOException e) {
+                            task.error = e;
+                        } catch (RuntimeException e) {// A corrupt container.
+                            task.error = e;
+                        }
+                        queue.put(new Entry(task, null));
+                    }
+                    queue.put(Entry.END);
+                } catch (InterruptedException e) {// The writer gave up.
+                }
+            }
+        }, "bmdiff-reader");
+        reader.start();
+        try {
+            write(queue, startTime);
+        } finally {
+            reader.interrupt();
+            reader.join();
+            pool.shutdownNow();
+        }
+        if (progress) {
+            err.println();
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        long original = decompress ? bytesOut : bytesIn;
+        long encoded = decompress ? bytesIn : bytesOut;
+        out.printf("%s %d files%s, %.1f MB -> %.1f MB (ratio %.4f) in %.2f s, %.1f MB/s with %d %sthreads%n",
+                decompress ? "decompressed" : "compressed", done, failed == 0 ? "" : " (" + failed + " failed)",
+                bytesIn / 1e6, bytesOut / 1e6, original == 0 ? 0 : encoded / (double) original,
+                seconds, seconds == 0 ? 0 : original / 1e6 / seconds, threads, virtual ? "virtual " : "");
+        if (printStats) {
+            out.println(stats);
+        }
+    }
+
+    /**
+     * Virtual threads are looked up by reflection so the tool still builds
+     * and runs on older JVMs, which then get the fixed pool.
+     */
+    private ExecutorService newPool() {
+        if (virtual) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                err.println("bmdiff: virtual threads need Java 21, using platform threads");
+                virtual = false;
+            }
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    private void readFile(Task task, ExecutorService workers, BlockingQueue<Entry> queue) throws IOException, InterruptedException {
+        task.length = Files.size(task.source);
+        task.sourceSize = task.length;
+        long frames = (task.length + frameSize - 1) / frameSize;
+        if (frames > Integer.MAX_VALUE) {
+            throw new IOException("too many frames, use a bigger --frame");
+        }
+        task.frameCount = (int) frames;
+        try (InputStream in = Files.newInputStream(task.source)) {
+            for (int k = 0; k < task.frameCount; k++) {
+                final byte[] frame = new byte[(int) Math.min(frameSize, task.length - (long) k * frameSize)];
+                readFully(in, frame);
+                queue.put(new Entry(task, workers.submit(new Callable<byte[]>() {
+
+                    @Override
+                    public byte[] call() {
+                        BMDiffCodec codec = borrowCodec();
+                        try {
+                            return codec.encode(frame);
+                        } finally {
+                            idleCodecs.offer(codec);
+                        }
+                    }
+                })));
+            }
+            if (in.read() >= 0) {
+                throw new IOException("grew while being read");
+            }
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] b) throws IOException {
+        int n = 0;
+        while (n < b.length) {
+            int k = in.read(b, n, b.length - n);
+            if (k < 0) {
+                throw new EOFException("shrank while being read");
+            }
+            n += k;
+        }
+    }
+
+    /**
+     * Reads the header and index of a container, then hands its frames to
+     * the workers one by one. Offsets are longs here, unlike
+     * {@link FramedCodec.Layout}, as a file may exceed 2GB.
+     */
+    private void readContainer(Task task, ExecutorService workers, BlockingQueue<Entry> queue) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(task.source, StandardOpenOption.READ)) {
+            long size = channel.size();
+            task.sourceSize = size;
+            byte[] head = read(channel, 0, (int) Math.min(size, 64));
+            BinaryFormat.Reader r = new BinaryFormat.Reader(head, 0, head.length);
+            final FramedCodec.Layout layout = FramedCodec.Layout.readHeader(r);
+            if (layout.isSeeded()) {
+                throw new IOException("seeded containers are not supported, use FramedCodec");
+            }
+            long headerSize = r.pos;
+            if (size < headerSize + FramedCodec.FOOTER_SIZE) {
+                throw BinaryFormat.corrupt("Missing footer");
+            }
+            byte[] footer = read(channel, size - FramedCodec.FOOTER_SIZE, FramedCodec.FOOTER_SIZE);
+            if (footer[8] != FramedCodec.MAGIC_0 || footer[9] != FramedCodec.MAGIC_1) {
+                throw BinaryFormat.corrupt("Missing footer");
+            }
+            long indexOffset = BinaryFormat.readLong(footer, 0);
+            if (indexOffset < headerSize || indexOffset + 8L * layout.frameCount != size - FramedCodec.FOOTER_SIZE) {
+                throw BinaryFormat.corrupt("Bad index offset " + indexOffset);
+            }
+            byte[] index = read(channel, indexOffset, 8 * layout.frameCount);
+            task.length = layout.length;
+            task.frameCount = layout.frameCount;
+            long from = headerSize;
+            for (int k = 0; k < layout.frameCount; k++) {
+                long offset = BinaryFormat.readLong(index, 8 * k);
+                long next = k + 1 < layout.frameCount ? BinaryFormat.readLong(index, 8 * (k + 1)) : indexOffset;
+                if (offset < from || next < offset || next > indexOffset || next - offset > Integer.MAX_VALUE) {
+                    throw BinaryFormat.corrupt("Bad frame offset " + offset);
+                }
+                from = offset;
+                final byte[] frame = read(channel, offset, (int) (next - offset));
+                final int frameLength = layout.frameLength(k);
+                queue.put(new Entry(task, workers.submit(new Callable<byte[]>() {
+
+                    @Override
+                    public byte[] call() {
+                        BMDiffCodec codec = borrowCodec();
+                        try {
+                            byte[] dec = codec.decode(frame);
+                            if (dec.length != frameLength) {
+                                throw BinaryFormat.corrupt("Frame decoded to " + dec.length + " bytes, not " + frameLength);
+                            }
+                            return dec;
+                        } finally {
+                            idleCodecs.offer(codec);
+                        }
+                    }
+                })));
+            }
+        }
+    }
+
+    private static byte[] read(FileChannel channel, long position, int n) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(n);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new EOFException("Truncated container");
+            }
+        }
+        return buf.array();
+    }
+
+    /**
+     * Codecs are pooled rather than kept per thread, virtual threads are
+     * never reused. Only --stats attaches the counters.
+     */
+    private BMDiffCodec borrowCodec() {
+        BMDiffCodec codec = idleCodecs.poll();
+        if (codec == null) {
+            codec = new BMDiffCodec(blockLen);
+            if (printStats) {
+                codec.setListener(stats);
+            }
+        }
+        return codec;
+    }
+
+    /**
+     * Takes the entries in order until the end marker.
+     */
+    private void write(BlockingQueue<Entry> queue, long startTime) throws InterruptedException {
+        Output output = null;
+        long lastProgress = startTime;
+        for (;;) {
+            Entry entry = queue.take();
+            if (entry == Entry.END) {
+                return;
+            }
+            Task task = entry.task;
+            if (output == null || output.task != task) {
+                output = open(task);
+            }
+            if (entry.frame != null) {
+                if (task.error == null) {
+                    try {
+                        output.writeFrame(entry.frame.get());
+                    } catch (ExecutionException e) {
+                        task.error = e.getCause();
+                    } catch (IOException e) {
+                        task.error = e;
+                    }
+                } else {
+                    entry.frame.cancel(false);
+                }
+                continue;
+            }
+            if (task.error == null) {
+                try {
+                    output.finish();
+                } catch (IOException e) {
+                    task.error = e;
+                }
+            }
+            output.close();
+            if (task.error == null) {
+                done++;
+                bytesIn += task.sourceSize;
+                bytesOut += output.written;
+            } else {
+                output.delete();
+                fail(task.source, task.error);
+            }
+            output = null;
+            long now = System.nanoTime();
+            if (progress && now - lastProgress > 1000000000L) {
+                lastProgress = now;
+                long original = decompress ? bytesOut : bytesIn;
+                err.printf("\r%d/%d files, %.1f MB, %.1f MB/s", done + failed, tasks.size(), original / 1e6,
+                        original / 1e6 / ((now - startTime) / 1e9));
+            }
+        }
+    }
+
+    private Output open(Task task) {
+        Output output = new Output(task);
+        if (task.error != null) {
+            return output;
+        }
+        try {
+            Path parent = task.target.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            OutputStream stream = force
+                    ? Files.newOutputStream(task.target)
+                    : Files.newOutputStream(task.target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            output.stream = new BufferedOutputStream(stream, 1 << 16);
+            if (!decompress) {
+                ByteOutput header = new ByteOutput(32);
+                FramedCodec.writeHeader(header, 0, blockLen, frameSize, task.frameCount, task.length);
+                output.write(header.toByteArray());
+                output.offsets = new long[task.frameCount];
+            }
+        } catch (FileAlreadyExistsException e) {
+            task.error = new IOException(task.target + " exists, use --force to replace it");
+        } catch (IOException e) {
+            task.error = e;
+        }
+        return output;
+    }
+
+    private void fail(Path path, Throwable e) {
+        fail(path, e.getMessage() == null ? e.toString() : e.getMessage());
+    }
+
+    private void fail(Path path, String message) {
+        failed++;
+        err.println("bmdiff: " + path + ": " + message);
+    }
+
+    /**
+     * A file to do, filled in by the reader before its first entry is
+     * queued, so the writer sees it complete.
+     */
+    private static final class Task {
+
+        final Path source;
+        final Path target;
+        long sourceSize;
+        long length;// Of the decoded file.
+        int frameCount;
+        volatile Throwable error;
+
+        Task(Path source, Path target) {
+            this.source = source;
+            this.target = target;
+        }
+    }
+
+    /**
+     * A frame of a task or, with a null frame, the end of the task.
+     */
+    private static final class Entry {
+
+        static final Entry END = new Entry(null, null);
+        final Task task;
+        final Future<byte[]> frame;
+
+        Entry(Task task, Future<byte[]> frame) {
+            this.task = task;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * The file being written, for a container also the frame offsets.
+     */
+    private static final class Output {
+
+        final Task task;
+        OutputStream stream;
+        long written;
+        long[] offsets;
+        int frames;
+
+        Output(Task task) {
+            this.task = task;
+        }
+
+        void write(byte[] b) throws IOException {
+            stream.write(b);
+            written += b.length;
+        }
+
+        /**
+         * Writes a frame, noting where it starts when writing a container.
+         */
+        void writeFrame(byte[] b) throws IOException {
+            if (offsets != null) {
+                if (frames == offsets.length) {
+                    throw new IOException("more frames than the " + offsets.length + " expected");
+                }
+                offsets[frames++] = written;
+            }
+            write(b);
+        }
+
+        /**
+         * Writes the index and footer of a container.
+         */
+        void finish() throws IOException {
+            if (offsets != null) {
+                if (frames != offsets.length) {
+                    throw new IOException("wrote " + frames + " of " + offsets.length + " frames");
+                }
+                ByteOutput tail = new ByteOutput(8 * offsets.length + FramedCodec.FOOTER_SIZE);
+                for (long offset : offsets) {
+                    tail.writeLong(offset);
+                }
+                tail.writeLong(written);
+                tail.write(FramedCodec.MAGIC_0);
+                tail.write(FramedCodec.MAGIC_1);
+                offsets = null;
+                write(tail.toByteArray());
+            }
+            stream.flush();
+        }
+
+        void close() {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    if (task.error == null) {
+                        task.error = e;
+                    }
+                }
+            }
+        }
+
+        void delete() {
+            if (stream != null) {
+                try {
+                    Files.deleteIfExists(task.target);
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+/**
+ * Fingerprints of the blocks of a reference text which an encoding may copy
+ * from in addition to its own input. Built once and never modified afterwards,
+ * so many encoders on many threads can look it up at the same time, which is
+ * what makes encoding many versions against the same base cheap: the base is
+ * indexed once instead of once per target.
+ *
+ * @author srikchan
+ */
+public final class BaseIndex {
+
+    final byte[] data;
+    final int off;
+    final int len;
+    final int blockLen;
+    final RollingHash.Kind hashKind;
+    final FingerPrintTable fingerPrintTable;
+
+    private BaseIndex(byte[] data, int off, int len, RollingHash hash, FingerPrintTable fingerPrintTable) {
+        this.data = data;
+        this.off = off;
+        this.len = len;
+        this.blockLen = hash.blockLen();
+        this.hashKind = hash.kind();
+        this.fingerPrintTable = fingerPrintTable;
+    }
+
+    /**
+     * Indexes a private copy of the base so later changes to the caller's
+     * array cannot corrupt encodings.
+     *
+     * @param base
+     * @param blockLen must match the block length of the encoding codec.
+     * @return
+     */
+    public static BaseIndex build(byte[] base, int blockLen) {
+        return build(base, blockLen, RollingHash.DEFAULT);
+    }
+
+    /**
+     * @param base
+     * @param blockLen
+     * @param hashKind must match the fingerprints of the encoding codec.
+     * @return
+     */
+    public static BaseIndex build(byte[] base, int blockLen, RollingHash.Kind hashKind) {
+        return build(base, blockLen, hashKind, null);
+    }
+
+    /**
+     * @param base
+     * @param blockLen
+     * @param hashKind
+     * @param anchors which blocks to index, null for the ones at multiples of
+     * blockLen. Need not match the encoding codec, every position of the
+     * target is looked up either way.
+     * @return
+     */
+    public static BaseIndex build(byte[] base, int blockLen, RollingHash.Kind hashKind, ContentAnchors anchors) {
+        if (blockLen < 1) {
+            throw new IllegalArgumentException("Block length must be positive " + blockLen);
+        }
+        byte[] copy = base.clone();
+        return build(copy, 0, copy.length, hashKind.create(blockLen), anchors);
+    }
+
+    public int length() {
+        return len;
+    }
+
+    public int blockLen() {
+        return blockLen;
+    }
+
+    public RollingHash.Kind hashKind() {
+        return hashKind;
+    }
+
+    /**
+     * Indexes the blocks of data starting at multiples of blockLen, the stored
+     * indices are relative to off. The data is not copied.
+     */
+    static BaseIndex build(byte[] data, int off, int len, RollingHash hash) {
+        return build(data, off, len, hash, null);
+    }
+
+    /**
+     * Same with the blocks chosen by anchors when not null.
+     */
+    static BaseIndex build(byte[] data, int off, int len, RollingHash hash, ContentAnchors anchors) {
+        int blockLen = hash.blockLen();
+        if (anchors == null) {
+            LongIntHashTable table = new LongIntHashTable(len / blockLen);
+            for (int i = 0; i + blockLen <= len; i += blockLen) {
+                table.putIfAbsent(hash.hash(data, off + i), i);
+            }
+            return new BaseIndex(data, off, len, hash, table);
+        }
+        LongIntHashTable table = new LongIntHashTable(len / anchors.avgGap());
+        if (len >= blockLen) {
+            long fingerPrint = hash.hash(data, off);
+            int next = 0;
+            int force = anchors.maxGap();
+            for (int i = 0;;) {
+                if (i >= next && (i >= force || anchors.isAnchor(fingerPrint))) {
+                    table.putIfAbsent(fingerPrint, i);
+                    next = i + anchors.minGap();
+                    force = i + anchors.maxGap();
+                }
+                if (++i + blockLen > len) {
+                    break;
+                }
+                fingerPrint = hash.roll(fingerPrint, data[off + i - 1] & 0xFF, data[off + i + blockLen - 1] & 0xFF);
+            }
+        }
+        return new BaseIndex(data, off, len, hash, table);
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.util.List;
+
+/**
+ * Encodes many small records, such as the cells of a storage block, as one
+ * unit. Encoded one at a time a record of a few hundred bytes finds hardly
+ * any repeat, the redundancy is between records, so here the records are
+ * encoded back to back with one fingerprint index and every record may copy
+ * from the ones before it.
+ *
+ * <pre>
+ * header : 'B' 'R' version flags varint(recordCount)
+ * sizes  : recordCount x varint(record length)
+ * body   : one {@link BinaryFormat} encoding of the records back to back
+ * </pre>
+ *
+ * The sizes give the offset of every record in the decoded body, so
+ * {@link #decode(byte[], int)} decodes the body only up to the end of the
+ * record asked for, a cost proportional to that offset rather than to the
+ * whole batch, and {@link #decodeAll(byte[])} decodes it once and splits it.
+ *
+ * The encoding options (block length, hash, anchors, listener...) are those
+ * of the wrapped {@link BMDiffCodec}, and like it an instance is not thread
+ * safe.
+ *
+ * @author srikchan
+ */
+public class BatchCodec {
+
+    static final byte MAGIC_0 = 'B';
+    static final byte MAGIC_1 = 'R';
+    static final int VERSION = 1;
+    private final BMDiffCodec codec;
+    private byte[] concat = new byte[0];
+
+    /**
+     * @param blockLen a positive length or {@link BMDiffCodec#AUTO}, small
+     * records usually do best with short blocks.
+     */
+    public BatchCodec(int blockLen) {
+        this(new BMDiffCodec(blockLen));
+    }
+
+    /**
+     * @param codec does the encoding, configured as needed.
+     */
+    public BatchCodec(BMDiffCodec codec) {
+        this.codec = codec;
+    }
+
+    public byte[] encode(List<byte[]> records) {
+        return encode(records.toArray(new byte[records.size()][]));
+    }
+
+    public byte[] encode(byte[][] records) {
+        long total = 0;
+        for (byte[] record : records) {
+            total += record.length;
+        }
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Batch of " + total + " bytes does not fit an array");
+        }
+        if (concat.length < total) {
+            concat = new byte[(int) total];
+        }
+        int pos = 0;
+        for (byte[] record : records) {
+            System.arraycopy(record, 0, concat, pos, record.length);
+            pos += record.length;
+        }
+        byte[] body = codec.encode(concat, 0, pos);
+        ByteOutput out = new ByteOutput(body.length + 16 + 2 * records.length);
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(VERSION);
+        out.write(0);
+        out.writeVarInt(records.length);
+        for (byte[] record : records) {
+            out.writeVarInt(record.length);
+        }
+        out.write(body, 0, body.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param enc
+     * @return the number of records in the batch.
+     */
+    public static int recordCount(byte[] enc) {
+        return Layout.read(enc).offsets.length - 1;
+    }
+
+    /**
+     * Decodes record index, and the records before it which it may copy
+     * from, but none after it.
+     *
+     * @param enc
+     * @param index from 0 to {@link #recordCount(byte[])} - 1.
+     * @return
+     */
+    public byte[] decode(byte[] enc, int index) {
+        Layout layout = Layout.read(enc);
+        if (index < 0 || index >= layout.offsets.length - 1) {
+            throw new IndexOutOfBoundsException("Record " + index + " of " + (layout.offsets.length - 1));
+        }
+        int end = layout.offsets[index + 1];
+        byte[] prefix = layout.decodeBody(enc, end);
+        byte[] record = new byte[end - layout.offsets[index]];
+        System.arraycopy(prefix, layout.offsets[index], record, 0, record.length);
+        return record;
+    }
+
+    /**
+     * @param enc
+     * @return every record, in the order they were encoded.
+     */
+    public byte[][] decodeAll(byte[] enc) {
+        Layout layout = Layout.read(enc);
+        int count = layout.offsets.length - 1;
+        byte[] body = layout.decodeBody(enc, layout.offsets[count]);
+        byte[][] records = new byte[count][];
+        for (int k = 0; k < count; k++) {
+            records[k] = new byte[layout.offsets[k + 1] - layout.offsets[k]];
+            System.arraycopy(body, layout.offsets[k], records[k], 0, records[k].length);
+        }
+        return records;
+    }
+
+    /**
+     * Header and record offsets of an encoded batch.
+     */
+    static final class Layout {
+
+        /**
+         * Offset in the decoded body of every record plus the end of the
+         * last.
+         */
+        int[] offsets;
+        int bodyOff;
+
+        static Layout read(byte[] enc) {
+            BinaryFormat.Reader r = new BinaryFormat.Reader(enc, 0, enc.length);
+            if (r.readByte() != MAGIC_0 || r.readByte() != MAGIC_1) {
+                throw BinaryFormat.corrupt("Not a BMDiff record batch");
+            }
+            int version = r.readByte();
+            if (version != VERSION) {
+                throw BinaryFormat.corrupt("Unsupported version " + version);
+            }
+            r.readByte();// No flags yet.
+            int count = r.readVarInt();
+            if (count > r.end - r.pos) {// Every size takes at least a byte.
+                throw BinaryFormat.corrupt("Record count " + count + " larger than the input");
+            }
+            Layout layout = new Layout();
+            layout.offsets = new int[count + 1];
+            for (int k = 0; k < count; k++) {
+                long next = (long) layout.offsets[k] + r.readVarInt();
+                if (next > Integer.MAX_VALUE - 8) {
+                    throw BinaryFormat.corrupt("Records add up to more than an array");
+                }
+                layout.offsets[k + 1] = (int) next;
+            }
+            layout.bodyOff = r.pos;
+            return layout;
+        }
+
+        /**
+         * @return the first n decoded bytes of the body.
+         */
+        byte[] decodeBody(byte[] enc, int n) {
+            byte[] dst = new byte[n];
+            BinaryFormat.Reader r = new BinaryFormat.Reader(enc, bodyOff, enc.length - bodyOff);
+            ByteOutput out = ByteOutput.wrap(dst, 0, n);
+            ByteDecoder.decode(r, out, null, 0, 0, n);
+            if (out.written() != n) {
+                throw BinaryFormat.corrupt("Body decoded to " + out.written() + " bytes, the records need " + n);
+            }
+            return dst;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+/**
+ * Layout of the binary encoding produced by {@link BMDiffCodec#encode(byte[])}.
+ *
+ * <pre>
+ * header : 'B' 'M' version flags varint(blockLen) [varint(window)]
+ *          [varint(baseLength)] [varlong(length)]
+ * token  : varlong(length &lt;&lt; 2 | kind) [payload]
+ *          LITERAL - length raw bytes follow.
+ *          COPY    - varint(distance), the decoded text at (pos - distance)
+ *                    of the given length, i.e the binary form of &lt;n,m&gt;.
+ *          REPEAT  - varint(distance), the block of blockLen bytes at
+ *                    (pos - distance) repeated to the given length, i.e the
+ *                    binary form of &lt;n,m|&gt;.
+ * END    : a single 0 byte (a literal of length 0).
+ * </pre>
+ *
+ * Back references are distances from the current decoded position rather than
+ * absolute indices, so they stay small and do not depend on where decoding
+ * started. No escaping is needed since literals are length prefixed.
+ *
+ * A REPEAT of length m is the same as a COPY of the first blockLen bytes
+ * followed by a COPY at distance blockLen for the rest, which is how decoders
+ * with a bounded history handle it. When FLAG_WINDOW is set no distance is
+ * bigger than window, so a decoder only needs that much history. When
+ * FLAG_BASE is set the encoding was made against a base text of baseLength
+ * bytes which logically precedes the output, distances reaching before the
+ * start of the output copy from the end of the base. When FLAG_LENGTH is set
+ * the header holds the decoded length so a decoder can size its output
+ * exactly once, the one shot encoders always set it, streams only when the
+ * length was given up front. When FLAG_CONTINUE is set (with FLAG_WINDOW and
+ * the block length and window of the stream before it) the segment continues
+ * the stream which ended just before it: its output follows that stream's and
+ * its distances may reach back into it. Only a continuation may follow the END
+ * of a stream encoding.
+ *
+ * @author srikchan
+ */
+final class BinaryFormat {
+
+    static final byte MAGIC_0 = 'B';
+    static final byte MAGIC_1 = 'M';
+    static final int VERSION = 1;
+    static final int LITERAL = 0;
+    static final int COPY = 1;
+    static final int REPEAT = 2;
+    static final int KIND_BITS = 2;
+    static final int KIND_MASK = (1 << KIND_BITS) - 1;
+    static final int END = 0;
+    static final int FLAG_WINDOW = 1;
+    static final int FLAG_BASE = 2;
+    static final int FLAG_LENGTH = 4;
+    static final int FLAG_CONTINUE = 8;
+
+    private BinaryFormat() {
+    }
+
+    static void writeHeader(ByteOutput out, int blockLen, int flags) {
+        out.ensureCapacity(4);
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(VERSION);
+        out.write(flags);
+        out.writeVarInt(blockLen);
+    }
+
+    static void writeHeader(ByteOutput out, int blockLen, int flags, int window) {
+        writeHeader(out, blockLen, flags | FLAG_WINDOW);
+        out.writeVarInt(window);
+    }
+
+    /**
+     * Header of a stream which declares its decoded length up front.
+     */
+    static void writeHeader(ByteOutput out, int blockLen, int flags, int window, long length) {
+        writeHeader(out, blockLen, flags | FLAG_LENGTH, window);
+        out.writeVarLong(length);
+    }
+
+    /**
+     * Upper bound of the encoding of len bytes without a base. Every match
+     * covers at least blockLen bytes and costs at most two 5 byte varints, and
+     * there is at most one literal tag more than there are matches.
+     */
+    static long maxEncodedLength(long len, int blockLen) {
+        return len + 15 * (len / blockLen) + 15;
+    }
+
+    static void checkHeader(int magic0, int magic1, int version, int blockLen) {
+        if (magic0 != MAGIC_0 || magic1 != MAGIC_1) {
+            throw corrupt("Not a BMDiff binary encoding");
+        }
+        if (version != VERSION) {
+            throw corrupt("Unsupported version " + version);
+        }
+        if (blockLen < 1) {
+            throw corrupt("Bad block length " + blockLen);
+        }
+    }
+
+    static void writeLiteral(ByteOutput out, byte[] in, int from, int to) {
+        if (from < to) {
+            out.writeVarLong(((long) (to - from) << KIND_BITS) | LITERAL);
+            out.write(in, from, to - from);
+        }
+    }
+
+    static void writeMatch(ByteOutput out, int kind, int distance, int length) {
+        out.writeVarLong(((long) length << KIND_BITS) | kind);
+        out.writeVarInt(distance);
+    }
+
+    static void writeEnd(ByteOutput out) {
+        out.write(END);
+    }
+
+    /**
+     * Cursor over an encoded array, keeps the read position so the varint
+     * readers do not have to return it.
+     */
+    static final class Reader {
+
+        byte[] src;
+        int pos;
+        int end;
+        int flags;
+        int blockLen;
+        int window;
+        int baseLength;
+        long length;
+
+        Reader(byte[] src, int off, int len) {
+            reset(src, off, len);
+        }
+
+        Reader() {
+        }
+
+        /**
+         * Starts reading another array so a reader can be reused.
+         */
+        final void reset(byte[] src, int off, int len) {
+            if (off < 0 || len < 0 || off + len > src.length || off + len < 0) {
+                throw new IndexOutOfBoundsException();
+            }
+            this.src = src;
+            this.pos = off;
+            this.end = off + len;
+            flags = 0;
+            blockLen = 0;
+            window = Integer.MAX_VALUE;
+            baseLength = -1;
+            length = -1;
+        }
+
+        int readByte() {
+            if (pos >= end) {
+                throw corrupt("Truncated input");
+            }
+            return src[pos++] & 0xFF;
+        }
+
+        long readVarLong() {
+            long v = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 63) {
+                    throw corrupt("Malformed varint");
+                }
+                b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+
+        int readVarInt() {
+            long v = readVarLong();
+            if (v > Integer.MAX_VALUE) {
+                throw corrupt("Value out of range " + v);
+            }
+            return (int) v;
+        }
+
+        /**
+         * Reads and validates the header into flags, blockLen, window,
+         * baseLength and length.
+         */
+        void readHeader() {
+            int magic0 = readByte();
+            int magic1 = readByte();
+            int version = readByte();
+            flags = readByte();
+            blockLen = readVarInt();
+            checkHeader(magic0, magic1, version, blockLen);
+            if ((flags & FLAG_CONTINUE) != 0) {
+                throw corrupt("Continues a stream which is missing");
+            }
+            if ((flags & FLAG_WINDOW) != 0) {
+                window = readVarInt();
+            }
+            if ((flags & FLAG_BASE) != 0) {
+                baseLength = readVarInt();
+            }
+            if ((flags & FLAG_LENGTH) != 0) {
+                length = readVarLong();
+            }
+        }
+
+        /**
+         * Reads the header of the segment after the END of a stream, which
+         * must continue it.
+         */
+        void readContinuation() {
+            int magic0 = readByte();
+            int magic1 = readByte();
+            int version = readByte();
+            int segmentFlags = readByte();
+            long b = readVarLong();
+            long w = (segmentFlags & FLAG_WINDOW) != 0 ? readVarLong() : -1;
+            checkContinuation(magic0, magic1, version, segmentFlags, b, w, blockLen, window);
+        }
+    }
+
+    /**
+     * Checks the header of a segment continuing a stream with the given block
+     * length and window.
+     */
+    static void checkContinuation(int magic0, int magic1, int version, int flags,
+            long blockLen, long window, int streamBlockLen, int streamWindow) {
+        if (magic0 != MAGIC_0 || magic1 != MAGIC_1 || (flags & FLAG_CONTINUE) == 0) {
+            throw corrupt("Trailing bytes after the end of the stream");
+        }
+        if (version != VERSION) {
+            throw corrupt("Unsupported version " + version);
+        }
+        if ((flags & FLAG_WINDOW) == 0 || (flags & (FLAG_BASE | FLAG_LENGTH)) != 0) {
+            throw corrupt("Bad continuation flags " + flags);
+        }
+        if (blockLen != streamBlockLen || window != streamWindow) {
+            throw corrupt("Continuation with block length " + blockLen + " and window " + window
+                    + " of a stream with " + streamBlockLen + " and " + streamWindow);
+        }
+    }
+
+    /**
+     * Reads what {@link ByteOutput#writeLong(long)} wrote.
+     */
+    static long readLong(byte[] src, int pos) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (src[pos + i] & 0xFF);
+        }
+        return v;
+    }
+
+    static IllegalArgumentException corrupt(String msg) {
+        return new IllegalArgumentException(msg);
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Size bounded cache of decoded blocks, keyed by a long and weighed by their
+ * decoded bytes. A {@link BlockStore} keys its blocks by their number tagged
+ * with the store, so one cache can be shared by several stores.
+ *
+ * The budget is split over stripes, each an access ordered LinkedHashMap
+ * behind its own lock, so readers of different blocks rarely wait on each
+ * other and each stripe evicts its least recently used blocks once over its
+ * share. A block larger than a share is not cached, so a small cache gets
+ * fewer stripes: each share is at least 1MB, sixteen blocks of the
+ * {@link BlockStore} default size.
+ *
+ * The hit, miss and eviction counts are kept per stripe under its lock and
+ * only summed when read, so counting adds no contention of its own.
+ *
+ * @author srikchan
+ */
+public final class BlockCache {
+
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+    private static final int MAX_STRIPES = 64;
+    static final long MIN_STRIPE_CAPACITY = 1 << 20;
+    /**
+     * Map entry and array headers charged on top of the record bytes.
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int RECORD_OVERHEAD = 16;
+    private static final int HITS = 0;
+    private static final int MISSES = 1;
+    private static final int EVICTIONS = 2;
+    private final Stripe[] stripes;
+    private final int shift;
+    private final long capacity;
+
+    /**
+     * @param capacity decoded bytes held at most, 0 caches nothing.
+     */
+    public BlockCache(long capacity) {
+        this(capacity, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param capacity decoded bytes held at most, 0 caches nothing.
+     * @param concurrency readers expected at once, rounded up to a power of
+     * two stripes (at most 64, and fewer when a share would drop under
+     * {@link #MIN_STRIPE_CAPACITY}).
+     */
+    public BlockCache(long capacity, int concurrency) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative capacity " + capacity);
+        }
+        int n = 1;
+        while (n < concurrency && n < MAX_STRIPES && capacity / (2 * n) >= MIN_STRIPE_CAPACITY) {
+            n <<= 1;
+        }
+        this.capacity = capacity;
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe(capacity / n);
+        }
+        shift = 64 - Integer.numberOfTrailingZeros(n);
+    }
+
+    private Stripe stripe(long key) {
+        return stripes.length == 1 ? stripes[0] : stripes[(int) ((key * GOLDEN) >>> shift)];
+    }
+
+    /**
+     * @param key
+     * @return the records of the block, null on a miss.
+     */
+    public byte[][] get(long key) {
+        Stripe s = stripe(key);
+        s.lock.lock();
+        try {
+            byte[][] records = s.map.get(key);
+            s.counts[records == null ? MISSES : HITS]++;
+            return records;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    /**
+     * Caches the records of a block, replacing what was cached for it, and
+     * evicts the least recently used blocks of its stripe to make room.
+     *
+     * @param key
+     * @param records
+     */
+    public void put(long key, byte[][] records) {
+        long weight = weigh(records);
+        Stripe s = stripe(key);
+        s.lock.lock();
+        try {
+            if (weight > s.capacity) {
+                return;
+            }
+            byte[][] old = s.map.put(key, records);
+            if (old != null) {
+                s.weight -= weigh(old);
+            }
+            s.weight += weight;
+            Iterator<Map.Entry<Long, byte[][]>> it = s.map.entrySet().iterator();
+            while (s.weight > s.capacity) {
+                s.weight -= weigh(it.next().getValue());
+                it.remove();
+                s.counts[EVICTIONS]++;
+            }
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    /**
+     * Drops a block, without counting an eviction.
+     *
+     * @param key
+     */
+    public void remove(long key) {
+        Stripe s = stripe(key);
+        s.lock.lock();
+        try {
+            byte[][] old = s.map.remove(key);
+            if (old != null) {
+                s.weight -= weigh(old);
+            }
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    private static long weigh(byte[][] records) {
+        long weight = ENTRY_OVERHEAD;
+        for (byte[] r : records) {
+            weight += r.length + RECORD_OVERHEAD;
+        }
+        return weight;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of stripes the capacity is split over.
+     */
+    public int stripes() {
+        return stripes.length;
+    }
+
+    /**
+     * @return decoded bytes held, as charged against the capacity.
+     */
+    public long weight() {
+        long total = 0;
+        for (Stripe s : stripes) {
+            s.lock.lock();
+            try {
+                total += s.weight;
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return total;
+    }
+
+    public long hits() {
+        return sum(HITS);
+    }
+
+    public long misses() {
+        return sum(MISSES);
+    }
+
+    public long evictions() {
+        return sum(EVICTIONS);
+    }
+
+    private long sum(int counter) {
+        long total = 0;
+        for (Stripe s : stripes) {
+            s.lock.lock();
+            try {
+                total += s.counts[counter];
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return total;
+    }
+
+    private static final class Stripe {
+
+        final ReentrantLock lock = new ReentrantLock();
+        final LinkedHashMap<Long, byte[][]> map = new LinkedHashMap<Long, byte[][]>(16, 0.75f, true);
+        final long capacity;
+        long weight;
+        final long[] counts = new long[3];
+
+        Stripe(long capacity) {
+            this.capacity = capacity;
+        }
+    }
+}
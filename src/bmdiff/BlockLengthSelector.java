@@ -0,0 +1,165 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+/**
+ * Picks the block length for an input by trial encoding a sample of it with
+ * every candidate. Small blocks find the short repeats of field heavy data
+ * like JSON, big blocks store and look up fewer fingerprints and so run
+ * faster on long repeated lines. The smallest trial output wins unless a
+ * bigger block comes within {@link #TOLERANCE} of the sampled bytes of it,
+ * i.e. costs at most that much ratio.
+ *
+ * Inputs longer than the sample size are sampled as {@link #SLICES} evenly
+ * spaced slices, each encoded on its own. The chosen length is written in the
+ * header of the encoding like any other, so decoding needs nothing extra.
+ *
+ * Not thread safe, the trial encoders are kept and reused.
+ *
+ * @author srikchan
+ */
+public final class BlockLengthSelector {
+
+    public static final int DEFAULT_SAMPLE_SIZE = 64 << 10;
+    static final int SLICES = 4;
+    /**
+     * A bigger block is preferred when its trial output is bigger than the
+     * smallest by at most this fraction of the sample.
+     */
+    static final double TOLERANCE = 0.01;
+    private final int[] candidates;
+    private final int sampleSize;
+    private final ByteEncoder[] encoders;
+    private final ByteOutput trialOut = new ByteOutput();
+    private byte[] charSample = new byte[0];
+    private long lastNanos;
+
+    /**
+     * Chooses among 8, 16, 32 and 64 from a 64KB sample.
+     */
+    public BlockLengthSelector() {
+        this(new int[]{8, 16, 32, 64}, DEFAULT_SAMPLE_SIZE);
+    }
+
+    /**
+     * @param candidates block lengths to try in increasing order.
+     * @param sampleSize bytes trial encoded per selection.
+     */
+    public BlockLengthSelector(int[] candidates, int sampleSize) {
+        if (candidates.length == 0 || sampleSize < 1) {
+            throw new IllegalArgumentException("Need candidates and a positive sample size " + sampleSize);
+        }
+        for (int i = 0; i < candidates.length; i++) {
+            if (candidates[i] < 1 || (i > 0 && candidates[i] <= candidates[i - 1])) {
+                throw new IllegalArgumentException("Candidates must be positive and increasing");
+            }
+        }
+        this.candidates = candidates.clone();
+        this.sampleSize = sampleSize;
+        this.encoders = new ByteEncoder[candidates.length];
+    }
+
+    /**
+     * @return the biggest block length this selector can choose.
+     */
+    public int maxBlockLen() {
+        return candidates[candidates.length - 1];
+    }
+
+    /**
+     * @return time taken by the last selection.
+     */
+    public long lastNanos() {
+        return lastNanos;
+    }
+
+    /**
+     * @return the block length to encode in[off, off + len) with.
+     */
+    public int select(byte[] in, int off, int len) {
+        long startTime = System.nanoTime();
+        int slices = len <= sampleSize ? 1 : SLICES;
+        return choose(in, off, len, slices, Math.min(len, sampleSize / slices), startTime);
+    }
+
+    /**
+     * Same for the legacy text format, trial encoding the low bytes of the
+     * sampled chars, close enough for mostly ASCII text. Only the slices are
+     * copied, whatever the length of the input.
+     *
+     * @return the block length to encode in[off, off + len) with.
+     */
+    public int select(char[] in, int off, int len) {
+        long startTime = System.nanoTime();
+        int slices = len <= sampleSize ? 1 : SLICES;
+        int sliceLen = Math.min(len, sampleSize / slices);
+        if (charSample.length < slices * sliceLen) {
+            charSample = new byte[slices * sliceLen];
+        }
+        for (int s = 0; s < slices; s++) {
+            int from = sliceFrom(off, len, slices, sliceLen, s);
+            for (int i = 0; i < sliceLen; i++) {
+                charSample[s * sliceLen + i] = (byte) in[from + i];
+            }
+        }
+        return choose(charSample, 0, slices * sliceLen, slices, sliceLen, startTime);
+    }
+
+    private static int sliceFrom(int off, int len, int slices, int sliceLen, int s) {
+        return slices == 1 ? off : off + (int) ((long) (len - sliceLen) * s / (slices - 1));
+    }
+
+    private int choose(byte[] in, int off, int len, int slices, int sliceLen, long startTime) {
+        long[] sizes = new long[candidates.length];
+        long best = Long.MAX_VALUE;
+        for (int c = 0; c < candidates.length; c++) {
+            ByteEncoder encoder = encoder(c);
+            for (int s = 0; s < slices; s++) {
+                int from = sliceFrom(off, len, slices, sliceLen, s);
+                trialOut.reset();
+                encoder.encode(in, from, sliceLen, trialOut);
+                sizes[c] += trialOut.size();
+            }
+            encoder.setInput(null);
+            best = Math.min(best, sizes[c]);
+        }
+        long slack = (long) ((long) slices * sliceLen * TOLERANCE);
+        int chosen = 0;
+        for (int c = candidates.length - 1; c >= 0; c--) {
+            if (sizes[c] <= best + slack) {
+                chosen = c;
+                break;
+            }
+        }
+        lastNanos = System.nanoTime() - startTime;
+        return candidates[chosen];
+    }
+
+    /**
+     * The trial encoder of a chosen length, so the caller can encode the
+     * whole input with it without building another table.
+     */
+    ByteEncoder encoderFor(int blockLen) {
+        for (int c = 0; c < candidates.length; c++) {
+            if (candidates[c] == blockLen) {
+                return encoder(c);
+            }
+        }
+        throw new IllegalArgumentException("Not a candidate block length " + blockLen);
+    }
+
+    private ByteEncoder encoder(int c) {
+        if (encoders[c] == null) {
+            encoders[c] = new ByteEncoder(candidates[c], new LongIntHashTable());
+        }
+        return encoders[c];
+    }
+}
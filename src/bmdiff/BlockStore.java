@@ -0,0 +1,454 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append only file of records, compressed a block at a time with
+ * {@link BatchCodec} so that records share the repeats between them. Reads go
+ * through a {@link BlockCache} of decoded blocks, so a hot record costs a
+ * decode only when its block was evicted.
+ *
+ * <pre>
+ * header  : 'B' 'S' version flags, int64 commit (end of the last footer)
+ * then per flush:
+ * blocks  : one {@link BatchCodec} encoding per block
+ * index   : blockCount x (int64 block offset, int64 first record)
+ * footer  : int64 recordCount, int64 indexOffset, int64 previous commit, 'B' 'S'
+ * </pre>
+ *
+ * Records are numbered from 0 in the order they are appended. They are
+ * gathered until their decoded size reaches the block size and then written
+ * as one block, {@link #flush()} writes a partial block and an index of the
+ * blocks written since the previous flush. Nothing written is overwritten
+ * but the commit in the header, moved to the new footer once the blocks and
+ * index are forced to disk, so a crash loses at most the records appended
+ * since the last flush: opening the store follows the footers back from the
+ * commit and drops whatever follows it.
+ *
+ * Appends are serialized on the store. Reads of written blocks take no lock
+ * of the store: the index is published as an immutable snapshot, blocks are
+ * read at their position in the file and decoded by a pooled codec. Two
+ * readers missing the same block both decode it.
+ *
+ * @author srikchan
+ */
+public final class BlockStore implements Closeable {
+
+    static final byte MAGIC_0 = 'B';
+    static final byte MAGIC_1 = 'S';
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 12;
+    static final int FOOTER_SIZE = 26;
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+    private static final AtomicLong STORES = new AtomicLong();
+    private final FileChannel channel;
+    private final int blockLen;
+    private final int blockSize;
+    private final BlockCache cache;
+    /**
+     * Tags the cache keys of this store's blocks, in the bits above the
+     * block number.
+     */
+    private final long cacheTag = STORES.incrementAndGet() << 32;
+    private final ConcurrentLinkedQueue<BatchCodec> idleCodecs = new ConcurrentLinkedQueue<BatchCodec>();
+    private volatile Index index;
+    // Guarded by this.
+    private final List<byte[]> pending = new ArrayList<byte[]>();
+    private long pendingBytes;
+    private long writePos;
+    private long commit;
+    private int flushedBlocks;
+    private boolean dirty;
+    private boolean closed;
+
+    /**
+     * Opens file, creating it when it does not exist, with the default block
+     * size and a BMDiffOutputStream block length.
+     *
+     * @param file
+     * @param cacheBytes decoded bytes the cache may hold.
+     * @throws IOException
+     */
+    public BlockStore(Path file, long cacheBytes) throws IOException {
+        this(file, BMDiffOutputStream.DEFAULT_BLOCK_LEN, DEFAULT_BLOCK_SIZE, new BlockCache(cacheBytes));
+    }
+
+    /**
+     * @param file opened, or created when it does not exist.
+     * @param blockLen block length of the encoder, positive or
+     * {@link BMDiffCodec#AUTO}.
+     * @param blockSize decoded bytes gathered into a block before it is
+     * written, larger blocks compress better and cost more per miss.
+     * @param cache may be shared by several stores, each tags its keys.
+     * @throws IOException
+     */
+    public BlockStore(Path file, int blockLen, int blockSize, BlockCache cache) throws IOException {
+        if (blockLen < 1 && blockLen != BMDiffCodec.AUTO) {
+            throw new IllegalArgumentException("Bad block length " + blockLen);
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size " + blockSize + " not positive");
+        }
+        this.blockLen = blockLen;
+        this.blockSize = blockSize;
+        this.cache = cache;
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.put(MAGIC_0).put(MAGIC_1).put((byte) VERSION).put((byte) 0).putLong(0);
+                header.flip();
+                writeFully(header, 0);
+                index = new Index(new long[1], new long[1], new long[1], 0);
+                writePos = HEADER_SIZE;
+                dirty = true;
+                flush();
+            } else {
+                index = readIndex();
+                if (channel.size() > commit) {// Written after the last flush.
+                    channel.truncate(commit);
+                }
+                writePos = commit;
+                flushedBlocks = index.blocks;
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private Index readIndex() throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE + FOOTER_SIZE) {
+            throw corrupt("File of " + size + " bytes too short");
+        }
+        ByteBuffer header = readFully(0, HEADER_SIZE);
+        if (header.get(0) != MAGIC_0 || header.get(1) != MAGIC_1) {
+            throw corrupt("Not a BMDiff block store");
+        }
+        if (header.get(2) != VERSION) {
+            throw corrupt("Unsupported version " + header.get(2));
+        }
+        commit = header.getLong(4);
+        if (commit < HEADER_SIZE + FOOTER_SIZE || commit > size) {
+            throw corrupt("Bad commit " + commit + " of " + size + " bytes");
+        }
+        // The index segments, last flush first.
+        List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+        List<long[]> footers = new ArrayList<long[]>();
+        long count = 0;
+        for (long end = commit; end != 0;) {
+            ByteBuffer footer = readFully(end - FOOTER_SIZE, FOOTER_SIZE);
+            long records = footer.getLong(0);
+            long indexOffset = footer.getLong(8);
+            long previous = footer.getLong(16);
+            if (footer.get(24) != MAGIC_0 || footer.get(25) != MAGIC_1) {
+                throw corrupt("Missing footer at " + (end - FOOTER_SIZE));
+            }
+            long blocksFrom = previous == 0 ? HEADER_SIZE : previous;
+            if (indexOffset < blocksFrom || indexOffset > end - FOOTER_SIZE
+                    || (end - FOOTER_SIZE - indexOffset) % 16 != 0 || records < 0
+                    || (previous != 0 && previous < HEADER_SIZE + FOOTER_SIZE)) {
+                throw corrupt("Bad footer at " + (end - FOOTER_SIZE));
+            }
+            count += (end - FOOTER_SIZE - indexOffset) / 16;
+            if (count > Integer.MAX_VALUE - 8) {
+                throw corrupt("Block count " + count + " out of range");
+            }
+            segments.add(readFully(indexOffset, (int) (end - FOOTER_SIZE - indexOffset)));
+            footers.add(new long[]{records, indexOffset, blocksFrom});
+            end = previous;
+        }
+        int blocks = (int) count;
+        long[] offsets = new long[blocks + 1];
+        long[] ends = new long[blocks + 1];
+        long[] first = new long[blocks + 1];
+        int k = 0;
+        long records = 0;
+        for (int seg = segments.size() - 1; seg >= 0; seg--) {
+            ByteBuffer entries = segments.get(seg);
+            long[] footer = footers.get(seg);
+            int n = entries.capacity() / 16;
+            for (int i = 0; i < n; i++) {
+                offsets[k + i] = entries.getLong(i * 16);
+                first[k + i] = entries.getLong(i * 16 + 8);
+                ends[k + i] = i + 1 < n ? entries.getLong(i * 16 + 16) : footer[1];
+            }
+            // Blocks follow the previous footer back to back, up to the index.
+            if (n > 0 ? offsets[k] != footer[2] || first[k] != records : footer[1] != footer[2]) {
+                throw corrupt("Bad index entry " + k);
+            }
+            k += n;
+            if (footer[0] < records) {
+                throw corrupt("Bad record count " + footer[0]);
+            }
+            records = footer[0];
+        }
+        first[blocks] = records;
+        for (k = 0; k < blocks; k++) {
+            if (offsets[k] >= ends[k] || first[k] >= first[k + 1]
+                    || ends[k] - offsets[k] > Integer.MAX_VALUE - 8) {
+                throw corrupt("Bad index entry " + k);
+            }
+        }
+        return new Index(offsets, ends, first, blocks);
+    }
+
+    /**
+     * Appends a record, which is written once its block fills.
+     *
+     * @param record kept by the store until its block is written, not copied.
+     * @return the number of the record.
+     * @throws IOException
+     */
+    public synchronized long append(byte[] record) throws IOException {
+        ensureOpen();
+        long id = index.records() + pending.size();
+        pending.add(record);
+        pendingBytes += record.length;
+        dirty = true;
+        if (pendingBytes >= blockSize) {
+            writeBlock();
+        }
+        return id;
+    }
+
+    /**
+     * @param id
+     * @return a copy of the record.
+     * @throws IOException
+     * @throws IndexOutOfBoundsException when no such record was appended.
+     */
+    public byte[] get(long id) throws IOException {
+        Index snapshot = index;
+        if (id < 0 || id >= snapshot.records()) {
+            synchronized (this) {
+                ensureOpen();
+                snapshot = index;
+                long p = id - snapshot.records();
+                if (p >= 0 && p < pending.size()) {
+                    return pending.get((int) p).clone();
+                }
+                if (p >= 0 || id < 0) {
+                    throw new IndexOutOfBoundsException("Record " + id + " of " + (snapshot.records() + pending.size()));
+                }
+            }
+        }
+        int block = snapshot.blockOf(id);
+        byte[][] records = cache.get(cacheTag | block);
+        if (records == null) {
+            records = readBlock(snapshot, block);
+            cache.put(cacheTag | block, records);
+        }
+        return records[(int) (id - snapshot.first[block])].clone();
+    }
+
+    private byte[][] readBlock(Index snapshot, int block) throws IOException {
+        long from = snapshot.offsets[block];
+        byte[] enc = readFully(from, (int) (snapshot.ends[block] - from)).array();
+        BatchCodec codec = idleCodecs.poll();
+        if (codec == null) {
+            codec = new BatchCodec(blockLen);
+        }
+        byte[][] records;
+        try {
+            records = codec.decodeAll(enc);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt BMDiff store: block " + block, e);
+        } finally {
+            idleCodecs.offer(codec);
+        }
+        if (records.length != snapshot.first[block + 1] - snapshot.first[block]) {
+            throw corrupt("Block " + block + " holds " + records.length + " records");
+        }
+        return records;
+    }
+
+    /**
+     * @return the number of records appended, written or not.
+     */
+    public synchronized long size() {
+        return index.records() + pending.size();
+    }
+
+    /**
+     * @return the number of blocks written.
+     */
+    public int blockCount() {
+        return index.blocks;
+    }
+
+    public BlockCache cache() {
+        return cache;
+    }
+
+    /**
+     * Writes the records not yet written as a block, then the index of the
+     * blocks since the last flush and a footer, and commits them.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        ensureOpen();
+        if (!pending.isEmpty()) {
+            writeBlock();
+        }
+        if (dirty) {
+            writeIndex();
+            dirty = false;
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        BatchCodec codec = idleCodecs.poll();
+        if (codec == null) {
+            codec = new BatchCodec(blockLen);
+        }
+        byte[] enc;
+        try {
+            enc = codec.encode(pending);
+        } finally {
+            idleCodecs.offer(codec);
+        }
+        writeFully(ByteBuffer.wrap(enc), writePos);
+        Index old = index;
+        long[] offsets = old.offsets;
+        long[] ends = old.ends;
+        long[] first = old.first;
+        int blocks = old.blocks + 1;
+        if (blocks >= offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            ends = Arrays.copyOf(ends, ends.length * 2);
+            first = Arrays.copyOf(first, first.length * 2);
+        }
+        offsets[old.blocks] = writePos;
+        writePos += enc.length;
+        ends[old.blocks] = writePos;
+        first[blocks] = old.records() + pending.size();
+        // Entries before old.blocks never change and first[old.blocks] stays
+        // the record count of the old snapshot, whose readers look no further.
+        index = new Index(offsets, ends, first, blocks);
+        pending.clear();
+        pendingBytes = 0;
+    }
+
+    private void writeIndex() throws IOException {
+        Index snapshot = index;
+        ByteBuffer out = ByteBuffer.allocate((snapshot.blocks - flushedBlocks) * 16 + FOOTER_SIZE);
+        for (int k = flushedBlocks; k < snapshot.blocks; k++) {
+            out.putLong(snapshot.offsets[k]);
+            out.putLong(snapshot.first[k]);
+        }
+        out.putLong(snapshot.records());
+        out.putLong(writePos);
+        out.putLong(commit);
+        out.put(MAGIC_0);
+        out.put(MAGIC_1);
+        out.flip();
+        writeFully(out, writePos);
+        writePos += out.capacity();
+        // The new footer must be on disk before the header points at it.
+        channel.force(false);
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putLong(0, writePos);
+        writeFully(header, 4);
+        channel.force(false);
+        commit = writePos;
+        flushedBlocks = snapshot.blocks;
+    }
+
+    /**
+     * Flushes and closes the file. Reads in progress may fail.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            try {
+                flush();
+            } finally {
+                closed = true;
+                channel.close();
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Store closed");
+        }
+    }
+
+    private void writeFully(ByteBuffer src, long pos) throws IOException {
+        while (src.hasRemaining()) {
+            pos += channel.write(src, pos);
+        }
+    }
+
+    private ByteBuffer readFully(long pos, int len) throws IOException {
+        ByteBuffer dst = ByteBuffer.allocate(len);
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, pos + dst.position());
+            if (n < 0) {
+                throw new EOFException("Unexpected end of BMDiff store at " + (pos + dst.position()));
+            }
+        }
+        return dst;
+    }
+
+    private static IOException corrupt(String msg) {
+        return new IOException("Corrupt BMDiff store: " + msg);
+    }
+
+    /**
+     * Offsets, ends and first record of blocks [0, blocks), first[blocks] is
+     * the record count.
+     */
+    private static final class Index {
+
+        final long[] offsets;
+        final long[] ends;
+        final long[] first;
+        final int blocks;
+        private final long records;
+
+        Index(long[] offsets, long[] ends, long[] first, int blocks) {
+            this.offsets = offsets;
+            this.ends = ends;
+            this.first = first;
+            this.blocks = blocks;
+            this.records = first[blocks];
+        }
+
+        long records() {
+            return records;
+        }
+
+        int blockOf(long id) {
+            int k = Arrays.binarySearch(first, 0, blocks, id);
+            return k >= 0 ? k : -k - 2;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.util.Arrays;
+
+/**
+ * Fingerprint table which never uses more than a byte budget, whatever the
+ * size of the input. It is laid out like {@link LongIntHashTable} and grows
+ * the same way until the budget allows no more, after which the policy
+ * decides what is kept. The old arrays are live while the last step copies
+ * them, so the final size is two thirds of the budget at most:
+ *
+ * <ul>
+ * <li>{@link Policy#SAMPLE} keeps a spread out sample of the blocks. Only
+ * fingerprints whose hash has its low log2(stride) bits clear are stored, and
+ * every time the table fills the stride doubles and the entries no longer in
+ * the sample are dropped. The choice depends on the content alone, so both
+ * occurrences of a repeat agree on which of its blocks are anchors.</li>
+ * <li>{@link Policy#EVICT_OLDEST} keeps the most recent blocks, the oldest
+ * entry is removed to make room for a new one.</li>
+ * </ul>
+ *
+ * What was not stored or was dropped is counted, which is the ratio given up
+ * for the bounded memory. A single instance is not thread safe.
+ *
+ * @author srikchan
+ */
+public final class BoundedFingerPrintTable implements FingerPrintTable {
+
+    public enum Policy {
+
+        SAMPLE, EVICT_OLDEST
+    }
+    private static final int MIN_CAPACITY = 16;
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+    private final Policy policy;
+    private final int maxCapacity;
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int shift;
+    private int size;
+    /**
+     * Insertion order ring for EVICT_OLDEST, fifoCount keys from fifoHead.
+     */
+    private long[] fifo;
+    private int fifoHead;
+    private int fifoCount;
+    private int stride = 1;
+    private long skipped;
+    private long evicted;
+
+    /**
+     * @param budgetBytes upper bound of the memory held by the table.
+     * @param policy what to do once the budget is used up.
+     */
+    public BoundedFingerPrintTable(long budgetBytes, Policy policy) {
+        this.policy = policy;
+        int cap = MIN_CAPACITY;
+        // Growing to cap holds cap / 2 old slots as well as the cap new ones.
+        while (cap < (1 << 30) && 3L * cap * slotBytes(policy) <= budgetBytes) {
+            cap <<= 1;
+        }
+        maxCapacity = cap;
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Key, value and for EVICT_OLDEST half a ring entry (the table is at most
+     * half full).
+     */
+    private static int slotBytes(Policy policy) {
+        return policy == Policy.EVICT_OLDEST ? 16 : 12;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NOT_FOUND);
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        size = 0;
+        if (policy == Policy.EVICT_OLDEST) {
+            fifo = new long[capacity / 2];
+            fifoHead = 0;
+            fifoCount = 0;
+        }
+    }
+
+    private int slot(long key) {
+        return (int) ((key * GOLDEN) >>> shift);
+    }
+
+    private boolean sampled(long key) {
+        return ((int) ((key * GOLDEN) >>> 24) & (stride - 1)) == 0;
+    }
+
+    @Override
+    public int get(long fingerPrint) {
+        int i = slot(fingerPrint);
+        int v;
+        while ((v = values[i]) != NOT_FOUND) {
+            if (keys[i] == fingerPrint) {
+                return v;
+            }
+            i = (i + 1) & mask;
+        }
+        return NOT_FOUND;
+    }
+
+    @Override
+    public int get(long fingerPrint, int[] candidates) {
+        int index = get(fingerPrint);
+        if (index == NOT_FOUND || candidates.length == 0) {
+            return 0;
+        }
+        candidates[0] = index;
+        return 1;
+    }
+
+    @Override
+    public void putIfAbsent(long fingerPrint, int index) {
+        insert(fingerPrint, index, false);
+    }
+
+    @Override
+    public void put(long fingerPrint, int index) {
+        insert(fingerPrint, index, true);
+    }
+
+    private void insert(long fingerPrint, int index, boolean replace) {
+        if (stride > 1 && !sampled(fingerPrint)) {
+            skipped++;
+            return;
+        }
+        int i = slot(fingerPrint);
+        while (values[i] != NOT_FOUND) {
+            if (keys[i] == fingerPrint) {
+                if (replace) {
+                    values[i] = index;
+                }
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        if (size + 1 > keys.length / 2) {
+            if (keys.length < maxCapacity) {
+                grow();
+            } else if (policy == Policy.SAMPLE) {
+                do {
+                    stride <<= 1;
+                    thin();
+                } while (size + 1 > keys.length / 2);
+                if (!sampled(fingerPrint)) {
+                    skipped++;
+                    return;
+                }
+            } else {
+                remove(fifo[fifoHead]);
+                fifoHead = (fifoHead + 1) % fifo.length;
+                fifoCount--;
+                evicted++;
+            }
+            insert(fingerPrint, index, replace);
+            return;
+        }
+        keys[i] = fingerPrint;
+        values[i] = index;
+        size++;
+        if (fifo != null) {
+            fifo[(fifoHead + fifoCount++) % fifo.length] = fingerPrint;
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        long[] oldFifo = fifo;
+        int oldHead = fifoHead;
+        int oldCount = fifoCount;
+        allocate(oldKeys.length << 1);
+        reinsert(oldKeys, oldValues);
+        if (oldFifo != null) {
+            for (int k = 0; k < oldCount; k++) {
+                fifo[k] = oldFifo[(oldHead + k) % oldFifo.length];
+            }
+            fifoCount = oldCount;
+        }
+    }
+
+    /**
+     * Drops the entries which fell out of the sample after stride doubled. A
+     * removal may move a later entry into slot j, so j only advances past a
+     * kept entry.
+     */
+    private void thin() {
+        int before = size;
+        for (int j = 0; j < keys.length;) {
+            if (values[j] != NOT_FOUND && !sampled(keys[j])) {
+                remove(keys[j]);
+            } else {
+                j++;
+            }
+        }
+        evicted += before - size;
+    }
+
+    /**
+     * Deletes a key, moving back the entries of its probe run which would no
+     * longer be reachable past the emptied slot.
+     */
+    private void remove(long key) {
+        int i = slot(key);
+        while (values[i] != NOT_FOUND) {
+            if (keys[i] == key) {
+                size--;
+                int hole = i;
+                for (int j = (i + 1) & mask; values[j] != NOT_FOUND; j = (j + 1) & mask) {
+                    int home = slot(keys[j]);
+                    // Move j into the hole unless its home lies cyclically in (hole, j].
+                    if (((j - home) & mask) >= ((j - hole) & mask)) {
+                        keys[hole] = keys[j];
+                        values[hole] = values[j];
+                        hole = j;
+                    }
+                }
+                values[hole] = NOT_FOUND;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Done in place like {@link #thin()}, so a rebase stays within the budget.
+     */
+    @Override
+    public void rebase(int shift) {
+        for (int j = 0; j < keys.length;) {
+            if (values[j] != NOT_FOUND && values[j] < shift) {
+                remove(keys[j]);
+            } else {
+                j++;
+            }
+        }
+        for (int j = 0; j < keys.length; j++) {
+            if (values[j] != NOT_FOUND) {
+                values[j] -= shift;
+            }
+        }
+        if (fifo != null) {
+            int count = 0;
+            for (int k = 0; k < fifoCount; k++) {
+                long key = fifo[(fifoHead + k) % fifo.length];
+                if (get(key) != NOT_FOUND) {
+                    fifo[(fifoHead + count++) % fifo.length] = key;
+                }
+            }
+            fifoCount = count;
+        }
+    }
+
+    private void reinsert(long[] oldKeys, int[] oldValues) {
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] != NOT_FOUND) {
+                int i = slot(oldKeys[j]);
+                while (values[i] != NOT_FOUND) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+                size++;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Also starts sampling every block again and zeroes the counters.
+     *
+     * @param capHint
+     */
+    @Override
+    public void reset(int capHint) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < maxCapacity && capacity / 2 < capHint) {
+            capacity <<= 1;
+        }
+        if (capacity == keys.length) {
+            Arrays.fill(values, NOT_FOUND);
+            size = 0;
+            fifoHead = 0;
+            fifoCount = 0;
+        } else {
+            allocate(capacity);
+        }
+        stride = 1;
+        skipped = 0;
+        evicted = 0;
+    }
+
+    /**
+     * @return bytes held by the arrays, at most two thirds of the budget.
+     */
+    public long memoryBytes() {
+        return keys.length * 12L + (fifo == null ? 0 : fifo.length * 8L);
+    }
+
+    /**
+     * @return blocks not stored since the last reset because they were out of
+     * the sample.
+     */
+    public long skipped() {
+        return skipped;
+    }
+
+    /**
+     * @return entries dropped since the last reset to stay within the budget.
+     */
+    public long evicted() {
+        return evicted;
+    }
+}
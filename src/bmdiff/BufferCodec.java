@@ -0,0 +1,147 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+/**
+ * Encodes and decodes between caller supplied arrays. Unlike
+ * {@link BMDiffCodec} one instance can be shared by any number of threads,
+ * each thread gets its own encoder, fingerprint table and reader which are
+ * reused from call to call, so once warmed up an encode or decode allocates
+ * nothing. The output is the same {@link BinaryFormat} as
+ * {@link BMDiffCodec#encode(byte[])}.
+ *
+ * <pre>
+ * byte[] enc = new byte[codec.maxEncodedLength(len)];
+ * int n = codec.encode(src, 0, len, enc, 0);
+ * int m = codec.decode(enc, 0, n, dst, 0);
+ * </pre>
+ *
+ * @author srikchan
+ */
+public final class BufferCodec {
+
+    private final int blockLen;
+    private volatile CodecListener listener;
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch(blockLen);
+        }
+    };
+
+    public BufferCodec(int blockLen) {
+        if (blockLen < 1) {
+            throw new IllegalArgumentException("Block length must be positive " + blockLen);
+        }
+        this.blockLen = blockLen;
+    }
+
+    public int blockLen() {
+        return blockLen;
+    }
+
+    /**
+     * @param listener null turns reporting off, called on the encoding or
+     * decoding thread so it must be thread safe, {@link CodecStats} is.
+     */
+    public void setListener(CodecListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return size of an output array which always fits the encoding of len
+     * bytes.
+     */
+    public int maxEncodedLength(int len) {
+        if (len < 0) {
+            throw new IllegalArgumentException("Negative length " + len);
+        }
+        long max = BinaryFormat.maxEncodedLength(len, blockLen);
+        if (max > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Encoding of " + len + " bytes may not fit an array");
+        }
+        return (int) max;
+    }
+
+    /**
+     * Encodes len bytes of src into dst starting at dstOff.
+     *
+     * @return the number of bytes written.
+     * @throws IllegalArgumentException when the encoding does not fit, an
+     * array of {@link #maxEncodedLength(int)} bytes always does.
+     */
+    public int encode(byte[] src, int srcOff, int len, byte[] dst, int dstOff) {
+        if (srcOff < 0 || len < 0 || srcOff + len > src.length || srcOff + len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        CodecListener listener = this.listener;
+        long startTime = listener == null ? 0 : System.nanoTime();
+        Scratch s = scratch.get();
+        s.out.rewrap(dst, dstOff, dst.length - dstOff);
+        try {
+            s.encoder.encode(src, srcOff, len, s.out);
+        } finally {
+            s.encoder.setInput(null);// Do not pin the caller's array.
+        }
+        int n = s.out.written();
+        if (listener != null) {
+            s.call.clear(true);
+            s.encoder.collect(s.call);
+            report(listener, s.call, startTime, len, n);
+        }
+        return n;
+    }
+
+    /**
+     * Decodes len bytes of src into dst starting at dstOff.
+     *
+     * @return the number of bytes written.
+     * @throws IllegalArgumentException when src is corrupt or the decoded
+     * bytes do not fit dst.
+     */
+    public int decode(byte[] src, int srcOff, int len, byte[] dst, int dstOff) {
+        CodecListener listener = this.listener;
+        long startTime = listener == null ? 0 : System.nanoTime();
+        Scratch s = scratch.get();
+        s.reader.reset(src, srcOff, len);
+        s.out.rewrap(dst, dstOff, dst.length - dstOff);
+        ByteDecoder.decode(s.reader, s.out, null, 0, 0);
+        int n = s.out.written();
+        if (listener != null) {
+            s.call.clear(false);
+            report(listener, s.call, startTime, len, n);
+        }
+        return n;
+    }
+
+    private static void report(CodecListener listener, CallStats call, long startTime, long bytesIn, long bytesOut) {
+        call.nanos = System.nanoTime() - startTime;
+        call.bytesIn = bytesIn;
+        call.bytesOut = bytesOut;
+        listener.onCall(call);
+    }
+
+    /**
+     * State confined to one thread.
+     */
+    private static final class Scratch {
+
+        final ByteEncoder encoder;
+        final ByteOutput out = ByteOutput.wrap(new byte[0], 0, 0);
+        final BinaryFormat.Reader reader = new BinaryFormat.Reader();
+        final CallStats call = new CallStats();
+
+        Scratch(int blockLen) {
+            encoder = new ByteEncoder(blockLen, new LongIntHashTable());
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.util.Random;
+
+/**
+ * Cyclic polynomial hash: XOR of T[b[i]] rotated left by blockLen - 1 - i.
+ * Rolling rotates everything by one, the outgoing byte then sits rotated by
+ * blockLen and is XORed out. No multiplication at all.
+ *
+ * @author srikchan
+ */
+final class BuzHash implements RollingHash {
+
+    /**
+     * Fixed seed, the fingerprints of a base index must not change between
+     * runs.
+     */
+    static final long[] TABLE = randomTable(0x42555A48L);
+    private final int blockLen;
+
+    BuzHash(int blockLen) {
+        if (blockLen < 1) {
+            throw new IllegalArgumentException("Block length must be positive " + blockLen);
+        }
+        this.blockLen = blockLen;
+    }
+
+    static long[] randomTable(long seed) {
+        Random random = new Random(seed);
+        long[] table = new long[256];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = random.nextLong();
+        }
+        return table;
+    }
+
+    @Override
+    public Kind kind() {
+        return Kind.BUZHASH;
+    }
+
+    @Override
+    public int blockLen() {
+        return blockLen;
+    }
+
+    @Override
+    public long hash(byte[] in, int start) {
+        long hash = 0;
+        for (int i = 0; i < blockLen; i++) {
+            hash = Long.rotateLeft(hash, 1) ^ TABLE[in[start + i] & 0xFF];
+        }
+        return hash;
+    }
+
+    @Override
+    public long roll(long hash, int out, int in) {
+        return Long.rotateLeft(hash, 1) ^ Long.rotateLeft(TABLE[out], blockLen) ^ TABLE[in];
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+/**
+ * Decodes the {@link BinaryFormat} tokens. Unlike the text decoder there is
+ * nothing to parse or unescape, literals are copied as is and back references
+ * are copied from the already decoded output, or from the base text when the
+ * input was encoded against one.
+ *
+ * @author srikchan
+ */
+final class ByteDecoder {
+
+    private ByteDecoder() {
+    }
+
+    static void decode(byte[] src, int off, int len, ByteOutput out) {
+        decode(src, off, len, out, null, 0, 0);
+    }
+
+    /**
+     * Appends the decoded bytes to out.
+     *
+     * @param base text logically preceding the output, null when there is none.
+     */
+    static void decode(byte[] src, int off, int len, ByteOutput out, byte[] base, int baseOff, int baseLen) {
+        decode(new BinaryFormat.Reader(src, off, len), out, base, baseOff, baseLen);
+    }
+
+    /**
+     * Decodes what the reader was reset to, the caller may reuse the reader.
+     */
+    static void decode(BinaryFormat.Reader r, ByteOutput out, byte[] base, int baseOff, int baseLen) {
+        decode(r, out, base, baseOff, baseLen, Long.MAX_VALUE);
+    }
+
+    /**
+     * Decodes only the first stop bytes, the tokens after them are not read
+     * and so not checked either.
+     *
+     * @param stop Long.MAX_VALUE for everything.
+     */
+    static void decode(BinaryFormat.Reader r, ByteOutput out, byte[] base, int baseOff, int baseLen, long stop) {
+        byte[] src = r.src;
+        r.readHeader();
+        int blockLen = r.blockLen;
+        if (r.baseLength >= 0 && (base == null || r.baseLength != baseLen)) {
+            throw new IllegalArgumentException(base == null
+                    ? "Encoded against a base of " + r.baseLength + " bytes, decode with the same base"
+                    : "Encoded against a base of " + r.baseLength + " bytes, not " + baseLen);
+        }
+        int start = out.size();
+        long limit = Long.MAX_VALUE;
+        if (r.length >= 0) {
+            if (r.length > Integer.MAX_VALUE - start) {
+                throw BinaryFormat.corrupt("Decoded length out of range " + r.length);
+            }
+            out.ensureCapacity((int) Math.min(r.length, stop));
+            limit = start + r.length;
+        }
+        long stopAt = stop >= limit - start ? Long.MAX_VALUE : start + stop;
+        long tag;
+        while (out.size() < stopAt && (tag = nextTag(r)) != BinaryFormat.END) {
+            int kind = (int) (tag & BinaryFormat.KIND_MASK);
+            long runLength = tag >>> BinaryFormat.KIND_BITS;
+            if (runLength > Integer.MAX_VALUE) {
+                throw BinaryFormat.corrupt("Token length out of range " + runLength);
+            }
+            int n = (int) runLength;
+            int pos = out.size();
+            if (pos + runLength > limit) {
+                throw BinaryFormat.corrupt("Decodes to more than the declared " + r.length + " bytes");
+            }
+            if (pos + runLength > stopAt) {// The prefix of any token is decoded the same way.
+                n = (int) (stopAt - pos);
+            }
+            out.ensureCapacity(n);
+            byte[] buf = out.array();
+            switch (kind) {
+                case BinaryFormat.LITERAL:
+                    if (n > r.end - r.pos) {
+                        throw BinaryFormat.corrupt("Truncated literal");
+                    }
+                    System.arraycopy(src, r.pos, buf, pos, n);
+                    r.pos += n;
+                    break;
+                case BinaryFormat.COPY:
+                case BinaryFormat.REPEAT: {
+                    int distance = r.readVarInt();
+                    if (distance <= 0 || distance > pos - start + baseLen) {
+                        throw BinaryFormat.corrupt("Bad back reference " + distance + " at " + (pos - start));
+                    }
+                    if (kind == BinaryFormat.REPEAT && n > blockLen) {
+                        copy(buf, start, pos, distance, blockLen, base, baseOff, baseLen);
+                        copy(buf, start, pos + blockLen, blockLen, n - blockLen, base, baseOff, baseLen);
+                    } else {
+                        copy(buf, start, pos, distance, n, base, baseOff, baseLen);
+                    }
+                    break;
+                }
+                default:
+                    throw BinaryFormat.corrupt("Unknown token kind " + kind);
+            }
+            out.setSize(pos + n);
+        }
+        if (stopAt != Long.MAX_VALUE) {
+            if (out.size() != stopAt) {
+                throw BinaryFormat.corrupt("Decoded " + (out.size() - start) + " of the " + stop + " bytes asked for");
+            }
+        } else if (limit != Long.MAX_VALUE && out.size() != limit) {
+            throw BinaryFormat.corrupt("Decoded " + (out.size() - start) + " of the declared " + r.length + " bytes");
+        }
+    }
+
+    /**
+     * Reads the next tag, stepping over the END of a stream segment which a
+     * continuation follows. Other encodings end at their END.
+     */
+    private static long nextTag(BinaryFormat.Reader r) {
+        long tag = r.readVarLong();
+        while (tag == BinaryFormat.END && r.window != Integer.MAX_VALUE && r.pos < r.end) {
+            r.readContinuation();
+            tag = r.readVarLong();
+        }
+        return tag;
+    }
+
+    /**
+     * Copies n bytes from distance back, the part before start comes from the
+     * end of the base.
+     */
+    private static void copy(byte[] buf, int start, int pos, int distance, int n,
+            byte[] base, int baseOff, int baseLen) {
+        int from = pos - distance;
+        if (from < start) {
+            int k = Math.min(n, start - from);
+            System.arraycopy(base, baseOff + baseLen - (start - from), buf, pos, k);
+            if (k == n) {
+                return;
+            }
+            pos += k;
+            n -= k;
+            from += k;
+        }
+        if (distance >= n) {
+            System.arraycopy(buf, from, buf, pos, n);
+        } else {
+            repeat(buf, from, pos, distance, n);
+        }
+    }
+
+    /**
+     * Overlapping copy, the output is the distance bytes at from repeated. The
+     * first period is copied once and after that the copy reads what it just
+     * wrote, doubling the chunk each time, so a run of n bytes takes
+     * O(log(n / distance)) array copies rather than n single byte moves.
+     */
+    static void repeat(byte[] buf, int from, int pos, int distance, int n) {
+        System.arraycopy(buf, from, buf, pos, distance);
+        int done = distance;
+        while (done < n) {
+            int k = Math.min(done, n - done);
+            System.arraycopy(buf, pos, buf, pos + done, k);
+            done += k;
+        }
+    }
+}
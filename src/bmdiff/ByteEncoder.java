@@ -0,0 +1,460 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+/**
+ * Bentley and McIlroy encoder over bytes writing the {@link BinaryFormat}
+ * tokens. Same scheme as the char encoder in {@link BMDiffCodec}: fingerprints
+ * of the blocks starting at multiples of blockLen, or at the
+ * {@link ContentAnchors} when given, are stored and every position is
+ * looked up. Unlike the char encoder a verified block is extended byte by byte,
+ * forward either as a contiguous copy (&lt;n,m&gt;) or as a repetition of the
+ * same block (&lt;n,m|&gt;), and backward into the pending literal run, so
+ * matches have any length of at least blockLen and start where the repeat
+ * really starts rather than at the next block boundary.
+ *
+ * The encoder is resumable, {@link #process(ByteOutput, int)} can be called
+ * again after more input was appended to the buffer and {@link #slide(int)}
+ * drops the oldest input, which is how {@link BMDiffOutputStream} keeps memory
+ * bounded. {@link #encode(byte[], int, int, ByteOutput)} is the one shot
+ * version of the same.
+ *
+ * Optionally a {@link BaseIndex} is consulted when the input itself has no
+ * match, the decoder then has to be given the same base text, which
+ * logically precedes the input.
+ *
+ * @author srikchan
+ */
+final class ByteEncoder {
+
+    private final FingerPrintTable fingerPrintTable;
+    private final int blockLen;
+    private final RollingHash rollingHash;
+    private final ContentAnchors anchors;// null for fixed offsets.
+    /**
+     * Maximum back reference distance, candidates further than this are
+     * ignored and newer occurrences replace them in the table.
+     */
+    private int window = Integer.MAX_VALUE;
+    private byte[] in;
+    private int end;// Input is valid up to here.
+    private int p;// Start of the next block to look up.
+    private int matchEnd;// Blocks before this are already encoded.
+    private int rawDataStartIndex;// Start of the pending literal run.
+    private int nextStore;// Next block boundary to store, the earliest with anchors.
+    private int forceStore;// Latest anchor, unless one comes earlier.
+    private int origin;// Where the input started, base distances are counted from here.
+    private BaseIndex base;
+    // Counters of the current input, see CallStats.
+    private long fingerPrintHits;
+    private long collisions;
+    private long literalTokens;
+    private long copyTokens;
+    private long repeatTokens;
+    private long matchedBytes;
+    /**
+     * Matches made with a bucket entry other than the first.
+     */
+    private long laterCandidateHits;
+    private final int[] candidates = new int[LongIntHashTable.MAX_DEPTH];
+
+    ByteEncoder(int blockLen, FingerPrintTable fingerPrintTable) {
+        this(RollingHash.DEFAULT.create(blockLen), fingerPrintTable);
+    }
+
+    ByteEncoder(RollingHash rollingHash, FingerPrintTable fingerPrintTable) {
+        this(rollingHash, fingerPrintTable, null);
+    }
+
+    ByteEncoder(RollingHash rollingHash, FingerPrintTable fingerPrintTable, ContentAnchors anchors) {
+        this.blockLen = rollingHash.blockLen();
+        this.rollingHash = rollingHash;
+        this.fingerPrintTable = fingerPrintTable;
+        this.anchors = anchors;
+    }
+
+    ContentAnchors anchors() {
+        return anchors;
+    }
+
+    RollingHash.Kind hashKind() {
+        return rollingHash.kind();
+    }
+
+    int blockLen() {
+        return blockLen;
+    }
+
+    void encode(byte[] in, int off, int len, ByteOutput out) {
+        if (base == null) {
+            BinaryFormat.writeHeader(out, blockLen, BinaryFormat.FLAG_LENGTH);
+        } else {
+            BinaryFormat.writeHeader(out, blockLen, BinaryFormat.FLAG_BASE | BinaryFormat.FLAG_LENGTH);
+            out.writeVarInt(base.len);
+        }
+        out.writeVarLong(len);
+        window = Integer.MAX_VALUE;
+        begin(in, off, len / (anchors == null ? blockLen : anchors.avgGap()));
+        setEnd(off + len);
+        process(out, off + len - blockLen + 1);
+        flushLiteral(out, off + len);
+        BinaryFormat.writeEnd(out);
+    }
+
+    /**
+     * Starts a new input at off.
+     *
+     * @param capHint expected number of stored blocks.
+     */
+    void begin(byte[] in, int off, int capHint) {
+        this.in = in;
+        fingerPrintTable.reset(capHint);
+        end = off;
+        p = off;
+        matchEnd = off;
+        rawDataStartIndex = off;
+        nextStore = off;
+        forceStore = anchors == null ? off : off + anchors.maxGap();
+        origin = off;
+        fingerPrintHits = 0;
+        collisions = 0;
+        literalTokens = 0;
+        copyTokens = 0;
+        repeatTokens = 0;
+        matchedBytes = 0;
+        laterCandidateHits = 0;
+    }
+
+    /**
+     * Continues an input whose state was saved: in[0, end) was encoded up to
+     * the lookup at p and the table holds its stored blocks. There is no
+     * pending literal.
+     */
+    void resume(byte[] in, int end, int p, int nextStore) {
+        this.in = in;
+        this.end = end;
+        this.p = p;
+        matchEnd = end;
+        rawDataStartIndex = end;
+        this.nextStore = nextStore;
+        forceStore = anchors == null ? nextStore : nextStore + anchors.maxGap();
+        origin = 0;
+    }
+
+    int nextStore() {
+        return nextStore;
+    }
+
+    FingerPrintTable table() {
+        return fingerPrintTable;
+    }
+
+    /**
+     * Adds the counters of the current input to call.
+     */
+    void collect(CallStats call) {
+        call.fingerPrintHits += fingerPrintHits;
+        call.collisions += collisions;
+        call.literalTokens += literalTokens;
+        call.copyTokens += copyTokens;
+        call.repeatTokens += repeatTokens;
+        call.matchedBytes += matchedBytes;
+        call.laterCandidateHits += laterCandidateHits;
+        call.tableSize = Math.max(call.tableSize, fingerPrintTable.size());
+        if (fingerPrintTable instanceof BoundedFingerPrintTable) {
+            BoundedFingerPrintTable bounded = (BoundedFingerPrintTable) fingerPrintTable;
+            call.indexSkipped += bounded.skipped();
+            call.indexEvicted += bounded.evicted();
+        }
+    }
+
+    /**
+     * @param base reference text to copy from or null.
+     */
+    void setBase(BaseIndex base) {
+        if (base != null && base.blockLen != blockLen) {
+            throw new IllegalArgumentException("Base indexed with block length " + base.blockLen + " not " + blockLen);
+        }
+        if (base != null && base.hashKind != rollingHash.kind()) {
+            throw new IllegalArgumentException("Base indexed with " + base.hashKind + " fingerprints not " + rollingHash.kind());
+        }
+        this.base = base;
+    }
+
+    void setWindow(int window) {
+        this.window = window;
+    }
+
+    /**
+     * The input buffer may have been replaced by a bigger copy.
+     */
+    void setInput(byte[] in) {
+        this.in = in;
+    }
+
+    void setEnd(int end) {
+        this.end = end;
+    }
+
+    int position() {
+        return p;
+    }
+
+    /**
+     * Looks up the blocks starting before limit, matches never extend past the
+     * end set through {@link #setEnd(int)}.
+     *
+     * @param out
+     * @param limit at most end - blockLen + 1
+     */
+    void process(ByteOutput out, int limit) {
+        if (p >= limit) {
+            return;
+        }
+        final byte[] in = this.in;
+        final FingerPrintTable fingerPrintTable = this.fingerPrintTable;
+        final BaseIndex base = this.base;
+        final RollingHash rollingHash = this.rollingHash;
+        final ContentAnchors anchors = this.anchors;
+        long fingerPrint = rollingHash.hash(in, p);
+        for (;;) {
+            if (p >= matchEnd) {
+                boolean matched = false;
+                int fpIndex = bestCandidate(in, fingerPrint);
+                if (fpIndex != FingerPrintTable.NOT_FOUND) {
+                    matchEnd = p + writeMatch(in, fpIndex, p, out);
+                    rawDataStartIndex = matchEnd;
+                    matched = true;
+                }
+                if (!matched && base != null
+                        && (fpIndex = base.fingerPrintTable.get(fingerPrint)) != FingerPrintTable.NOT_FOUND) {
+                    if (checkSubStringMatch(base.data, base.off + fpIndex, in, p, blockLen)) {
+                        matchEnd = p + writeBaseMatch(in, fpIndex, p, out);
+                        rawDataStartIndex = matchEnd;
+                    } else {
+                        collisions++;
+                    }
+                }
+            }
+            if (anchors == null) {
+                if (p == nextStore) {
+                    store(fingerPrint);
+                    nextStore += blockLen;
+                }
+            } else if (p >= nextStore && (p >= forceStore || anchors.isAnchor(fingerPrint))) {
+                store(fingerPrint);
+                nextStore = p + anchors.minGap();
+                forceStore = p + anchors.maxGap();
+            }
+            if (++p >= limit) {
+                break;
+            }
+            fingerPrint = rollingHash.roll(fingerPrint, in[p - 1] & 0xFF, in[p + blockLen - 1] & 0xFF);
+        }
+    }
+
+    /**
+     * Verifies the stored blocks with the fingerprint of the block at p.
+     *
+     * @return the one whose match continues furthest, on a tie the first in
+     * the order the table returned them, or NOT_FOUND when none matches.
+     */
+    private int bestCandidate(byte[] in, long fingerPrint) {
+        int n = fingerPrintTable.get(fingerPrint, candidates);
+        int best = FingerPrintTable.NOT_FOUND;
+        int bestLength = 0;
+        int bestRank = 0;
+        for (int k = 0; k < n; k++) {
+            int fpIndex = candidates[k];
+            if (p - fpIndex > window) {
+                continue;
+            }
+            if (!checkSubStringMatch(in, fpIndex, in, p, blockLen)) {
+                collisions++;
+                continue;
+            }
+            if (n == 1) {
+                return fpIndex;
+            }
+            int length = extendForward(in, fpIndex, in, p, blockLen, end - p);
+            if (length > bestLength) {
+                best = fpIndex;
+                bestLength = length;
+                bestRank = k;
+            }
+        }
+        if (bestRank > 0) {
+            laterCandidateHits++;
+        }
+        return best;
+    }
+
+    private void store(long fingerPrint) {
+        if (window == Integer.MAX_VALUE) {
+            fingerPrintTable.putIfAbsent(fingerPrint, p);
+        } else {// Out of window entries are useless, let the newer block take over.
+            int old = fingerPrintTable.get(fingerPrint);
+            if (old == FingerPrintTable.NOT_FOUND || p - old > window) {
+                fingerPrintTable.put(fingerPrint, p);
+            } else {// Only adds when the bucket has room.
+                fingerPrintTable.putIfAbsent(fingerPrint, p);
+            }
+        }
+    }
+
+    /**
+     * Writes out the pending literal run up to upTo, the bytes before upTo can
+     * no longer be part of a match.
+     */
+    void flushLiteral(ByteOutput out, int upTo) {
+        if (rawDataStartIndex < upTo) {
+            writeLiteral(out, upTo);
+            rawDataStartIndex = upTo;
+        }
+        if (matchEnd < upTo) {
+            matchEnd = upTo;
+        }
+    }
+
+    /**
+     * Writes the pending literal run up to upTo, if any.
+     */
+    private void writeLiteral(ByteOutput out, int upTo) {
+        if (rawDataStartIndex < upTo) {
+            BinaryFormat.writeLiteral(out, in, rawDataStartIndex, upTo);
+            literalTokens++;
+        }
+    }
+
+    private void countMatch(int kind, int runLength) {
+        fingerPrintHits++;
+        matchedBytes += runLength;
+        if (kind == BinaryFormat.REPEAT) {
+            repeatTokens++;
+        } else {
+            copyTokens++;
+        }
+    }
+
+    /**
+     * The caller moved its buffer left by shift bytes, adjust every position
+     * and forget blocks which fell off the buffer. The pending literal run must
+     * have been flushed.
+     */
+    void slide(int shift) {
+        p -= shift;
+        end -= shift;
+        matchEnd -= shift;
+        rawDataStartIndex -= shift;
+        nextStore -= shift;
+        forceStore -= shift;
+        origin -= shift;
+        fingerPrintTable.rebase(shift);
+    }
+
+    /**
+     * The block at p matched the block at fpIndex. The match is grown forward
+     * a byte at a time as a copy, which may overlap p, and when that stops
+     * short of two blocks also as a repetition of the fpIndex block (only
+     * ever needed when the distance is not a block length). A copy is then
+     * grown backward into the pending literal run, which picks up the up to
+     * blockLen - 1 bytes a repeat can start before the first stored block
+     * boundary it covers. Writes the literal run before the match.
+     *
+     * @return number of input bytes from p covered by the match.
+     */
+    private int writeMatch(byte[] in, int fpIndex, int p, ByteOutput out) {
+        int max = end - p;
+        int runLength = extendForward(in, fpIndex, in, p, blockLen, max);
+        int kind = BinaryFormat.COPY;
+        int back = 0;
+        if (runLength < 2 * blockLen) {
+            int repeat = extendRepeat(in, fpIndex, in, p, max);
+            if (repeat > runLength) {
+                runLength = repeat;
+                kind = BinaryFormat.REPEAT;
+            }
+        }
+        if (kind == BinaryFormat.COPY) {
+            back = extendBackward(in, fpIndex, in, p, fpIndex - Math.max(origin, 0));
+        }
+        writeLiteral(out, p - back);
+        BinaryFormat.writeMatch(out, kind, p - fpIndex, back + runLength);
+        countMatch(kind, back + runLength);
+        return runLength;
+    }
+
+    /**
+     * Same as {@link #writeMatch} for a block of the base at fpIndex. The copy
+     * stops at either end of the base, what follows is picked up by the next
+     * lookup.
+     */
+    private int writeBaseMatch(byte[] in, int fpIndex, int p, ByteOutput out) {
+        int from = base.off + fpIndex;
+        int runLength = extendForward(base.data, from, in, p, blockLen, Math.min(end - p, base.len - fpIndex));
+        int kind = BinaryFormat.COPY;
+        int back = 0;
+        if (runLength < 2 * blockLen) {
+            int repeat = extendRepeat(base.data, from, in, p, end - p);
+            if (repeat > runLength) {
+                runLength = repeat;
+                kind = BinaryFormat.REPEAT;
+            }
+        }
+        if (kind == BinaryFormat.COPY) {
+            back = extendBackward(base.data, from, in, p, fpIndex);
+        }
+        writeLiteral(out, p - back);
+        BinaryFormat.writeMatch(out, kind, p - origin + base.len - fpIndex, back + runLength);
+        countMatch(kind, back + runLength);
+        return runLength;
+    }
+
+    /**
+     * @return len grown while a[i + len] equals b[j + len], up to max.
+     */
+    private static int extendForward(byte[] a, int i, byte[] b, int j, int len, int max) {
+        return len >= max ? len : len + Mismatch.bytes(a, i + len, b, j + len, max - len);
+    }
+
+    /**
+     * @return length of the run at j made of the block at from repeated, at
+     * least one block and at most max.
+     */
+    private int extendRepeat(byte[] a, int from, byte[] b, int j, int max) {
+        int len = blockLen;
+        while (len + blockLen <= max && checkSubStringMatch(a, from, b, j + len, blockLen)) {
+            len += blockLen;
+        }
+        if (len >= max) {
+            return len;
+        }
+        // Stays below blockLen, a whole block would have been taken above.
+        return len + Mismatch.bytes(a, from, b, j + len, Math.min(blockLen, max - len));
+    }
+
+    /**
+     * @return how many bytes before j, down to the pending literal run start,
+     * equal the bytes before i, with at most limit bytes available before i.
+     */
+    private int extendBackward(byte[] a, int i, byte[] b, int j, int limit) {
+        int max = Math.min(limit, j - rawDataStartIndex);
+        int k = 0;
+        while (k < max && a[i - k - 1] == b[j - k - 1]) {
+            k++;
+        }
+        return k;
+    }
+
+    private static boolean checkSubStringMatch(byte[] a, int startIndex1, byte[] b, int startIndex2, int len) {
+        return Mismatch.bytes(a, startIndex1, b, startIndex2, len) == len;
+    }
+}
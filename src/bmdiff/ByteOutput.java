@@ -0,0 +1,190 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.util.Arrays;
+
+/**
+ * Growable byte array, unlike ByteArrayOutputStream it is not synchronized and
+ * gives direct access to the backing array so the encoder and decoder can work
+ * on it in place. Can be reused across calls through {@link #reset()}.
+ *
+ * {@link #wrap(byte[], int, int)} gives a fixed size view of a caller's array
+ * instead, writes start at the given offset and anything beyond the given
+ * length fails rather than growing.
+ *
+ * @author srikchan
+ */
+public final class ByteOutput {
+
+    private byte[] buf;
+    private int size;
+    private int start;
+    private int limit;// Only for wrapped arrays, -1 when growable.
+
+    public ByteOutput(int capHint) {
+        buf = new byte[Math.max(16, capHint)];
+        start = 0;
+        limit = -1;
+    }
+
+    public ByteOutput() {
+        this(256);
+    }
+
+    private ByteOutput(byte[] buf, int off, int len) {
+        rewrap(buf, off, len);
+    }
+
+    /**
+     * Points this output at another caller array, as if created by
+     * {@link #wrap(byte[], int, int)}, so one instance can be reused.
+     */
+    void rewrap(byte[] buf, int off, int len) {
+        if (off < 0 || len < 0 || off + len > buf.length || off + len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.buf = buf;
+        this.size = off;
+        this.start = off;
+        this.limit = off + len;
+    }
+
+    /**
+     * Writes go to buf[off, off + len) and never beyond.
+     *
+     * @param buf
+     * @param off
+     * @param len
+     * @return
+     */
+    public static ByteOutput wrap(byte[] buf, int off, int len) {
+        return new ByteOutput(buf, off, len);
+    }
+
+    public void reset() {
+        size = start;
+    }
+
+    /**
+     * @return the write position in {@link #array()}, for a wrapped array
+     * this includes the offset it was wrapped at.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of bytes written since the last reset.
+     */
+    public int written() {
+        return size - start;
+    }
+
+    /**
+     * The backing array, valid up to {@link #size()}. May change after any
+     * write that grows the buffer.
+     *
+     * @return
+     */
+    public byte[] array() {
+        return buf;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(buf, start, size);
+    }
+
+    /**
+     * Makes room for extra more bytes.
+     *
+     * @param extra
+     */
+    public void ensureCapacity(int extra) {
+        int needed = size + extra;
+        if (limit >= 0) {
+            if (needed > limit || needed < 0) {
+                throw new IllegalArgumentException("Output does not fit in " + (limit - start) + " bytes");
+            }
+            return;
+        }
+        if (needed < 0) {
+            throw new OutOfMemoryError("Output larger than 2GB");
+        }
+        if (needed > buf.length) {
+            int newLen = buf.length << 1;
+            if (newLen < needed || newLen < 0) {
+                newLen = needed;
+            }
+            buf = Arrays.copyOf(buf, newLen);
+        }
+    }
+
+    /**
+     * Moves the write position, used after writing into {@link #array()}
+     * directly.
+     *
+     * @param size
+     */
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public void write(int b) {
+        ensureCapacity(1);
+        buf[size++] = (byte) b;
+    }
+
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buf, size, len);
+        size += len;
+    }
+
+    /**
+     * Unsigned LEB128, 7 bits per byte with the high bit set on all but the
+     * last byte.
+     *
+     * @param v treated as unsigned.
+     */
+    public void writeVarLong(long v) {
+        ensureCapacity(varLongSize(v));
+        while ((v & ~0x7FL) != 0) {
+            buf[size++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[size++] = (byte) v;
+    }
+
+    /**
+     * Fixed 8 bytes, big endian.
+     *
+     * @param v
+     */
+    public void writeLong(long v) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf[size++] = (byte) (v >>> shift);
+        }
+    }
+
+    /**
+     * @param v treated as unsigned.
+     * @return number of bytes {@link #writeVarLong(long)} writes for v.
+     */
+    public static int varLongSize(long v) {
+        return v == 0 ? 1 : (64 - Long.numberOfLeadingZeros(v) + 6) / 7;
+    }
+
+    public void writeVarInt(int v) {
+        writeVarLong(v & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+/**
+ * What one encode or decode call did. The token counters are only filled by
+ * encodes. For the legacy text format sizes are in chars.
+ *
+ * @author srikchan
+ */
+public final class CallStats {
+
+    boolean encode;
+    long bytesIn;
+    long bytesOut;
+    long nanos;
+    /**
+     * Lookups which found a fingerprint and verified the block.
+     */
+    long fingerPrintHits;
+    /**
+     * Lookups which found a fingerprint but not the same text.
+     */
+    long collisions;
+    long literalTokens;
+    long copyTokens;
+    long repeatTokens;
+    /**
+     * '<' doubled by the text format.
+     */
+    long escapes;
+    long matchedBytes;
+    /**
+     * Matches made with a candidate other than the first of a bucket, only
+     * with a bucket depth above one.
+     */
+    long laterCandidateHits;
+    int tableSize;
+    /**
+     * Block length picked by {@link BMDiffCodec#AUTO} mode, 0 when fixed.
+     */
+    int selectedBlockLen;
+    long selectNanos;
+    /**
+     * Blocks a {@link BoundedFingerPrintTable} did not store or dropped to
+     * stay within its budget, each one a repeat that may go unnoticed.
+     */
+    long indexSkipped;
+    long indexEvicted;
+
+    void clear(boolean encode) {
+        this.encode = encode;
+        bytesIn = 0;
+        bytesOut = 0;
+        nanos = 0;
+        fingerPrintHits = 0;
+        collisions = 0;
+        literalTokens = 0;
+        copyTokens = 0;
+        repeatTokens = 0;
+        escapes = 0;
+        matchedBytes = 0;
+        laterCandidateHits = 0;
+        tableSize = 0;
+        selectedBlockLen = 0;
+        selectNanos = 0;
+        indexSkipped = 0;
+        indexEvicted = 0;
+    }
+
+    public boolean isEncode() {
+        return encode;
+    }
+
+    public long bytesIn() {
+        return bytesIn;
+    }
+
+    public long bytesOut() {
+        return bytesOut;
+    }
+
+    public long nanos() {
+        return nanos;
+    }
+
+    public long fingerPrintHits() {
+        return fingerPrintHits;
+    }
+
+    public long collisions() {
+        return collisions;
+    }
+
+    public long literalTokens() {
+        return literalTokens;
+    }
+
+    public long copyTokens() {
+        return copyTokens;
+    }
+
+    public long repeatTokens() {
+        return repeatTokens;
+    }
+
+    public long escapes() {
+        return escapes;
+    }
+
+    public long matchedBytes() {
+        return matchedBytes;
+    }
+
+    public long laterCandidateHits() {
+        return laterCandidateHits;
+    }
+
+    /**
+     * @return entries in the fingerprint table at the end of the encode.
+     */
+    public int tableSize() {
+        return tableSize;
+    }
+
+    public int selectedBlockLen() {
+        return selectedBlockLen;
+    }
+
+    /**
+     * @return part of {@link #nanos()} spent choosing the block length.
+     */
+    public long selectNanos() {
+        return selectNanos;
+    }
+
+    public long indexSkipped() {
+        return indexSkipped;
+    }
+
+    public long indexEvicted() {
+        return indexEvicted;
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+/**
+ * Told about every encode and decode of a codec it is registered with. Called
+ * on the thread which did the work, right after it, so implementations must be
+ * cheap and thread safe. {@link CodecStats} is the stock implementation.
+ *
+ * @author srikchan
+ */
+public interface CodecListener {
+
+    /**
+     * @param call reused by the codec, read it before returning and do not
+     * keep it.
+     */
+    void onCall(CallStats call);
+}
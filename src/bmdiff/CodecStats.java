@@ -0,0 +1,225 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Totals of every call reported to it, meant to stay registered in
+ * production. Each thread adds to its own cell without contention and the
+ * cells are only summed when a counter is read. The cells of threads which
+ * ended are folded into a shared total as new cells are added, so short
+ * lived threads (a virtual thread per task) do not grow them without bound.
+ *
+ * @author srikchan
+ */
+public final class CodecStats implements CodecListener {
+
+    public enum Counter {
+
+        ENCODE_CALLS, ENCODE_BYTES_IN, ENCODE_BYTES_OUT, ENCODE_NANOS,
+        DECODE_CALLS, DECODE_BYTES_IN, DECODE_BYTES_OUT, DECODE_NANOS,
+        FINGERPRINT_HITS, COLLISIONS, LITERAL_TOKENS, COPY_TOKENS, REPEAT_TOKENS,
+        ESCAPES, MATCHED_BYTES,
+        /**
+         * Matches found with a bucket entry other than the first.
+         */
+        LATER_CANDIDATE_HITS,
+        /**
+         * Block length choices made in AUTO mode and the time they took.
+         */
+        BLOCK_LEN_SELECTIONS, SELECT_NANOS,
+        /**
+         * Blocks left out of or dropped from a memory capped index.
+         */
+        INDEX_SKIPPED, INDEX_EVICTED,
+        /**
+         * Largest fingerprint table seen, a maximum rather than a sum.
+         */
+        MAX_TABLE_SIZE
+    }
+    private static final Counter[] COUNTERS = Counter.values();
+    private static final int MIN_PURGE = 16;
+    // Guarded by this.
+    private final List<AtomicLongArray> cells = new ArrayList<>();
+    private final List<Thread> owners = new ArrayList<>();
+    private final long[] retired = new long[COUNTERS.length];
+    private int purgeAt = MIN_PURGE;
+    private final ThreadLocal<AtomicLongArray> cell = new ThreadLocal<AtomicLongArray>() {
+        @Override
+        protected AtomicLongArray initialValue() {
+            AtomicLongArray c = new AtomicLongArray(COUNTERS.length);
+            synchronized (CodecStats.this) {
+                if (cells.size() >= purgeAt) {
+                    retire();
+                    purgeAt = Math.max(MIN_PURGE, 2 * cells.size());
+                }
+                cells.add(c);
+                owners.add(Thread.currentThread());
+            }
+            return c;
+        }
+    };
+
+    /**
+     * Folds the cells of the threads which ended into the retired totals, a
+     * thread's writes are visible once it is seen to have ended.
+     */
+    private void retire() {
+        int kept = 0;
+        for (int k = 0; k < cells.size(); k++) {
+            AtomicLongArray c = cells.get(k);
+            Thread owner = owners.get(k);
+            if (owner.isAlive()) {
+                cells.set(kept, c);
+                owners.set(kept++, owner);
+            } else {
+                for (int i = 0; i < COUNTERS.length; i++) {
+                    retired[i] = combine(COUNTERS[i], retired[i], c.get(i));
+                }
+            }
+        }
+        cells.subList(kept, cells.size()).clear();
+        owners.subList(kept, owners.size()).clear();
+    }
+
+    private static long combine(Counter counter, long a, long b) {
+        return counter == Counter.MAX_TABLE_SIZE ? Math.max(a, b) : a + b;
+    }
+
+    /**
+     * Only the owning thread writes to a cell so a plain ordered store is
+     * enough, no compare and set.
+     */
+    private static void add(AtomicLongArray c, Counter counter, long delta) {
+        if (delta != 0) {
+            c.lazySet(counter.ordinal(), c.get(counter.ordinal()) + delta);
+        }
+    }
+
+    @Override
+    public void onCall(CallStats call) {
+        AtomicLongArray c = cell.get();
+        if (call.encode) {
+            add(c, Counter.ENCODE_CALLS, 1);
+            add(c, Counter.ENCODE_BYTES_IN, call.bytesIn);
+            add(c, Counter.ENCODE_BYTES_OUT, call.bytesOut);
+            add(c, Counter.ENCODE_NANOS, call.nanos);
+        } else {
+            add(c, Counter.DECODE_CALLS, 1);
+            add(c, Counter.DECODE_BYTES_IN, call.bytesIn);
+            add(c, Counter.DECODE_BYTES_OUT, call.bytesOut);
+            add(c, Counter.DECODE_NANOS, call.nanos);
+        }
+        add(c, Counter.FINGERPRINT_HITS, call.fingerPrintHits);
+        add(c, Counter.COLLISIONS, call.collisions);
+        add(c, Counter.LITERAL_TOKENS, call.literalTokens);
+        add(c, Counter.COPY_TOKENS, call.copyTokens);
+        add(c, Counter.REPEAT_TOKENS, call.repeatTokens);
+        add(c, Counter.ESCAPES, call.escapes);
+        add(c, Counter.MATCHED_BYTES, call.matchedBytes);
+        add(c, Counter.LATER_CANDIDATE_HITS, call.laterCandidateHits);
+        add(c, Counter.INDEX_SKIPPED, call.indexSkipped);
+        add(c, Counter.INDEX_EVICTED, call.indexEvicted);
+        if (call.selectedBlockLen != 0) {
+            add(c, Counter.BLOCK_LEN_SELECTIONS, 1);
+            add(c, Counter.SELECT_NANOS, call.selectNanos);
+        }
+        int max = Counter.MAX_TABLE_SIZE.ordinal();
+        if (call.tableSize > c.get(max)) {
+            c.lazySet(max, call.tableSize);
+        }
+    }
+
+    public synchronized long get(Counter counter) {
+        long total = retired[counter.ordinal()];
+        for (AtomicLongArray c : cells) {
+            total = combine(counter, total, c.get(counter.ordinal()));
+        }
+        return total;
+    }
+
+    /**
+     * @return bytes per match token, 0 when nothing matched.
+     */
+    public double averageMatchLength() {
+        long matches = get(Counter.COPY_TOKENS) + get(Counter.REPEAT_TOKENS);
+        return matches == 0 ? 0 : get(Counter.MATCHED_BYTES) / (double) matches;
+    }
+
+    /**
+     * @return share of the verified candidates whose text differed from the
+     * block looked up.
+     */
+    public double collisionRate() {
+        long lookups = get(Counter.FINGERPRINT_HITS) + get(Counter.COLLISIONS);
+        return lookups == 0 ? 0 : get(Counter.COLLISIONS) / (double) lookups;
+    }
+
+    /**
+     * @return share of the matches which only a deeper bucket found or made
+     * longer.
+     */
+    public double laterCandidateHitRate() {
+        long hits = get(Counter.FINGERPRINT_HITS);
+        return hits == 0 ? 0 : get(Counter.LATER_CANDIDATE_HITS) / (double) hits;
+    }
+
+    /**
+     * @return encoded size over original size.
+     */
+    public double ratio() {
+        long in = get(Counter.ENCODE_BYTES_IN);
+        return in == 0 ? 0 : get(Counter.ENCODE_BYTES_OUT) / (double) in;
+    }
+
+    /**
+     * Input MB (10^6 bytes) per second of encode time.
+     */
+    public double encodeMBPerSec() {
+        long nanos = get(Counter.ENCODE_NANOS);
+        return nanos == 0 ? 0 : get(Counter.ENCODE_BYTES_IN) * 1000.0 / nanos;
+    }
+
+    /**
+     * Output MB (10^6 bytes) per second of decode time.
+     */
+    public double decodeMBPerSec() {
+        long nanos = get(Counter.DECODE_NANOS);
+        return nanos == 0 ? 0 : get(Counter.DECODE_BYTES_OUT) * 1000.0 / nanos;
+    }
+
+    /**
+     * Zeroes the counters. Calls racing with the reset may be partly lost.
+     */
+    public synchronized void reset() {
+        Arrays.fill(retired, 0);
+        for (AtomicLongArray c : cells) {
+            for (int i = 0; i < COUNTERS.length; i++) {
+                c.set(i, 0);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CodecStats{");
+        for (Counter counter : COUNTERS) {
+            sb.append(counter.name().toLowerCase()).append('=').append(get(counter)).append(", ");
+        }
+        sb.append(String.format("ratio=%.4f, avg_match=%.1f, encode=%.1fMB/sec, decode=%.1fMB/sec}",
+                ratio(), averageMatchLength(), encodeMBPerSec(), decodeMBPerSec()));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,401 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.util.Arrays;
+
+/**
+ * Finds every occurrence of a pattern in a {@link BinaryFormat} encoding
+ * without decoding it. Literal runs are scanned with a KMP automaton. A copy
+ * repeats text already searched, so the occurrences lying wholly inside it
+ * are those of its source range moved by the distance, found by a binary
+ * search among the matches so far. Only the m - 1 bytes at its end, which
+ * decide the automaton state after it, are fetched, and those at its start
+ * too when a prefix of the pattern is open there and an occurrence may
+ * straddle it. A fetch follows the copies back to the literal holding the
+ * bytes, the token list (which takes memory proportional to the encoding) is
+ * all that is kept of the decoded text. When a copy is added its source is
+ * followed back as long as it lies within one earlier token, so that chains
+ * of copies of copies, the bulk of very redundant data, are followed once
+ * rather than on every fetch.
+ *
+ * Copies overlapping their source, repeats among them, are periodic: the
+ * occurrences inside are again those a distance earlier, read from the
+ * matches as they are appended. The work per token is about the pattern
+ * length plus the matches it holds, whatever the decoded size.
+ *
+ * Stream encodings with their continuation segments are searched as one
+ * text. Encodings made against a base are not supported. An instance keeps
+ * its buffers between calls and is not thread safe.
+ *
+ * @author srikchan
+ */
+public final class CompressedSearch {
+
+    private static final int MIN_BUCKETS = 1024;
+    private static final int MIN_BUCKET_SHIFT = 6;
+
+    private final byte[] pattern;
+    private final int[] fail;
+    /**
+     * Decoded start of every token (a repeat counts as two copies), its period
+     * (the distance of a copy, 0 for a literal) and the offset of its first
+     * period in the encoding, or -1 for a copy whose source spans tokens.
+     */
+    private long[] starts = new long[16];
+    private long[] periods = new long[16];
+    private long[] refs = new long[16];
+    /**
+     * For a copy an earlier position with the same first period, and the
+     * token holding it, where a search for any byte it copies can start.
+     */
+    private long[] froms = new long[16];
+    private int[] sources = new int[16];
+    /**
+     * The token holding the start of every 1 &lt;&lt; bucketShift decoded bytes
+     * before the last token, where a search for a position can start. The
+     * buckets are widened to stay fewer than about twice the tokens.
+     */
+    private int[] buckets = new int[MIN_BUCKETS];
+    private int bucketCount;
+    private int bucketShift;
+    private int tokens;
+    private long decoded;
+    private byte[] src;
+    private long[] ends = new long[16];// Match ends so far, ascending.
+    private int matches;
+    private int fetched;
+    private long bytesScanned;
+
+    /**
+     * @param pattern at least one byte.
+     */
+    public CompressedSearch(byte[] pattern) {
+        if (pattern.length == 0) {
+            throw new IllegalArgumentException("Empty pattern");
+        }
+        this.pattern = pattern.clone();
+        int m = pattern.length;
+        fail = new int[m + 1];
+        for (int i = 1, k = 0; i < m; i++) {
+            while (k > 0 && pattern[i] != pattern[k]) {
+                k = fail[k];
+            }
+            if (pattern[i] == pattern[k]) {
+                k++;
+            }
+            fail[i + 1] = k;
+        }
+    }
+
+    public long[] find(byte[] enc) {
+        return find(enc, 0, enc.length);
+    }
+
+    /**
+     * @param enc
+     * @param off
+     * @param len
+     * @return the decoded offset of every occurrence, ascending, overlapping
+     * ones included.
+     * @throws IllegalArgumentException when enc is corrupt or encoded against
+     * a base.
+     */
+    public long[] find(byte[] enc, int off, int len) {
+        BinaryFormat.Reader r = new BinaryFormat.Reader(enc, off, len);
+        r.readHeader();
+        if (r.baseLength >= 0) {
+            throw new IllegalArgumentException("Encoded against a base of " + r.baseLength + " bytes");
+        }
+        src = enc;
+        bucketCount = 0;
+        bucketShift = MIN_BUCKET_SHIFT;
+        tokens = 0;
+        decoded = 0;
+        matches = 0;
+        bytesScanned = 0;
+        int m = pattern.length;
+        int state = 0;
+        for (;;) {
+            long tag = r.readVarLong();
+            if (tag == BinaryFormat.END) {
+                if (r.window != Integer.MAX_VALUE && r.pos < r.end) {
+                    r.readContinuation();
+                    continue;
+                }
+                break;
+            }
+            int kind = (int) (tag & BinaryFormat.KIND_MASK);
+            long n = tag >>> BinaryFormat.KIND_BITS;
+            if (r.length >= 0 && decoded + n > r.length) {
+                throw BinaryFormat.corrupt("Decodes to more than the declared " + r.length + " bytes");
+            }
+            switch (kind) {
+                case BinaryFormat.LITERAL:
+                    if (n > r.end - r.pos) {
+                        throw BinaryFormat.corrupt("Truncated literal");
+                    }
+                    add(decoded, 0, r.pos, 0, 0);
+                    state = scan(enc, r.pos, (int) n, state, decoded);
+                    r.pos += n;
+                    decoded += n;
+                    break;
+                case BinaryFormat.COPY:
+                case BinaryFormat.REPEAT: {
+                    long distance = r.readVarLong();
+                    if (distance <= 0 || distance > decoded) {
+                        throw BinaryFormat.corrupt("Bad back reference " + distance + " at " + decoded);
+                    }
+                    if (kind == BinaryFormat.REPEAT && n > r.blockLen) {
+                        state = copy(distance, r.blockLen, state);
+                        state = copy(r.blockLen, n - r.blockLen, state);
+                    } else {
+                        state = copy(distance, n, state);
+                    }
+                    break;
+                }
+                default:
+                    throw BinaryFormat.corrupt("Unknown token kind " + kind);
+            }
+        }
+        if (r.length >= 0 && decoded != r.length) {
+            throw BinaryFormat.corrupt("Decoded " + decoded + " of the declared " + r.length + " bytes");
+        }
+        long[] offsets = new long[matches];
+        for (int k = 0; k < matches; k++) {
+            offsets[k] = ends[k] - m;
+        }
+        src = null;
+        return offsets;
+    }
+
+    /**
+     * @return bytes run through the automaton by the last call, literals plus
+     * the ends of copies, against its decoded length for a plain scan.
+     */
+    public long bytesScanned() {
+        return bytesScanned;
+    }
+
+    /**
+     * @return decoded length of the last encoding searched.
+     */
+    public long decodedLength() {
+        return decoded;
+    }
+
+    /**
+     * Appends n bytes copied from distance back. From distance before the
+     * copy to its end the text repeats with that period, so an occurrence
+     * wholly inside the copy is one found distance earlier, which for an
+     * overlapping copy may itself be inside the copy.
+     */
+    private int copy(long distance, long n, int state) {
+        if (n == 0) {
+            return state;
+        }
+        // Follow the source back while its first period lies in one token.
+        long x = decoded - distance;
+        long span = Math.min(n, distance);
+        int source = tokenAt(x, 0);
+        long ref = -1;
+        for (;;) {
+            long r = x - starts[source];
+            long end = source + 1 < tokens ? starts[source + 1] : decoded;
+            if (x + span > end) {
+                break;
+            }
+            long d = periods[source];
+            if (d != 0 && r >= d) {
+                r %= d;
+            }
+            if (d != 0 && r + span > d) {
+                break;
+            }
+            if (refs[source] >= 0) {
+                ref = refs[source] + r;
+                break;
+            }
+            x = froms[source] + r;
+            source = tokenAt(x, sources[source]);
+        }
+        add(decoded, distance, ref, x, source);
+        int t = tokens - 1;
+        long start = decoded;
+        decoded += n;
+        int m = pattern.length;
+        if (n <= 2L * (m - 1)) {
+            return scanDecoded(start, (int) n, state, start, t);
+        }
+        // Occurrences straddling the start, none unless a prefix is open.
+        if (state > 0) {
+            scanDecoded(start, m - 1, state, start, t);
+        }
+        // Those inside it, ending from start + m on, read ahead of the append
+        // when the copy overlaps its source.
+        if (matches > 0 && ends[matches - 1] >= start + m - distance) {
+            for (int k = lowerBound(start + m - distance); k < matches && ends[k] + distance <= decoded; k++) {
+                ensureMatches(1);
+                ends[matches++] = ends[k] + distance;
+            }
+        }
+        // The state only depends on the last m - 1 bytes.
+        return scanDecoded(decoded - (m - 1), m - 1, 0, -1, t);
+    }
+
+    /**
+     * Runs n decoded bytes from position from through the automaton.
+     *
+     * @param at decoded position of the first byte for the matches, -1 to
+     * drop them.
+     * @param hint a token at or before the one holding from.
+     */
+    private int scanDecoded(long from, int n, int state, long at, int hint) {
+        int done = 0;
+        while (done < n) {
+            int off = fetch(from + done, n - done, hint);
+            state = scan(src, off, fetched, state, at < 0 ? -1 : at + done);
+            done += fetched;
+        }
+        return state;
+    }
+
+    /**
+     * Follows the copies from position x back to the literal holding it.
+     *
+     * @return the offset of x in the encoding, {@link #fetched} is how many
+     * of the n bytes from x follow it there.
+     */
+    private int fetch(long x, int n, int hint) {
+        long k = n;
+        for (;;) {
+            int t = tokenAt(x, hint);
+            long tokenEnd = t + 1 < tokens ? starts[t + 1] : decoded;
+            k = Math.min(k, tokenEnd - x);
+            long r = x - starts[t];
+            long d = periods[t];
+            if (d != 0) {
+                if (r >= d) {// Inside an overlapping copy, which is periodic.
+                    r %= d;
+                }
+                k = Math.min(k, d - r);
+            }
+            if (refs[t] >= 0) {
+                fetched = (int) k;
+                return (int) (refs[t] + r);
+            }
+            x = froms[t] + r;
+            hint = sources[t];
+        }
+    }
+
+    /**
+     * Gallops forward from hint or the bucket of x, whichever is later.
+     */
+    private int tokenAt(long x, int hint) {
+        long b = x >>> bucketShift;
+        if (b >= bucketCount) {
+            return tokens - 1;
+        }
+        int lo = Math.max(hint, buckets[(int) b]);
+        int step = 1;
+        while (lo + step < tokens && starts[lo + step] <= x) {
+            lo += step;
+            step <<= 1;
+        }
+        int t = Arrays.binarySearch(starts, lo, Math.min(lo + step, tokens), x);
+        return t >= 0 ? t : -t - 2;
+    }
+
+    /**
+     * @param at decoded position of in[off], -1 to drop the matches.
+     */
+    private int scan(byte[] in, int off, int n, int state, long at) {
+        byte[] p = pattern;
+        int m = p.length;
+        byte first = p[0];
+        bytesScanned += n;
+        for (int i = 0; i < n; i++) {
+            if (state == 0) {// Most of the text, skip to a possible start.
+                while (i < n && in[off + i] != first) {
+                    i++;
+                }
+                if (i == n) {
+                    break;
+                }
+            }
+            byte b = in[off + i];
+            while (state > 0 && p[state] != b) {
+                state = fail[state];
+            }
+            if (p[state] == b && ++state == m) {
+                if (at >= 0) {
+                    ensureMatches(1);
+                    ends[matches++] = at + i + 1;
+                }
+                state = fail[m];
+            }
+        }
+        return state;
+    }
+
+    private int lowerBound(long end) {
+        int lo = 0;
+        int hi = matches;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ends[mid] < end) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private void add(long start, long period, long ref, long from, int source) {
+        if (tokens > 0) {// The previous token ends at start.
+            long needed = ((start - 1) >>> bucketShift) + 1;
+            while (needed > Math.max(MIN_BUCKETS, 2L * tokens)) {
+                bucketShift++;
+                bucketCount = (bucketCount + 1) / 2;
+                for (int i = 0; i < bucketCount; i++) {
+                    buckets[i] = buckets[2 * i];
+                }
+                needed = ((start - 1) >>> bucketShift) + 1;
+            }
+            if (needed > buckets.length) {
+                buckets = Arrays.copyOf(buckets, (int) Math.max(needed, 2L * buckets.length));
+            }
+            while (bucketCount < needed) {
+                buckets[bucketCount++] = tokens - 1;
+            }
+        }
+        if (tokens == starts.length) {
+            starts = Arrays.copyOf(starts, tokens * 2);
+            periods = Arrays.copyOf(periods, tokens * 2);
+            refs = Arrays.copyOf(refs, tokens * 2);
+            froms = Arrays.copyOf(froms, tokens * 2);
+            sources = Arrays.copyOf(sources, tokens * 2);
+        }
+        starts[tokens] = start;
+        periods[tokens] = period;
+        refs[tokens] = ref;
+        froms[tokens] = from;
+        sources[tokens++] = source;
+    }
+
+    private void ensureMatches(int more) {
+        if (matches + more > ends.length) {
+            ends = Arrays.copyOf(ends, Math.max(ends.length * 2, matches + more));
+        }
+    }
+}
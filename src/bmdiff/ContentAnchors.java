@@ -0,0 +1,89 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+/**
+ * Chooses the blocks whose fingerprints are stored by their content rather
+ * than their offset. By default the blocks starting at multiples of blockLen
+ * are stored, so text shifted by an insertion is stored at different block
+ * boundaries than before. With anchors a block is stored when its own
+ * fingerprint is one of roughly 1 in (avgGap - minGap + 1) values, so the
+ * same text gets the same anchors wherever it appears, shifted or not.
+ *
+ * Stored blocks are at least minGap apart, which also skips the anchors a
+ * long run of identical bytes would otherwise produce at every position, and
+ * at most maxGap apart, so text without any anchor is still indexed. Gaps
+ * bigger than blockLen store fewer fingerprints than the default, at the cost
+ * of missing repeats too short to hold an anchor.
+ *
+ * Immutable, one instance can be shared by any number of encoders.
+ *
+ * @author srikchan
+ */
+public final class ContentAnchors {
+
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+    private final int minGap;
+    private final int avgGap;
+    private final int maxGap;
+    private final long threshold;
+
+    /**
+     * @param minGap smallest distance between two stored blocks, at least 1.
+     * @param avgGap expected distance, from minGap to maxGap.
+     * @param maxGap biggest distance between two stored blocks.
+     */
+    public ContentAnchors(int minGap, int avgGap, int maxGap) {
+        if (minGap < 1 || avgGap < minGap || maxGap < avgGap) {
+            throw new IllegalArgumentException("Need 1 <= minGap <= avgGap <= maxGap, not "
+                    + minGap + ", " + avgGap + ", " + maxGap);
+        }
+        this.minGap = minGap;
+        this.avgGap = avgGap;
+        this.maxGap = maxGap;
+        this.threshold = Long.MAX_VALUE / (avgGap - minGap + 1);
+    }
+
+    /**
+     * Gaps of blockLen / 2 to 4 * blockLen averaging blockLen, about as many
+     * stored blocks as the fixed offsets.
+     */
+    public static ContentAnchors forBlockLen(int blockLen) {
+        return new ContentAnchors(Math.max(1, blockLen / 2), blockLen, 4 * blockLen);
+    }
+
+    public int minGap() {
+        return minGap;
+    }
+
+    public int avgGap() {
+        return avgGap;
+    }
+
+    public int maxGap() {
+        return maxGap;
+    }
+
+    /**
+     * Mixed first so the weak low bits of some fingerprints do not bias the
+     * choice.
+     *
+     * @return whether the block with this fingerprint is an anchor.
+     */
+    boolean isAnchor(long fingerPrint) {
+        return (fingerPrint * GOLDEN) >>> 1 < threshold;
+    }
+
+    @Override
+    public String toString() {
+        return "ContentAnchors(" + minGap + ", " + avgGap + ", " + maxGap + ")";
+    }
+}
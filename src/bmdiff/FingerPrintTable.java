@@ -0,0 +1,77 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+/**
+ * Maps the fingerprint of a block of 'b' characters to the index of the first
+ * block in the input which produced it, or to the first few when buckets are
+ * deeper than one.
+ *
+ * @author srikchan
+ */
+public interface FingerPrintTable {
+
+    /**
+     * Returned by {@link #get(long)} when the fingerprint was never stored.
+     */
+    int NOT_FOUND = -1;
+
+    /**
+     * @param fingerPrint
+     * @return index of the first block with this fingerprint or NOT_FOUND.
+     */
+    int get(long fingerPrint);
+
+    /**
+     * Tables which keep several blocks per fingerprint (see
+     * {@link LongIntHashTable#LongIntHashTable(int, int)}) return all of
+     * them, the others at most one.
+     *
+     * @param fingerPrint
+     * @param candidates filled with indices, earliest first.
+     * @return number of indices written, at most candidates.length.
+     */
+    int get(long fingerPrint, int[] candidates);
+
+    /**
+     * Stores the index only if the fingerprint is not already present, so the
+     * table always points to the earliest occurrence.
+     *
+     * @param fingerPrint
+     * @param index non negative block index.
+     */
+    void putIfAbsent(long fingerPrint, int index);
+
+    /**
+     * Stores the index replacing any earlier one.
+     *
+     * @param fingerPrint
+     * @param index non negative block index.
+     */
+    void put(long fingerPrint, int index);
+
+    /**
+     * Subtracts shift from every stored index and drops the entries which
+     * become negative, used when the input window slides forward.
+     *
+     * @param shift
+     */
+    void rebase(int shift);
+
+    int size();
+
+    /**
+     * Drops all entries and prepares the table for roughly capHint entries.
+     *
+     * @param capHint
+     */
+    void reset(int capHint);
+}
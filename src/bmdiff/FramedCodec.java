@@ -0,0 +1,452 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits the input into frames of frameSize bytes and encodes them
+ * concurrently on a ForkJoinPool, each frame with its own fingerprint table.
+ * A frame only references itself, or with seeding also the first frame, so
+ * the frames are independent of each other.
+ *
+ * <pre>
+ * header : 'B' 'F' version flags varint(blockLen) varint(frameSize)
+ *          varint(frameCount) varlong(length)
+ * frames : one {@link BinaryFormat} encoding per frame
+ * index  : frameCount x int64 offset of the frame in the container
+ * footer : int64 offset of the index, 'B' 'F'
+ * </pre>
+ *
+ * The index at the end lets a reader find any frame without touching the
+ * others, so {@link #decodeRange(byte[], long, int)} costs O(frame) whatever the
+ * size of the container and {@link #decodeParallel(byte[])} hands frames to
+ * the pool which write into disjoint parts of a single output array.
+ *
+ * With a block length of {@link BMDiffCodec#AUTO} every frame picks its own
+ * from a sample of itself, so a container of mixed data can use short blocks
+ * for some frames and long ones for others. The header then holds 0, each
+ * frame's own header has its length. Seeded frames all use the length chosen
+ * for the first frame, since they copy from its index.
+ *
+ * @author srikchan
+ */
+public class FramedCodec {
+
+    public static final int DEFAULT_FRAME_SIZE = 1 << 22;
+    static final byte MAGIC_0 = 'B';
+    static final byte MAGIC_1 = 'F';
+    static final int VERSION = 1;
+    /**
+     * Frames after the first may copy from the first frame.
+     */
+    static final int FLAG_SEEDED = 1;
+    static final int FOOTER_SIZE = 10;
+    private final int blockLen;
+    private final int frameSize;
+    private final ForkJoinPool pool;
+    private boolean seedWithFirstFrame;
+    private volatile CodecListener listener;
+
+    /**
+     * @param blockLen a positive length or {@link BMDiffCodec#AUTO}.
+     * @param frameSize
+     */
+    public FramedCodec(int blockLen, int frameSize) {
+        this(blockLen, frameSize, DefaultPool.POOL);
+    }
+
+    public FramedCodec(int blockLen, int frameSize, ForkJoinPool pool) {
+        if (blockLen < BMDiffCodec.AUTO || frameSize < 1) {
+            throw new IllegalArgumentException("Block length " + blockLen + " and frame size " + frameSize + " must be positive");
+        }
+        this.blockLen = blockLen;
+        this.frameSize = frameSize;
+        this.pool = pool;
+    }
+
+    /**
+     * When true a read only index of the first frame is shared by all the
+     * other frames so repeats of the first frame are still found, which keeps
+     * the ratio close to the single threaded encoder on uniform data.
+     *
+     * @param seedWithFirstFrame
+     */
+    public void setSeedWithFirstFrame(boolean seedWithFirstFrame) {
+        this.seedWithFirstFrame = seedWithFirstFrame;
+    }
+
+    /**
+     * Every frame encoded, or decoded by {@link #decodeParallel(byte[])}, is
+     * reported from the worker thread which did it.
+     *
+     * @param listener null turns reporting off.
+     */
+    public void setListener(CodecListener listener) {
+        this.listener = listener;
+    }
+
+    private static void report(CodecListener listener, CallStats call, long startTime, long bytesIn, long bytesOut) {
+        call.nanos = System.nanoTime() - startTime;
+        call.bytesIn = bytesIn;
+        call.bytesOut = bytesOut;
+        listener.onCall(call);
+    }
+
+    public byte[] encode(byte[] in) {
+        return encode(in, 0, in.length);
+    }
+
+    public byte[] encode(byte[] in, int off, int len) {
+        int frameCount = (int) ((len + (long) frameSize - 1) / frameSize);
+        boolean seeded = seedWithFirstFrame && frameCount > 1;
+        int headerBlockLen = blockLen;
+        BaseIndex seed = null;
+        if (seeded) {
+            // Frames copying from the first must share its block length.
+            if (blockLen == BMDiffCodec.AUTO) {
+                headerBlockLen = new BlockLengthSelector().select(in, off, frameSize);
+            }
+            seed = BaseIndex.build(in, off, frameSize, RollingHash.DEFAULT.create(headerBlockLen));
+        }
+        ByteOutput[] frames = new ByteOutput[frameCount];
+        if (frameCount > 0) {
+            pool.invoke(new EncodeFrames(in, off, len, 0, frameCount, seed, frames));
+        }
+        long total = 0;
+        for (ByteOutput frame : frames) {
+            total += frame.size();
+        }
+        ByteOutput out = new ByteOutput((int) Math.min(Integer.MAX_VALUE - 8, total + 32 + 8L * frameCount + FOOTER_SIZE));
+        writeHeader(out, seeded ? FLAG_SEEDED : 0, headerBlockLen, frameSize, frameCount, len);
+        long[] offsets = new long[frameCount];
+        for (int k = 0; k < frameCount; k++) {
+            offsets[k] = out.size();
+            out.write(frames[k].array(), 0, frames[k].size());
+            frames[k] = null;
+        }
+        long indexOffset = out.size();
+        for (long offset : offsets) {
+            out.writeLong(offset);
+        }
+        out.writeLong(indexOffset);
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        return out.toByteArray();
+    }
+
+    static void writeHeader(ByteOutput out, int flags, int blockLen, int frameSize, int frameCount, long length) {
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(VERSION);
+        out.write(flags);
+        out.writeVarInt(blockLen);
+        out.writeVarInt(frameSize);
+        out.writeVarInt(frameCount);
+        out.writeVarLong(length);
+    }
+
+    public byte[] decode(byte[] enc) {
+        return decode(enc, 0, enc.length);
+    }
+
+    public byte[] decode(byte[] enc, int off, int len) {
+        Layout layout = Layout.read(enc, off, len);
+        if (layout.length > Integer.MAX_VALUE - 8) {
+            throw BinaryFormat.corrupt("Decoded length " + layout.length + " does not fit an array");
+        }
+        byte[] dst = new byte[(int) layout.length];
+        ByteOutput out = ByteOutput.wrap(dst, 0, dst.length);
+        for (int k = 0; k < layout.frameCount; k++) {
+            layout.decodeFrame(enc, k, out, dst);
+        }
+        return dst;
+    }
+
+    /**
+     * Decodes the frames on the pool, all writing into one preallocated
+     * output. A seeded container decodes its first frame before the others.
+     *
+     * @param enc
+     * @return
+     */
+    public byte[] decodeParallel(byte[] enc) {
+        Layout layout = Layout.read(enc, 0, enc.length);
+        if (layout.length > Integer.MAX_VALUE - 8) {
+            throw BinaryFormat.corrupt("Decoded length " + layout.length + " does not fit an array");
+        }
+        byte[] dst = new byte[(int) layout.length];
+        int from = 0;
+        if (layout.isSeeded() && layout.frameCount > 0) {
+            layout.decodeFrame(enc, 0, ByteOutput.wrap(dst, 0, layout.frameLength(0)), dst);
+            from = 1;
+        }
+        if (from < layout.frameCount) {
+            pool.invoke(new DecodeFrames(layout, enc, dst, from, layout.frameCount, listener));
+        }
+        return dst;
+    }
+
+    /**
+     * Decodes only the frames covering [offset, offset + length) of the
+     * original input, plus the first frame when the container is seeded.
+     *
+     * @param enc
+     * @param offset in the decoded data.
+     * @param length
+     * @return
+     */
+    public byte[] decodeRange(byte[] enc, long offset, int length) {
+        Layout layout = Layout.read(enc, 0, enc.length);
+        if (offset < 0 || length < 0 || offset + length > layout.length) {
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " outside " + layout.length);
+        }
+        byte[] dst = new byte[length];
+        if (length == 0) {
+            return dst;
+        }
+        int first = (int) (offset / layout.frameSize);
+        int last = (int) ((offset + length - 1) / layout.frameSize);
+        byte[] firstFrame = null;
+        byte[] frame = new byte[layout.frameLength(first)];
+        if (layout.isSeeded() && first > 0) {
+            firstFrame = new byte[layout.frameSize];
+            layout.decodeFrame(enc, 0, ByteOutput.wrap(firstFrame, 0, firstFrame.length), null);
+        }
+        int written = 0;
+        for (int k = first; k <= last; k++) {
+            int frameLen = layout.frameLength(k);
+            layout.decodeFrame(enc, k, ByteOutput.wrap(frame, 0, frameLen), k == 0 ? null : firstFrame);
+            if (k == 0 && layout.isSeeded()) {
+                firstFrame = frame.clone();
+            }
+            long frameStart = (long) k * layout.frameSize;
+            int from = (int) Math.max(0, offset - frameStart);
+            int n = Math.min(frameLen - from, length - written);
+            System.arraycopy(frame, from, dst, written, n);
+            written += n;
+        }
+        return dst;
+    }
+
+    /**
+     * @param enc
+     * @return length of the original input.
+     */
+    public static long decodedLength(byte[] enc) {
+        return Layout.read(enc, 0, enc.length).length;
+    }
+
+    /**
+     * Header and index of an encoded container.
+     */
+    static final class Layout {
+
+        int flags;
+        int blockLen;
+        int frameSize;
+        int frameCount;
+        long length;
+        /**
+         * Absolute offset in the encoded array of every frame plus the end of
+         * the last frame.
+         */
+        int[] offsets;
+
+        static Layout read(byte[] enc, int off, int len) {
+            BinaryFormat.Reader r = new BinaryFormat.Reader(enc, off, len);
+            Layout layout = readHeader(r);
+            int end = off + len;
+            if (len < FOOTER_SIZE || enc[end - 2] != MAGIC_0 || enc[end - 1] != MAGIC_1) {
+                throw BinaryFormat.corrupt("Missing footer");
+            }
+            long indexOffset = BinaryFormat.readLong(enc, end - FOOTER_SIZE);
+            if (indexOffset < r.pos - off || indexOffset + 8L * layout.frameCount != len - FOOTER_SIZE) {
+                throw BinaryFormat.corrupt("Bad index offset " + indexOffset);
+            }
+            int index = off + (int) indexOffset;
+            layout.offsets = new int[layout.frameCount + 1];
+            for (int k = 0; k < layout.frameCount; k++) {
+                long offset = BinaryFormat.readLong(enc, index + 8 * k);
+                if (offset < r.pos - off || offset > indexOffset || (k > 0 && offset < layout.offsets[k - 1] - off)) {
+                    throw BinaryFormat.corrupt("Bad frame offset " + offset);
+                }
+                layout.offsets[k] = off + (int) offset;
+            }
+            layout.offsets[layout.frameCount] = index;
+            return layout;
+        }
+
+        /**
+         * Reads the header up to the first frame, offsets stays null.
+         */
+        static Layout readHeader(BinaryFormat.Reader r) {
+            if (r.readByte() != MAGIC_0 || r.readByte() != MAGIC_1) {
+                throw BinaryFormat.corrupt("Not a BMDiff framed encoding");
+            }
+            int version = r.readByte();
+            if (version != VERSION) {
+                throw BinaryFormat.corrupt("Unsupported version " + version);
+            }
+            Layout layout = new Layout();
+            layout.flags = r.readByte();
+            layout.blockLen = r.readVarInt();
+            layout.frameSize = r.readVarInt();
+            layout.frameCount = r.readVarInt();
+            layout.length = r.readVarLong();
+            if (layout.frameSize < 1 || layout.length < 0 || (layout.length + layout.frameSize - 1) / layout.frameSize != layout.frameCount) {
+                throw BinaryFormat.corrupt("Frame count " + layout.frameCount + " does not match length " + layout.length);
+            }
+            return layout;
+        }
+
+        boolean isSeeded() {
+            return (flags & FLAG_SEEDED) != 0;
+        }
+
+        int frameLength(int k) {
+            return (int) Math.min(frameSize, length - (long) k * frameSize);
+        }
+
+        /**
+         * Appends frame k to out.
+         *
+         * @param firstFrame the decoded first frame, needed by seeded frames.
+         */
+        void decodeFrame(byte[] enc, int k, ByteOutput out, byte[] firstFrame) {
+            int before = out.size();
+            if (k > 0 && isSeeded()) {
+                ByteDecoder.decode(enc, offsets[k], offsets[k + 1] - offsets[k], out, firstFrame, 0, frameSize);
+            } else {
+                ByteDecoder.decode(enc, offsets[k], offsets[k + 1] - offsets[k], out);
+            }
+            if (out.size() - before != frameLength(k)) {
+                throw BinaryFormat.corrupt("Frame " + k + " decoded to " + (out.size() - before) + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Encodes frames [from, to), halving the range until a single frame is
+     * left.
+     */
+    private final class EncodeFrames extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final byte[] in;
+        private final int off;
+        private final int len;
+        private final int from;
+        private final int to;
+        private final BaseIndex seed;
+        private final ByteOutput[] frames;
+
+        EncodeFrames(byte[] in, int off, int len, int from, int to, BaseIndex seed, ByteOutput[] frames) {
+            this.in = in;
+            this.off = off;
+            this.len = len;
+            this.from = from;
+            this.to = to;
+            this.seed = seed;
+            this.frames = frames;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new EncodeFrames(in, off, len, from, mid, seed, frames),
+                        new EncodeFrames(in, off, len, mid, to, seed, frames));
+                return;
+            }
+            CodecListener listener = FramedCodec.this.listener;
+            long startTime = listener == null ? 0 : System.nanoTime();
+            int frameOff = (int) ((long) from * frameSize);
+            int frameLen = Math.min(frameSize, len - frameOff);
+            ByteEncoder encoder;
+            BlockLengthSelector selector = null;
+            if (seed != null) {
+                encoder = new ByteEncoder(seed.blockLen(), new LongIntHashTable());
+            } else if (blockLen == BMDiffCodec.AUTO) {
+                selector = new BlockLengthSelector();
+                encoder = selector.encoderFor(selector.select(in, off + frameOff, frameLen));
+            } else {
+                encoder = new ByteEncoder(blockLen, new LongIntHashTable());
+            }
+            if (from > 0) {
+                encoder.setBase(seed);
+            }
+            ByteOutput out = new ByteOutput(frameLen / 2);
+            encoder.encode(in, off + frameOff, frameLen, out);
+            frames[from] = out;
+            if (listener != null) {
+                CallStats call = new CallStats();
+                call.clear(true);
+                encoder.collect(call);
+                if (selector != null) {
+                    call.selectedBlockLen = encoder.blockLen();
+                    call.selectNanos = selector.lastNanos();
+                }
+                report(listener, call, startTime, frameLen, out.size());
+            }
+        }
+    }
+
+    /**
+     * Decodes frames [from, to) into their place in dst.
+     */
+    private static final class DecodeFrames extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final Layout layout;
+        private final byte[] enc;
+        private final byte[] dst;
+        private final int from;
+        private final int to;
+        private final CodecListener listener;
+
+        DecodeFrames(Layout layout, byte[] enc, byte[] dst, int from, int to, CodecListener listener) {
+            this.layout = layout;
+            this.enc = enc;
+            this.dst = dst;
+            this.from = from;
+            this.to = to;
+            this.listener = listener;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new DecodeFrames(layout, enc, dst, from, mid, listener),
+                        new DecodeFrames(layout, enc, dst, mid, to, listener));
+                return;
+            }
+            long startTime = listener == null ? 0 : System.nanoTime();
+            int frameOff = (int) ((long) from * layout.frameSize);
+            layout.decodeFrame(enc, from, ByteOutput.wrap(dst, frameOff, layout.frameLength(from)), dst);
+            if (listener != null) {
+                CallStats call = new CallStats();
+                call.clear(false);
+                report(listener, call, startTime, layout.offsets[from + 1] - layout.offsets[from], layout.frameLength(from));
+            }
+        }
+    }
+
+    /**
+     * Lazily created pool used when none is given.
+     */
+    private static final class DefaultPool {
+
+        static final ForkJoinPool POOL = new ForkJoinPool();
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+/**
+ * Gear hash: sum of G[b[i]] shifted left by blockLen - 1 - i, mod 2^64.
+ * Rolling is a shift and an add, the outgoing byte has been shifted blockLen
+ * times and is subtracted, for blocks of 64 bytes or more it has already
+ * been shifted out. Only the last 64 bytes of a longer block reach the
+ * fingerprint, which does not matter as candidates are verified.
+ *
+ * @author srikchan
+ */
+final class GearHash implements RollingHash {
+
+    static final long[] TABLE = BuzHash.randomTable(0x47454152L);
+    private final int blockLen;
+    private final long outMask;// 0 when the outgoing byte is already gone.
+
+    GearHash(int blockLen) {
+        if (blockLen < 1) {
+            throw new IllegalArgumentException("Block length must be positive " + blockLen);
+        }
+        this.blockLen = blockLen;
+        this.outMask = blockLen < 64 ? -1L : 0;
+    }
+
+    @Override
+    public Kind kind() {
+        return Kind.GEAR;
+    }
+
+    @Override
+    public int blockLen() {
+        return blockLen;
+    }
+
+    @Override
+    public long hash(byte[] in, int start) {
+        long hash = 0;
+        for (int i = 0; i < blockLen; i++) {
+            hash = (hash << 1) + TABLE[in[start + i] & 0xFF];
+        }
+        return hash;
+    }
+
+    @Override
+    public long roll(long hash, int out, int in) {
+        return (hash << 1) + TABLE[in] - ((TABLE[out] << blockLen) & outMask);
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing (linear probing) long to int table. Keys and values live in
+ * two parallel primitive arrays so neither lookups nor inserts box or allocate.
+ * The capacity is always a power of two and the table is kept at most half
+ * full. Since stored values are block indices (never negative) an empty slot is
+ * marked by a value of NOT_FOUND, which lets every long be a valid key.
+ *
+ * With a bucket depth above one a key may occupy up to depth slots, all in
+ * the probe run starting at its home slot, so that blocks which collide on
+ * the fingerprint but differ in content can all be found.
+ *
+ * @author srikchan
+ */
+public final class LongIntHashTable implements FingerPrintTable {
+
+    private static final int MIN_CAPACITY = 16;
+    public static final int MAX_DEPTH = 16;
+    /**
+     * Fibonacci hashing, spreads the poorly mixed polynomial fingerprints over
+     * the high bits which are then used as the slot.
+     */
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int shift;
+    private int size;
+    private int resizeAt;
+    private long[] spareKeys;
+    private int[] spareValues;
+    private final int depth;
+
+    public LongIntHashTable(int capHint) {
+        this(capHint, 1);
+    }
+
+    /**
+     * @param capHint
+     * @param depth blocks kept per fingerprint, 1 to {@link #MAX_DEPTH}.
+     */
+    public LongIntHashTable(int capHint, int depth) {
+        if (depth < 1 || depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Bucket depth " + depth + " not in 1.." + MAX_DEPTH);
+        }
+        this.depth = depth;
+        allocate(capacityFor(capHint));
+    }
+
+    public LongIntHashTable() {
+        this(MIN_CAPACITY);
+    }
+
+    private static int capacityFor(int capHint) {
+        int cap = MIN_CAPACITY;
+        while (cap < (1 << 30) && cap / 2 < capHint) {
+            cap <<= 1;
+        }
+        return cap;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NOT_FOUND);
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        resizeAt = capacity / 2;
+        size = 0;
+    }
+
+    private int slot(long key) {
+        return (int) ((key * GOLDEN) >>> shift);
+    }
+
+    @Override
+    public int get(long fingerPrint) {
+        int i = slot(fingerPrint);
+        int v;
+        while ((v = values[i]) != NOT_FOUND) {
+            if (keys[i] == fingerPrint) {
+                return v;
+            }
+            i = (i + 1) & mask;
+        }
+        return NOT_FOUND;
+    }
+
+    @Override
+    public int get(long fingerPrint, int[] candidates) {
+        int max = Math.min(depth, candidates.length);
+        int n = 0;
+        int i = slot(fingerPrint);
+        int v;
+        while (n < max && (v = values[i]) != NOT_FOUND) {
+            if (keys[i] == fingerPrint) {
+                candidates[n++] = v;
+            }
+            i = (i + 1) & mask;
+        }
+        return n;
+    }
+
+    /**
+     * Keeps the first depth indices of every fingerprint.
+     */
+    @Override
+    public void putIfAbsent(long fingerPrint, int index) {
+        int i = slot(fingerPrint);
+        int found = 0;
+        while (values[i] != NOT_FOUND) {
+            if (keys[i] == fingerPrint && ++found == depth) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = fingerPrint;
+        values[i] = index;
+        if (++size > resizeAt) {
+            grow();
+        }
+    }
+
+    /**
+     * With a full bucket the smallest (oldest) index is replaced.
+     */
+    @Override
+    public void put(long fingerPrint, int index) {
+        int i = slot(fingerPrint);
+        int found = 0;
+        int oldest = -1;
+        while (values[i] != NOT_FOUND) {
+            if (keys[i] == fingerPrint) {
+                if (oldest < 0 || values[i] < values[oldest]) {
+                    oldest = i;
+                }
+                if (++found == depth) {
+                    values[oldest] = index;
+                    return;
+                }
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = fingerPrint;
+        values[i] = index;
+        if (++size > resizeAt) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(oldKeys.length << 1);
+        reinsert(oldKeys, oldValues, 0);
+    }
+
+    /**
+     * Linear probing cannot simply blank out removed slots, so the survivors
+     * are reinserted into the spare pair of arrays which then become current.
+     * The old arrays are kept as the spare for the next call.
+     *
+     * @param shift
+     */
+    @Override
+    public void rebase(int shift) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        if (spareKeys == null || spareKeys.length != oldKeys.length) {
+            spareKeys = new long[oldKeys.length];
+            spareValues = new int[oldKeys.length];
+        }
+        keys = spareKeys;
+        values = spareValues;
+        Arrays.fill(values, NOT_FOUND);
+        size = 0;
+        spareKeys = oldKeys;
+        spareValues = oldValues;
+        reinsert(oldKeys, oldValues, shift);
+    }
+
+    private void reinsert(long[] oldKeys, int[] oldValues, int shift) {
+        for (int j = 0; j < oldKeys.length; j++) {
+            int v = oldValues[j] - shift;
+            if (oldValues[j] != NOT_FOUND && v >= 0) {
+                int i = slot(oldKeys[j]);
+                while (values[i] != NOT_FOUND) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = v;
+                size++;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Reuses the arrays when they are big enough and not grossly oversized,
+     * otherwise reallocates them to fit capHint.
+     *
+     * @param capHint
+     */
+    @Override
+    public void reset(int capHint) {
+        int capacity = capacityFor(capHint);
+        if (capacity <= keys.length && keys.length <= capacity << 2) {
+            Arrays.fill(values, NOT_FOUND);
+            size = 0;
+        } else {
+            allocate(capacity);
+            spareKeys = null;
+            spareValues = null;
+        }
+    }
+
+    /**
+     * Writes the depth and the entries, in slot order so a reader keeps the
+     * order of the entries of a key.
+     */
+    void writeTo(ByteOutput out) {
+        out.writeVarInt(depth);
+        out.writeVarInt(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != NOT_FOUND) {
+                out.writeLong(keys[i]);
+                out.writeVarInt(values[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads what {@link #writeTo(ByteOutput)} wrote, in time proportional to
+     * the number of entries.
+     *
+     * @param r
+     * @param maxValue bound of the stored values.
+     */
+    static LongIntHashTable readFrom(BinaryFormat.Reader r, int maxValue) {
+        int depth = r.readVarInt();
+        int size = r.readVarInt();
+        if (depth < 1 || depth > MAX_DEPTH || size > (r.end - r.pos) / 9) {// An entry takes at least 9 bytes.
+            throw BinaryFormat.corrupt("Bad table of " + size + " entries");
+        }
+        LongIntHashTable table = new LongIntHashTable(size, depth);
+        long[] keys = new long[size];
+        int[] values = new int[size];
+        for (int k = 0; k < size; k++) {
+            if (r.end - r.pos < 8) {
+                throw BinaryFormat.corrupt("Truncated input");
+            }
+            keys[k] = BinaryFormat.readLong(r.src, r.pos);
+            r.pos += 8;
+            values[k] = r.readVarInt();
+            if (values[k] >= maxValue) {
+                throw BinaryFormat.corrupt("Table entry " + values[k] + " out of range");
+            }
+        }
+        table.reinsert(keys, values, 0);
+        return table;
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    public int depth() {
+        return depth;
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The original HashMap backed table. Every put and get boxes the fingerprint
+ * and the index, it is kept only to compare throughput and allocation against
+ * {@link LongIntHashTable}.
+ *
+ * @author srikchan
+ */
+public final class MapFingerPrintTable implements FingerPrintTable {
+
+    private Map<Long, Integer> map = new HashMap<>();
+
+    @Override
+    public int get(long fingerPrint) {
+        Integer index = map.get(fingerPrint);
+        return index == null ? NOT_FOUND : index;
+    }
+
+    @Override
+    public int get(long fingerPrint, int[] candidates) {
+        int index = get(fingerPrint);
+        if (index == NOT_FOUND || candidates.length == 0) {
+            return 0;
+        }
+        candidates[0] = index;
+        return 1;
+    }
+
+    @Override
+    public void putIfAbsent(long fingerPrint, int index) {
+        if (!map.containsKey(fingerPrint)) {
+            map.put(fingerPrint, index);
+        }
+    }
+
+    @Override
+    public void put(long fingerPrint, int index) {
+        map.put(fingerPrint, index);
+    }
+
+    @Override
+    public void rebase(int shift) {
+        Iterator<Map.Entry<Long, Integer>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Integer> e = it.next();
+            int v = e.getValue() - shift;
+            if (v < 0) {
+                it.remove();
+            } else {
+                e.setValue(v);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void reset(int capHint) {
+        map = new HashMap<>(capHint);
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Encodes and decodes files through memory maps instead of reading them into
+ * the heap. The input is mapped piecewise and handed to a
+ * {@link BMDiffOutputStream}, which copies it straight from the mapping into
+ * its window, and the tokens leave through one direct buffer written to the
+ * target channel. The encoding declares the file length, so decoding maps the
+ * target at that length up front and {@link BMDiffInputStream} copies straight
+ * from its history into the mapping.
+ *
+ * The heap in use is the window of the stream (twice it for the encoder,
+ * which also holds the fingerprints of the window), whatever the size of the
+ * file. Each input byte is copied once into the encoder and each decoded byte
+ * once out of the decoder, both work on arrays so that copy is the floor.
+ * The encoding is an ordinary stream encoding which {@link BMDiffInputStream}
+ * can read too.
+ *
+ * Mappings are released only when they are garbage collected, which on some
+ * platforms keeps the files from being deleted until then. A source which is
+ * truncated while it is encoded, or a disk which fills while the target is
+ * decoded, surfaces as an {@link InternalError} from the mapped access rather
+ * than an IOException.
+ *
+ * @author srikchan
+ */
+public final class MappedFileCodec {
+
+    /**
+     * Bytes mapped at a time, well below the 2GB limit of a single mapping.
+     */
+    public static final int DEFAULT_MAP_SIZE = 1 << 26;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    private MappedFileCodec() {
+    }
+
+    /**
+     * Encodes source into target with the default block length and window.
+     *
+     * @param source
+     * @param target created or truncated.
+     * @return length of the encoding.
+     * @throws IOException
+     */
+    public static long encode(Path source, Path target) throws IOException {
+        return encode(source, target, BMDiffOutputStream.DEFAULT_BLOCK_LEN, BMDiffOutputStream.DEFAULT_WINDOW, DEFAULT_MAP_SIZE);
+    }
+
+    /**
+     * @param source
+     * @param target created or truncated.
+     * @param blockLen a positive length or {@link BMDiffCodec#AUTO}.
+     * @param window maximum back reference distance, at least 2 * blockLen.
+     * @param mapSize bytes of the source mapped at a time.
+     * @return length of the encoding.
+     * @throws IOException
+     */
+    public static long encode(Path source, Path target, int blockLen, int window, int mapSize) throws IOException {
+        checkMapSize(mapSize);
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            ChannelOutput sink = new ChannelOutput(out);
+            BMDiffOutputStream encoder = new BMDiffOutputStream(sink, blockLen, window, size);
+            for (long pos = 0; pos < size; pos += mapSize) {
+                encoder.write(in.map(MapMode.READ_ONLY, pos, Math.min(mapSize, size - pos)));
+            }
+            encoder.finish();
+            sink.flush();
+            return out.position();
+        }
+    }
+
+    /**
+     * Decodes what {@link #encode(Path, Path)} wrote.
+     *
+     * @param source
+     * @param target created or truncated, left partially written when the
+     * encoding turns out to be corrupt.
+     * @return the decoded length.
+     * @throws IOException
+     */
+    public static long decode(Path source, Path target) throws IOException {
+        return decode(source, target, DEFAULT_MAP_SIZE);
+    }
+
+    /**
+     * @param source a stream encoding which declares its length.
+     * @param target created or truncated, left partially written when the
+     * encoding turns out to be corrupt.
+     * @param mapSize bytes of either file mapped at a time.
+     * @return the decoded length.
+     * @throws IOException
+     */
+    public static long decode(Path source, Path target, int mapSize) throws IOException {
+        checkMapSize(mapSize);
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            BMDiffInputStream decoder = new BMDiffInputStream(new MappedInput(in, mapSize));
+            long length = decoder.length();
+            if (length < 0) {
+                throw new IOException(source + " does not declare its decoded length, use BMDiffInputStream");
+            }
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (long pos = 0; pos < length; pos += mapSize) {
+                    MappedByteBuffer dst = out.map(MapMode.READ_WRITE, pos, Math.min(mapSize, length - pos));
+                    while (dst.hasRemaining()) {
+                        if (decoder.read(dst) < 0) {
+                            throw new EOFException("Unexpected end of BMDiff stream");
+                        }
+                    }
+                }
+                if (decoder.read() != -1) {// Reads the end and checks the length.
+                    throw new IOException("Corrupt BMDiff stream: decodes past the declared length " + length);
+                }
+            }
+            return length;
+        }
+    }
+
+    private static void checkMapSize(int mapSize) {
+        if (mapSize < 1) {
+            throw new IllegalArgumentException("Map size " + mapSize + " not positive");
+        }
+    }
+
+    /**
+     * Reads a channel through successive read only mappings.
+     */
+    private static final class MappedInput extends InputStream {
+
+        private final FileChannel channel;
+        private final int mapSize;
+        private final long size;
+        private long mapped;
+        private ByteBuffer current = ByteBuffer.allocate(0);
+
+        MappedInput(FileChannel channel, int mapSize) throws IOException {
+            this.channel = channel;
+            this.mapSize = mapSize;
+            this.size = channel.size();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!next()) {
+                return -1;
+            }
+            return current.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!next()) {
+                return -1;
+            }
+            int n = Math.min(len, current.remaining());
+            current.get(b, off, n);
+            return n;
+        }
+
+        private boolean next() throws IOException {
+            if (!current.hasRemaining()) {
+                if (mapped == size) {
+                    return false;
+                }
+                int n = (int) Math.min(mapSize, size - mapped);
+                current = channel.map(MapMode.READ_ONLY, mapped, n);
+                mapped += n;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Gathers writes in one direct buffer, which the channel writes without
+     * copying it again.
+     */
+    private static final class ChannelOutput extends OutputStream {
+
+        private final FileChannel channel;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+        ChannelOutput(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buf.hasRemaining()) {
+                flush();
+            }
+            buf.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buf.hasRemaining()) {
+                    flush();
+                }
+                int n = Math.min(len, buf.remaining());
+                buf.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            buf.clear();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+/**
+ * Length of the common prefix of two array ranges, what match verification
+ * and extension spend their time on. On Java 9 and later this is
+ * Arrays.mismatch, which the JIT turns into a comparison of many bytes per
+ * instruction. The codec still runs on Java 7, so the method is looked up
+ * once when this class loads, through a constant MethodHandle the JIT inlines
+ * like a direct call, and the scalar loop is used where it does not exist.
+ * Setting the system property bmdiff.scalar to true forces the scalar loop,
+ * for comparing the two.
+ *
+ * @author srikchan
+ */
+public final class Mismatch {
+
+    /**
+     * Shorter ranges are compared in the loop, below this the setup of the
+     * vectorized comparison costs more than it saves.
+     */
+    static final int MIN_ACCELERATED = 16;
+    private static final MethodHandle BYTES = find(byte[].class);
+    private static final MethodHandle CHARS = find(char[].class);
+
+    private Mismatch() {
+    }
+
+    private static MethodHandle find(Class<?> array) {
+        if (Boolean.getBoolean("bmdiff.scalar")) {
+            return null;
+        }
+        try {
+            return MethodHandles.publicLookup().findStatic(Arrays.class, "mismatch",
+                    MethodType.methodType(int.class, array, int.class, int.class, array, int.class, int.class));
+        } catch (NoSuchMethodException e) {// Before Java 9.
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether Arrays.mismatch is used.
+     */
+    public static boolean accelerated() {
+        return BYTES != null;
+    }
+
+    /**
+     * @return the first k below len where a[aFrom + k] != b[bFrom + k], len
+     * when the ranges are equal.
+     */
+    static int bytes(byte[] a, int aFrom, byte[] b, int bFrom, int len) {
+        if (BYTES == null || len < MIN_ACCELERATED) {
+            int k = 0;
+            while (k < len && a[aFrom + k] == b[bFrom + k]) {
+                k++;
+            }
+            return k;
+        }
+        int k;
+        try {
+            k = (int) BYTES.invokeExact(a, aFrom, aFrom + len, b, bFrom, bFrom + len);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+        return k < 0 ? len : k;
+    }
+
+    /**
+     * Same for chars.
+     */
+    static int chars(char[] a, int aFrom, char[] b, int bFrom, int len) {
+        if (CHARS == null || len < MIN_ACCELERATED) {
+            int k = 0;
+            while (k < len && a[aFrom + k] == b[bFrom + k]) {
+                k++;
+            }
+            return k;
+        }
+        int k;
+        try {
+            k = (int) CHARS.invokeExact(a, aFrom, aFrom + len, b, bFrom, bFrom + len);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+        return k < 0 ? len : k;
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+/**
+ * Runs the input through a chain of {@link Stage}s on encode and through the
+ * same chain in reverse on decode. Stages hand over their output through two
+ * buffers which are reused across calls, so nothing is copied between stages.
+ * The time spent and the bytes seen by every stage are accumulated for
+ * tuning the throughput/ratio trade off.
+ *
+ * A pipeline keeps state between calls and must not be shared by threads, the
+ * decoding side has to be built with the same stages and settings.
+ *
+ * @author srikchan
+ */
+public class Pipeline {
+
+    private final Stage[] stages;
+    private final ByteOutput[] scratch = {new ByteOutput(), new ByteOutput()};
+    private final long[] encodeNanos;
+    private final long[] decodeNanos;
+    private final long[] encodeBytesIn;
+    private final long[] encodeBytesOut;
+    private final long[] decodeBytesOut;
+
+    public Pipeline(Stage... stages) {
+        if (stages.length == 0) {
+            throw new IllegalArgumentException("At least one stage needed");
+        }
+        this.stages = stages.clone();
+        encodeNanos = new long[stages.length];
+        decodeNanos = new long[stages.length];
+        encodeBytesIn = new long[stages.length];
+        encodeBytesOut = new long[stages.length];
+        decodeBytesOut = new long[stages.length];
+    }
+
+    /**
+     * BMDiff for the long repeats followed by {@link ShortMatchStage} for the
+     * short ones.
+     *
+     * @param blockLen
+     * @return
+     */
+    public static Pipeline bmdiffThenShortMatch(int blockLen) {
+        return new Pipeline(new BMDiffStage(blockLen), new ShortMatchStage());
+    }
+
+    public byte[] encode(byte[] in) {
+        ByteOutput out = new ByteOutput(in.length / 2);
+        encode(in, 0, in.length, out);
+        return out.toByteArray();
+    }
+
+    public byte[] decode(byte[] enc) {
+        ByteOutput out = new ByteOutput(enc.length * 2);
+        decode(enc, 0, enc.length, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Appends the encoding of src[off, off + len) to out.
+     */
+    public void encode(byte[] src, int off, int len, ByteOutput out) {
+        byte[] cur = src;
+        int curOff = off;
+        int curLen = len;
+        for (int i = 0; i < stages.length; i++) {
+            ByteOutput target = i == stages.length - 1 ? out : scratch[i & 1];
+            if (target != out) {
+                target.reset();
+            }
+            int before = target.size();
+            long startTime = System.nanoTime();
+            stages[i].encode(cur, curOff, curLen, target);
+            encodeNanos[i] += System.nanoTime() - startTime;
+            encodeBytesIn[i] += curLen;
+            encodeBytesOut[i] += target.size() - before;
+            cur = target.array();
+            curOff = before;
+            curLen = target.size() - before;
+        }
+    }
+
+    /**
+     * Appends the decoding of src[off, off + len) to out.
+     */
+    public void decode(byte[] src, int off, int len, ByteOutput out) {
+        byte[] cur = src;
+        int curOff = off;
+        int curLen = len;
+        for (int i = stages.length - 1; i >= 0; i--) {
+            ByteOutput target = i == 0 ? out : scratch[i & 1];
+            if (target != out) {
+                target.reset();
+            }
+            int before = target.size();
+            long startTime = System.nanoTime();
+            stages[i].decode(cur, curOff, curLen, target);
+            decodeNanos[i] += System.nanoTime() - startTime;
+            decodeBytesOut[i] += target.size() - before;
+            cur = target.array();
+            curOff = before;
+            curLen = target.size() - before;
+        }
+    }
+
+    public int stageCount() {
+        return stages.length;
+    }
+
+    public Stage stage(int i) {
+        return stages[i];
+    }
+
+    public long encodeNanos(int stage) {
+        return encodeNanos[stage];
+    }
+
+    public long decodeNanos(int stage) {
+        return decodeNanos[stage];
+    }
+
+    public long encodeBytesIn(int stage) {
+        return encodeBytesIn[stage];
+    }
+
+    public long encodeBytesOut(int stage) {
+        return encodeBytesOut[stage];
+    }
+
+    public long decodeBytesOut(int stage) {
+        return decodeBytesOut[stage];
+    }
+
+    public void resetTimings() {
+        for (int i = 0; i < stages.length; i++) {
+            encodeNanos[i] = 0;
+            decodeNanos[i] = 0;
+            encodeBytesIn[i] = 0;
+            encodeBytesOut[i] = 0;
+            decodeBytesOut[i] = 0;
+        }
+    }
+
+    /**
+     * One line per stage with its ratio and speed.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < stages.length; i++) {
+            sb.append(stages[i].name())
+                    .append(": ").append(encodeBytesIn[i]).append(" -> ").append(encodeBytesOut[i])
+                    .append(" bytes, encode ").append(mbPerSec(encodeBytesIn[i], encodeNanos[i]))
+                    .append("MB/sec, decode ").append(mbPerSec(decodeBytesOut[i], decodeNanos[i]))
+                    .append("MB/sec\n");
+        }
+        return sb.toString();
+    }
+
+    private static String mbPerSec(long bytes, long nanos) {
+        return nanos == 0 ? "-" : String.format("%.1f", bytes * 1000.0 / nanos);
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+/**
+ * Rabin Karp fingerprint sum of b[i] * base^(blockLen - 1 - i) mod 2^64.
+ *
+ * @author srikchan
+ */
+final class PolynomialHash implements RollingHash {
+
+    static final long SMALL_BASE = 11;// Prime
+    /**
+     * Odd so it is invertible mod 2^64, with the bits spread so one byte
+     * changes most of the fingerprint.
+     */
+    static final long LARGE_BASE = 0x9E3779B97F4A7C15L;
+    private final Kind kind;
+    private final int blockLen;
+    private final long base;
+    private final long topPow;// base^(blockLen - 1)
+
+    PolynomialHash(Kind kind, int blockLen, long base) {
+        if (blockLen < 1) {
+            throw new IllegalArgumentException("Block length must be positive " + blockLen);
+        }
+        this.kind = kind;
+        this.blockLen = blockLen;
+        this.base = base;
+        long pow = 1;
+        for (int i = 1; i < blockLen; i++) {
+            pow *= base;
+        }
+        this.topPow = pow;
+    }
+
+    @Override
+    public Kind kind() {
+        return kind;
+    }
+
+    @Override
+    public int blockLen() {
+        return blockLen;
+    }
+
+    @Override
+    public long hash(byte[] in, int start) {
+        long hash = 0;
+        for (int i = 0; i < blockLen; i++) {
+            hash = hash * base + (in[start + i] & 0xFF);
+        }
+        return hash;
+    }
+
+    @Override
+    public long roll(long hash, int out, int in) {
+        return (hash - out * topPow) * base + in;
+    }
+}
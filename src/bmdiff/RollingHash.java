@@ -0,0 +1,90 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+/**
+ * Fingerprint of a window of blockLen bytes which can be moved one byte to
+ * the right in O(1). The encoder and {@link BaseIndex} hold it in a final
+ * field and roll it from a single call site, which the JIT inlines while the
+ * JVM has seen one or two kinds there. Encoding with more kinds in one JVM
+ * turns it into a virtual call.
+ *
+ * Fingerprints only steer the search, every candidate is verified against
+ * the text, so the choice changes speed and ratio but never the format and
+ * the decoder does not care which one was used.
+ *
+ * @author srikchan
+ */
+public interface RollingHash {
+
+    /**
+     * The built in functions.
+     */
+    enum Kind {
+
+        /**
+         * The original sum of b[i] * 11^(blockLen - 1 - i), cheap but the
+         * small base mixes the bytes poorly.
+         */
+        POLYNOMIAL,
+        /**
+         * Same recurrence with a large odd multiplier (mod 2^64), every byte
+         * affects the high bits.
+         */
+        RABIN_KARP,
+        /**
+         * Cyclic polynomial, XOR of rotated random 64 bit values per byte.
+         */
+        BUZHASH,
+        /**
+         * Gear hash, shift and add of random 64 bit values per byte.
+         */
+        GEAR;
+
+        public RollingHash create(int blockLen) {
+            switch (this) {
+                case POLYNOMIAL:
+                    return new PolynomialHash(this, blockLen, PolynomialHash.SMALL_BASE);
+                case RABIN_KARP:
+                    return new PolynomialHash(this, blockLen, PolynomialHash.LARGE_BASE);
+                case BUZHASH:
+                    return new BuzHash(blockLen);
+                default:
+                    return new GearHash(blockLen);
+            }
+        }
+    }
+
+    /**
+     * Used unless a codec is told otherwise. As cheap to roll as POLYNOMIAL
+     * but without its collisions between distinct short blocks of text.
+     */
+    Kind DEFAULT = Kind.RABIN_KARP;
+
+    Kind kind();
+
+    int blockLen();
+
+    /**
+     * @return fingerprint of in[start, start + blockLen).
+     */
+    long hash(byte[] in, int start);
+
+    /**
+     * Moves the window one byte right.
+     *
+     * @param hash fingerprint of the window starting with out.
+     * @param out first byte of the old window, unsigned.
+     * @param in byte following the old window, unsigned.
+     * @return fingerprint of the new window.
+     */
+    long roll(long hash, int out, int in);
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+import java.util.Arrays;
+
+/**
+ * Fast local compressor for the second stage, the role BigTable gives to its
+ * "fast local compressor" after Bentley and McIlroy. BMDiff only removes
+ * repeats of at least a block, this stage removes the short ones (4 bytes and
+ * up, at most 64KB back) using a single hash probe per position, in the style
+ * of LZ4.
+ *
+ * <pre>
+ * varint(length) then sequences of
+ * token    : literal count in the high nibble, match length - 4 in the low
+ *            nibble, 15 meaning a varint with the rest follows
+ * literals
+ * offset   : 2 bytes little endian, absent after the last literals
+ * </pre>
+ *
+ * The hash table size and the acceleration trade speed for ratio, a smaller
+ * table and a higher acceleration skip ahead faster on incompressible input.
+ *
+ * @author srikchan
+ */
+public final class ShortMatchStage implements Stage {
+
+    public static final int DEFAULT_HASH_LOG = 14;
+    public static final int DEFAULT_ACCELERATION = 6;
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    private static final int RUN_MASK = 15;
+    private final int hashLog;
+    private final int acceleration;
+    private final int[] table;
+
+    public ShortMatchStage() {
+        this(DEFAULT_HASH_LOG, DEFAULT_ACCELERATION);
+    }
+
+    /**
+     * @param hashLog log2 of the number of hash table entries, 8 to 24.
+     * @param acceleration after 2^acceleration misses in a row the scan
+     * starts skipping one more byte at a time, lower compresses better.
+     */
+    public ShortMatchStage(int hashLog, int acceleration) {
+        if (hashLog < 8 || hashLog > 24 || acceleration < 1 || acceleration > 16) {
+            throw new IllegalArgumentException("Bad hashLog " + hashLog + " or acceleration " + acceleration);
+        }
+        this.hashLog = hashLog;
+        this.acceleration = acceleration;
+        this.table = new int[1 << hashLog];
+    }
+
+    @Override
+    public String name() {
+        return "shortmatch(" + hashLog + "," + acceleration + ")";
+    }
+
+    private int hash(int v) {
+        return (v * -1640531535) >>> (32 - hashLog);
+    }
+
+    private static int read32(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+    @Override
+    public void encode(byte[] src, int off, int len, ByteOutput out) {
+        out.writeVarInt(len);
+        int end = off + len;
+        int anchor = off;
+        int limit = end - MIN_MATCH;
+        if (len > MIN_MATCH) {
+            final int[] table = this.table;
+            Arrays.fill(table, -1);
+            int i = off;
+            int misses = 1 << acceleration;
+            while (i <= limit) {
+                int h = hash(read32(src, i));
+                int ref = table[h];
+                table[h] = i;
+                if (ref < 0 || i - ref > MAX_OFFSET || read32(src, ref) != read32(src, i)) {
+                    i += misses++ >>> acceleration;
+                    continue;
+                }
+                while (i > anchor && ref > off && src[i - 1] == src[ref - 1]) {
+                    i--;
+                    ref--;
+                }
+                int m = MIN_MATCH + Mismatch.bytes(src, ref + MIN_MATCH, src, i + MIN_MATCH, end - i - MIN_MATCH);
+                writeSequence(out, src, anchor, i - anchor, i - ref, m);
+                i += m;
+                anchor = i;
+                misses = 1 << acceleration;
+                if (i - 2 <= limit) {
+                    table[hash(read32(src, i - 2))] = i - 2;
+                }
+            }
+        }
+        if (anchor < end) {
+            writeSequence(out, src, anchor, end - anchor, 0, 0);
+        }
+    }
+
+    private static void writeSequence(ByteOutput out, byte[] src, int literalStart, int literals, int offset, int matchLen) {
+        int m = matchLen - MIN_MATCH;
+        int token = Math.min(literals, RUN_MASK) << 4 | (matchLen == 0 ? 0 : Math.min(m, RUN_MASK));
+        out.write(token);
+        if (literals >= RUN_MASK) {
+            out.writeVarInt(literals - RUN_MASK);
+        }
+        out.write(src, literalStart, literals);
+        if (matchLen != 0) {
+            out.ensureCapacity(2);
+            out.write(offset);
+            out.write(offset >>> 8);
+            if (m >= RUN_MASK) {
+                out.writeVarInt(m - RUN_MASK);
+            }
+        }
+    }
+
+    @Override
+    public void decode(byte[] src, int off, int len, ByteOutput out) {
+        BinaryFormat.Reader r = new BinaryFormat.Reader(src, off, len);
+        int total = r.readVarInt();
+        out.ensureCapacity(total);
+        byte[] buf = out.array();
+        int start = out.size();
+        int pos = start;
+        int end = start + total;
+        while (pos < end) {
+            int token = r.readByte();
+            int literals = token >>> 4;
+            if (literals == RUN_MASK) {
+                literals += r.readVarInt();
+            }
+            if (literals > end - pos || literals > r.end - r.pos) {
+                throw BinaryFormat.corrupt("Bad literal run " + literals);
+            }
+            System.arraycopy(src, r.pos, buf, pos, literals);
+            r.pos += literals;
+            pos += literals;
+            if (pos == end) {
+                break;
+            }
+            int offset = r.readByte() | r.readByte() << 8;
+            int m = token & RUN_MASK;
+            if (m == RUN_MASK) {
+                m += r.readVarInt();
+            }
+            m += MIN_MATCH;
+            if (offset == 0 || offset > pos - start || m > end - pos) {
+                throw BinaryFormat.corrupt("Bad match " + offset + "," + m);
+            }
+            int from = pos - offset;
+            if (offset >= m) {
+                System.arraycopy(buf, from, buf, pos, m);
+            } else {
+                ByteDecoder.repeat(buf, from, pos, offset, m);
+            }
+            pos += m;
+        }
+        out.setSize(end);
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright 2014 Srikalyan Chandrashekar. Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR 
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ * specific language governing permissions and limitations under the License. 
+ * See accompanying LICENSE file.
+ */
+package bmdiff;
+
+/**
+ * One step of a {@link Pipeline}. A stage reads its input straight from the
+ * previous stage's buffer and appends to the given output, implementations
+ * keep their scratch state between calls and are not thread safe.
+ *
+ * @author srikchan
+ */
+public interface Stage {
+
+    String name();
+
+    /**
+     * Appends the encoding of src[off, off + len) to out.
+     */
+    void encode(byte[] src, int off, int len, ByteOutput out);
+
+    /**
+     * Appends the decoding of src[off, off + len) to out.
+     */
+    void decode(byte[] src, int off, int len, ByteOutput out);
+}
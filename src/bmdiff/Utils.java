@@ -19,7 +19,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Very simple file IO util.
+ * Very simple file IO util, whole files are read into the heap. Large files
+ * are better encoded and decoded through {@link MappedFileCodec}.
  * @author srikchan
  */
 public class Utils {
@@ -10,8 +10,43 @@
  */
 package bmdiff.test;
 
+import bmdiff.AppendableEncoder;
 import bmdiff.BMDiffCodec;
+import bmdiff.BaseIndex;
+import bmdiff.BatchCodec;
+import bmdiff.BlockCache;
+import bmdiff.BlockStore;
+import bmdiff.BoundedFingerPrintTable;
+import bmdiff.BufferCodec;
+import bmdiff.CodecStats;
+import bmdiff.CompressedSearch;
+import bmdiff.ContentAnchors;
+import bmdiff.BMDiffInputStream;
+import bmdiff.BMDiffOutputStream;
+import bmdiff.MapFingerPrintTable;
+import bmdiff.MappedFileCodec;
+import bmdiff.BMDiffTool;
+import bmdiff.FramedCodec;
+import bmdiff.Pipeline;
+import bmdiff.RollingHash;
 import bmdiff.Utils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The input strings have been carefully chosen to stress most of the boundary 
@@ -39,15 +74,52 @@ public class SimpleTests {
         "Michael S. Hart <hart@pobox.com> abcdefg gfedcba <hart@pobox.com>hijklmnopqrstuv gefdbca <hart@pobox.com> zebra"
     };
 
+    /**
+     * The edge case strings, also used as the micro corpus of the benchmarks.
+     *
+     * @return
+     */
+    public static String[] edgeCaseStrings() {
+        return new SimpleTests().inputStrings.clone();
+    }
+
     public static void main(String[] args) {
         SimpleTests test = new SimpleTests();
             test.test();
+            test.testBinary();
+            test.testStream();
+            test.testFramed();
+            test.testDelta();
+            test.testPipeline();
+            test.testStats();
+            test.testBufferCodec();
+            test.testDirectDecode();
+            test.testAutoBlockLen();
+            test.testIndexBudget();
+            test.testBucketDepth();
+            test.testRollingHash();
+            test.testContentAnchors();
+            test.testBatch();
+            test.testTool();
+            test.testMappedFiles();
+            test.testBlockStore();
+            test.testAppendable();
+            test.testSearch();
 //        for (int i = 0;i < 10;i++)
 //            test.test("/home/srikalyc/NetBeansProjects/big");
     }
 
     public void test() {
+        test(false);
+        test(true);
+    }
+
+    /**
+     * @param useHashMap run against the legacy HashMap fingerprint table.
+     */
+    public void test(boolean useHashMap) {
         BMDiffCodec bmdiff = new BMDiffCodec(blockSize);
+        bmdiff.setUseHashMapTable(useHashMap);
         for (String inputString : inputStrings) {
             char[] enc = bmdiff.encode(inputString.toCharArray());
             char[] dec = bmdiff.decode();
@@ -59,6 +131,1205 @@ public class SimpleTests {
             System.out.println("----------------------------------------------------");
         }
     }
+    /**
+     * Same strings through the binary format, plus a larger generated input
+     * mixing random bytes with long and periodic repeats.
+     */
+    public void testBinary() {
+        BMDiffCodec bmdiff = new BMDiffCodec(blockSize);
+        for (String inputString : inputStrings) {
+            checkBinary(bmdiff, inputString, inputString.getBytes(StandardCharsets.UTF_8));
+        }
+        checkBinary(bmdiff, "empty", new byte[0]);
+        checkBinary(bmdiff, "generated", generate(1 << 20, 42));
+        // A repeat off the block grid with partial blocks at both ends is
+        // still found whole, a literal then a single copy.
+        byte[] noise = new byte[101];
+        new Random(1).nextBytes(noise);
+        byte[] input = new byte[2 * noise.length - 1];
+        System.arraycopy(noise, 0, input, 0, noise.length);
+        System.arraycopy(noise, 1, input, noise.length, noise.length - 1);
+        byte[] enc = bmdiff.encode(input);
+        System.out.println("unaligned repeat " + input.length + " -> " + enc.length + " bytes");
+        System.out.println("----------------------------------------------------");
+        System.out.println(Arrays.equals(input, bmdiff.decode(enc)) && enc.length <= noise.length + 16 ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    private void checkBinary(BMDiffCodec bmdiff, String name, byte[] input) {
+        byte[] enc = bmdiff.encode(input);
+        byte[] dec = bmdiff.decode(enc);
+        System.out.println(name.length() > 80 ? name.substring(0, 80) : name);
+        System.out.println(input.length + " -> " + enc.length + " bytes");
+        System.out.println("----------------------------------------------------");
+        System.out.println(Arrays.equals(input, dec) ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    /**
+     * Streams with windows much smaller than the input, written in odd sized
+     * pieces and flushed midway.
+     */
+    public void testStream() {
+        byte[] input = generate(3 << 20, 7);
+        int[][] configs = {{blockSize, 64}, {blockSize, 4096}, {32, 1 << 16}, {32, 1 << 20}};
+        for (int[] config : configs) {
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                try (BMDiffOutputStream out = new BMDiffOutputStream(bos, config[0], config[1])) {
+                    int off = 0;
+                    int piece = 1;
+                    while (off < input.length) {
+                        int n = Math.min(piece, input.length - off);
+                        out.write(input, off, n);
+                        off += n;
+                        piece = piece * 3 + 1;
+                        if (piece > 100000) {
+                            piece = 1;
+                            out.flush();
+                        }
+                    }
+                }
+                byte[] enc = bos.toByteArray();
+                ByteArrayOutputStream dec = new ByteArrayOutputStream();
+                try (BMDiffInputStream in = new BMDiffInputStream(new ByteArrayInputStream(enc))) {
+                    byte[] b = new byte[7777];
+                    int n;
+                    while ((n = in.read(b)) != -1) {
+                        dec.write(b, 0, n);
+                    }
+                }
+                System.out.println("stream block=" + config[0] + " window=" + config[1]);
+                System.out.println(input.length + " -> " + enc.length + " bytes");
+                System.out.println("----------------------------------------------------");
+                boolean pass = Arrays.equals(input, dec.toByteArray())
+                        && Arrays.equals(input, new BMDiffCodec().decode(enc));
+                System.out.println(pass ? "PASS" : "FAIL");
+                System.out.println("----------------------------------------------------");
+            } catch (IOException ex) {
+                System.out.println("FAIL " + ex);
+            }
+        }
+        // Writes after finish() are refused rather than encoded past END.
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            BMDiffOutputStream out = new BMDiffOutputStream(bos, blockSize, 1 << 16);
+            out.write(input, 0, 1000);
+            out.finish();
+            int refused = 0;
+            try {
+                out.write(input, 0, input.length);
+            } catch (IOException expected) {
+                refused++;
+            }
+            try {
+                out.write(ByteBuffer.wrap(input));
+            } catch (IOException expected) {
+                refused++;
+            }
+            out.close();
+            System.out.println("stream write after finish");
+            System.out.println("----------------------------------------------------");
+            boolean pass = refused == 2
+                    && Arrays.equals(Arrays.copyOf(input, 1000), new BMDiffCodec().decode(bos.toByteArray()));
+            System.out.println(pass ? "PASS" : "FAIL");
+            System.out.println("----------------------------------------------------");
+        } catch (IOException ex) {
+            System.out.println("FAIL " + ex);
+        }
+    }
+
+    /**
+     * Frames encoded in parallel, with and without seeding from the first
+     * frame, including frames smaller than a block and an empty input.
+     */
+    public void testFramed() {
+        byte[] input = generate(5 << 20, 11);
+        int[] frameSizes = {100, 1000, 1 << 16, 1 << 20, 8 << 20};
+        for (int frameSize : frameSizes) {
+            for (boolean seeded : new boolean[] {false, true}) {
+                FramedCodec codec = new FramedCodec(blockSize, frameSize);
+                codec.setSeedWithFirstFrame(seeded);
+                byte[] enc = codec.encode(input);
+                boolean pass = Arrays.equals(input, codec.decode(enc))
+                        && Arrays.equals(input, codec.decodeParallel(enc))
+                        && codec.decode(codec.encode(new byte[0])).length == 0;
+                Random random = new Random(frameSize);
+                for (int i = 0; i < 20; i++) {
+                    int length = random.nextInt(3 * frameSize);
+                    int offset = random.nextInt(input.length - Math.min(length, input.length) + 1);
+                    length = Math.min(length, input.length - offset);
+                    pass &= Arrays.equals(Arrays.copyOfRange(input, offset, offset + length),
+                            codec.decodeRange(enc, offset, length));
+                }
+                System.out.println("framed frameSize=" + frameSize + " seeded=" + seeded);
+                System.out.println(input.length + " -> " + enc.length + " bytes");
+                System.out.println("----------------------------------------------------");
+                System.out.println(pass ? "PASS" : "FAIL");
+                System.out.println("----------------------------------------------------");
+            }
+        }
+        // A negative length is corrupt, even when the frame count fits it.
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write('B');
+        header.write('F');
+        header.write(1);
+        header.write(0);
+        header.write(blockSize);
+        header.write(10);
+        header.write(0);
+        for (long v = -5; v != 0; v >>>= 7) {
+            header.write((int) ((v & 0x7F) | ((v & ~0x7FL) != 0 ? 0x80 : 0)));
+        }
+        // No frames, so the index is empty and the footer points just past the header.
+        long indexOffset = header.size();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            header.write((int) (indexOffset >>> shift));
+        }
+        header.write('B');
+        header.write('F');
+        boolean pass = false;
+        try {
+            new FramedCodec(blockSize, 10).decode(header.toByteArray());
+        } catch (IllegalArgumentException expected) {
+            pass = true;
+        }
+        System.out.println("framed negative length");
+        System.out.println("----------------------------------------------------");
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    /**
+     * Successive versions of a document, each a few edits away from the base,
+     * encoded against one shared base index.
+     */
+    public void testDelta() {
+        BMDiffCodec bmdiff = new BMDiffCodec(blockSize);
+        byte[] base = generate(1 << 18, 3);
+        BaseIndex index = bmdiff.index(base);
+        Random random = new Random(5);
+        byte[] version = base;
+        for (int v = 0; v < 5; v++) {
+            version = edit(version, random);
+            byte[] enc = bmdiff.encode(version, index);
+            boolean pass = Arrays.equals(version, bmdiff.decode(enc, base))
+                    && Arrays.equals(enc, bmdiff.encodeDelta(base, version));
+            try {
+                bmdiff.decode(enc);
+                pass = false;
+            } catch (IllegalArgumentException expected) {
+            }
+            System.out.println("delta version " + v);
+            System.out.println(version.length + " -> " + enc.length + " bytes");
+            System.out.println("----------------------------------------------------");
+            System.out.println(pass ? "PASS" : "FAIL");
+            System.out.println("----------------------------------------------------");
+        }
+    }
+
+    /**
+     * BMDiff followed by the short match stage, both the edge case strings and
+     * a larger input, decoded through the same reused pipeline.
+     */
+    public void testPipeline() {
+        Pipeline pipeline = Pipeline.bmdiffThenShortMatch(blockSize);
+        boolean pass = true;
+        for (String inputString : inputStrings) {
+            byte[] input = inputString.getBytes(StandardCharsets.UTF_8);
+            pass &= Arrays.equals(input, pipeline.decode(pipeline.encode(input)));
+        }
+        pass &= pipeline.decode(pipeline.encode(new byte[0])).length == 0;
+        byte[] input = generate(1 << 20, 13);
+        pipeline.resetTimings();
+        byte[] enc = pipeline.encode(input);
+        pass &= Arrays.equals(input, pipeline.decode(enc));
+        for (int i = 0; i < pipeline.stageCount(); i++) {
+            pass &= pipeline.decodeBytesOut(i) == pipeline.encodeBytesIn(i);
+        }
+        System.out.println("pipeline");
+        System.out.print(pipeline);
+        System.out.println(input.length + " -> " + enc.length + " bytes");
+        System.out.println("----------------------------------------------------");
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    /**
+     * Counters of the binary, text and framed codecs add up to what was
+     * encoded, including frames encoded on several pool threads.
+     */
+    public void testStats() {
+        CodecStats stats = new CodecStats();
+        BMDiffCodec bmdiff = new BMDiffCodec(blockSize);
+        bmdiff.setListener(stats);
+        long bytes = 0;
+        for (String inputString : inputStrings) {
+            byte[] input = inputString.getBytes(StandardCharsets.UTF_8);
+            bmdiff.decode(bmdiff.encode(input));
+            bmdiff.encode(inputString.toCharArray());
+            bmdiff.decode();
+            bytes += 2 * input.length;
+        }
+        boolean pass = stats.get(CodecStats.Counter.ENCODE_CALLS) == 2 * inputStrings.length
+                && stats.get(CodecStats.Counter.DECODE_BYTES_OUT) == bytes
+                && stats.get(CodecStats.Counter.REPEAT_TOKENS) > 0
+                && stats.get(CodecStats.Counter.ESCAPES) > 0;
+        stats.reset();
+        FramedCodec framed = new FramedCodec(blockSize, 1 << 16);
+        framed.setListener(stats);
+        byte[] input = generate(1 << 20, 17);
+        framed.decodeParallel(framed.encode(input));
+        pass &= stats.get(CodecStats.Counter.ENCODE_CALLS) == 16
+                && stats.get(CodecStats.Counter.ENCODE_BYTES_IN) == input.length
+                && stats.get(CodecStats.Counter.DECODE_BYTES_OUT) == input.length
+                && stats.averageMatchLength() >= blockSize;
+        // Calls made on threads which ended are still counted once their
+        // cells are folded away.
+        stats.reset();
+        final BMDiffCodec shared = new BMDiffCodec(blockSize);
+        shared.setListener(stats);
+        final byte[] small = inputStrings[0].getBytes(StandardCharsets.UTF_8);
+        try {
+            for (int t = 0; t < 300; t++) {
+                Thread worker = new Thread() {
+                    @Override
+                    public void run() {
+                        synchronized (shared) {
+                            shared.encode(small);
+                        }
+                    }
+                };
+                worker.start();
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            pass = false;
+        }
+        pass &= stats.get(CodecStats.Counter.ENCODE_CALLS) == 300
+                && stats.get(CodecStats.Counter.ENCODE_BYTES_IN) == 300L * small.length;
+        System.out.println(stats);
+        System.out.println("----------------------------------------------------");
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    public void testBufferCodec() {
+        final BufferCodec codec = new BufferCodec(blockSize);
+        BMDiffCodec bmdiff = new BMDiffCodec(blockSize);
+        boolean pass = true;
+        for (String inputString : edgeCaseStrings()) {
+            byte[] input = inputString.getBytes(StandardCharsets.UTF_8);
+            byte[] enc = new byte[codec.maxEncodedLength(input.length) + 3];
+            int n = codec.encode(input, 0, input.length, enc, 3);
+            byte[] dec = new byte[input.length];
+            int m = codec.decode(enc, 3, n, dec, 0);
+            pass &= m == input.length && Arrays.equals(input, dec)
+                    && Arrays.equals(bmdiff.encode(input), Arrays.copyOfRange(enc, 3, 3 + n));
+        }
+        // One byte blocks give the most tokens per input byte.
+        BufferCodec tiny = new BufferCodec(1);
+        byte[] noise = generate(1 << 12, 5);
+        byte[] enc = new byte[tiny.maxEncodedLength(noise.length)];
+        pass &= tiny.decode(enc, 0, tiny.encode(noise, 0, noise.length, enc, 0), new byte[noise.length], 0) == noise.length;
+        try {
+            codec.encode(noise, 0, noise.length, new byte[16], 0);
+            pass = false;
+        } catch (IllegalArgumentException expected) {
+        }
+        final boolean[] ok = {true};
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    byte[] enc = new byte[codec.maxEncodedLength(1 << 14)];
+                    byte[] dec = new byte[1 << 14];
+                    for (int i = 0; i < 200; i++) {
+                        byte[] input = generate(1 + random.nextInt(1 << 14), random.nextInt());
+                        int n = codec.encode(input, 0, input.length, enc, 0);
+                        int m = codec.decode(enc, 0, n, dec, 0);
+                        if (m != input.length || !Arrays.equals(input, Arrays.copyOf(dec, m))) {
+                            synchronized (ok) {
+                                ok[0] = false;
+                            }
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (ok) {
+            pass &= ok[0];
+        }
+        long allocated = allocatedBytes(codec, generate(1 << 12, 9));
+        if (allocated >= 0) {
+            System.out.println("Allocated " + allocated + " bytes in 1000 steady state encode/decode calls");
+            pass &= allocated < 1 << 16;
+        }
+        System.out.println("----------------------------------------------------");
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    /**
+     * Decoding into an exactly sized array using the length in the header,
+     * on runs long enough that the doubling copies take many rounds.
+     */
+    public void testDirectDecode() {
+        BMDiffCodec bmdiff = new BMDiffCodec(blockSize);
+        byte[] input = new byte[1 << 20];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (byte) (i % 1000 < 990 ? 'a' + i % 3 : i);
+        }
+        byte[] enc = bmdiff.encode(input);
+        boolean pass = BMDiffCodec.decodedLength(enc, 0, enc.length) == input.length;
+        byte[] dec = new byte[input.length + 1];
+        pass &= bmdiff.decode(enc, 0, enc.length, dec, 1) == input.length
+                && Arrays.equals(input, Arrays.copyOfRange(dec, 1, dec.length))
+                && Arrays.equals(input, bmdiff.decode(enc));
+        try {
+            bmdiff.decode(enc, 0, enc.length, new byte[input.length - 1], 0);
+            pass = false;
+        } catch (IllegalArgumentException expected) {
+        }
+        // Header is 'B' 'M' version flags blockLen then the length as 3
+        // varint bytes, lower the last one to declare fewer bytes.
+        byte[] wrong = enc.clone();
+        wrong[7]--;
+        try {
+            bmdiff.decode(wrong);
+            pass = false;
+        } catch (IllegalArgumentException expected) {
+        }
+        char[] text = new char[100000];
+        Arrays.fill(text, 'z');
+        text[50000] = 'y';
+        bmdiff.encode(text);
+        pass &= Arrays.equals(text, bmdiff.decode());
+        System.out.println("direct decode " + input.length + " -> " + enc.length + " bytes");
+        System.out.println("----------------------------------------------------");
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    /**
+     * AUTO mode should pick short blocks for short repeated fields and long
+     * ones for long repeated lines, and decode without being told which.
+     */
+    public void testAutoBlockLen() {
+        StringBuilder json = new StringBuilder();
+        StringBuilder logs = new StringBuilder();
+        Random random = new Random(3);
+        while (json.length() < 1 << 18) {
+            json.append("{\"id\":").append(random.nextInt(1000)).append(",\"ok\":")
+                    .append(random.nextBoolean()).append(",\"v\":").append(random.nextInt(100)).append('}');
+        }
+        String line = "2014-01-01 INFO  [pool-1-thread-1] bmdiff.store.BlockStore - Compacted segment after flush of the write ahead log ";
+        while (logs.length() < 1 << 18) {
+            logs.append(line).append(random.nextInt(50) == 0 ? random.nextInt(10) : 0).append('\n');
+        }
+        byte[] jsonBytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] logBytes = logs.toString().getBytes(StandardCharsets.UTF_8);
+        CodecStats stats = new CodecStats();
+        BMDiffCodec bmdiff = new BMDiffCodec(BMDiffCodec.AUTO);
+        bmdiff.setListener(stats);
+        BMDiffCodec plain = new BMDiffCodec();
+        byte[] enc = bmdiff.encode(jsonBytes);
+        int jsonBlockLen = bmdiff.getBlockLen();
+        boolean pass = Arrays.equals(jsonBytes, plain.decode(enc));
+        enc = bmdiff.encode(logBytes);
+        int logBlockLen = bmdiff.getBlockLen();
+        pass &= Arrays.equals(logBytes, plain.decode(enc)) && jsonBlockLen < logBlockLen
+                && stats.get(CodecStats.Counter.BLOCK_LEN_SELECTIONS) == 2
+                && stats.get(CodecStats.Counter.SELECT_NANOS) > 0;
+        // The legacy table is kept under AUTO, encoding like a fixed length would.
+        BMDiffCodec legacy = new BMDiffCodec(BMDiffCodec.AUTO);
+        legacy.setUseHashMapTable(true);
+        enc = legacy.encode(logBytes);
+        BMDiffCodec fixed = new BMDiffCodec(legacy.getBlockLen());
+        fixed.setUseHashMapTable(true);
+        pass &= Arrays.equals(logBytes, plain.decode(enc)) && Arrays.equals(fixed.encode(logBytes), enc);
+        String text = json.substring(0, 5000);
+        bmdiff.encode(text.toCharArray());
+        pass &= text.equals(new String(bmdiff.decode()));
+        // Chars are sampled like the bytes of the same ASCII text.
+        bmdiff.encode(json.toString().toCharArray());
+        pass &= bmdiff.getBlockLen() == jsonBlockLen;
+        bmdiff.encode(logs.toString().toCharArray());
+        pass &= bmdiff.getBlockLen() == logBlockLen;
+        byte[] mixed = new byte[jsonBytes.length + logBytes.length];
+        System.arraycopy(jsonBytes, 0, mixed, 0, jsonBytes.length);
+        System.arraycopy(logBytes, 0, mixed, jsonBytes.length, logBytes.length);
+        for (boolean seeded : new boolean[]{false, true}) {
+            FramedCodec framed = new FramedCodec(BMDiffCodec.AUTO, 1 << 16);
+            framed.setSeedWithFirstFrame(seeded);
+            pass &= Arrays.equals(mixed, framed.decodeParallel(framed.encode(mixed)));
+        }
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (BMDiffOutputStream out = new BMDiffOutputStream(bos, BMDiffCodec.AUTO, 1 << 16)) {
+                out.write(mixed);
+            }
+            pass &= Arrays.equals(mixed, plain.decode(bos.toByteArray()));
+        } catch (IOException ex) {
+            pass = false;
+        }
+        System.out.println("auto block length json=" + jsonBlockLen + " logs=" + logBlockLen
+                + " select=" + stats.get(CodecStats.Counter.SELECT_NANOS) / 1000 + "us");
+        System.out.println("----------------------------------------------------");
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    /**
+     * A capped index stays within its budget, keeps what its policy promises
+     * and still round trips, at some cost in ratio.
+     */
+    public void testIndexBudget() {
+        long budget = 64 << 10;
+        boolean pass = true;
+        BoundedFingerPrintTable oldest = new BoundedFingerPrintTable(budget, BoundedFingerPrintTable.Policy.EVICT_OLDEST);
+        Random random = new Random(13);
+        long[] keys = new long[100000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextLong();
+            oldest.putIfAbsent(keys[i], i);
+        }
+        for (int i = keys.length - oldest.size(); i < keys.length; i++) {
+            pass &= oldest.get(keys[i]) == i;
+        }
+        oldest.rebase(keys.length - 10);
+        pass &= oldest.size() == 10 && oldest.get(keys[keys.length - 1]) == 9 && oldest.memoryBytes() * 3 / 2 <= budget;
+        byte[] input = generate(4 << 20, 23);
+        BMDiffCodec unbounded = new BMDiffCodec(blockSize);
+        int full = unbounded.encode(input).length;
+        StringBuilder sizes = new StringBuilder("unbounded=" + full);
+        for (BoundedFingerPrintTable.Policy policy : BoundedFingerPrintTable.Policy.values()) {
+            CodecStats stats = new CodecStats();
+            BMDiffCodec bmdiff = new BMDiffCodec(blockSize);
+            bmdiff.setIndexBudget(budget, policy);
+            bmdiff.setListener(stats);
+            byte[] enc = bmdiff.encode(input);
+            pass &= Arrays.equals(input, bmdiff.decode(enc)) && enc.length < input.length
+                    && stats.get(CodecStats.Counter.MAX_TABLE_SIZE) * 24 <= budget
+                    && stats.get(policy == BoundedFingerPrintTable.Policy.SAMPLE
+                            ? CodecStats.Counter.INDEX_SKIPPED : CodecStats.Counter.INDEX_EVICTED) > 0;
+            // The text format is only meant for text, keep the repeats but map them to letters.
+            char[] chars = new char[1 << 18];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) ('a' + (input[i] & 15));
+            }
+            String text = new String(chars);
+            bmdiff.encode(chars);
+            pass &= text.equals(new String(bmdiff.decode())) && bmdiff.fingerPrintTable.size() * 24 <= budget;
+            sizes.append(' ').append(policy.name().toLowerCase()).append('=').append(enc.length);
+        }
+        // Clearing the budget keeps the table type asked for before.
+        BMDiffCodec legacy = new BMDiffCodec(blockSize);
+        legacy.setUseHashMapTable(true);
+        legacy.setIndexBudget(0, BoundedFingerPrintTable.Policy.SAMPLE);
+        pass &= legacy.fingerPrintTable instanceof MapFingerPrintTable;
+        System.out.println("index budget " + budget + ": " + sizes);
+        System.out.println("----------------------------------------------------");
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    /**
+     * Numbers and short fields collide often under the base 11 fingerprint,
+     * deeper buckets should recover matches the first candidate misses.
+     */
+    public void testBucketDepth() {
+        StringBuilder sb = new StringBuilder();
+        Random random = new Random(29);
+        while (sb.length() < 1 << 20) {
+            sb.append("{\"ts\":").append(1400000000 + random.nextInt(100000))
+                    .append(",\"x\":").append(random.nextInt(1000)).append(",\"y\":").append(random.nextInt(1000)).append("}\n");
+        }
+        byte[] input = sb.toString().getBytes(StandardCharsets.UTF_8);
+        boolean pass = true;
+        StringBuilder report = new StringBuilder();
+        int shallow = 0;
+        for (int depth : new int[]{1, 4}) {
+            CodecStats stats = new CodecStats();
+            BMDiffCodec bmdiff = new BMDiffCodec(blockSize);
+            bmdiff.setRollingHash(RollingHash.Kind.POLYNOMIAL);
+            bmdiff.setBucketDepth(depth);
+            bmdiff.setListener(stats);
+            byte[] enc = bmdiff.encode(input);
+            pass &= Arrays.equals(input, bmdiff.decode(enc));
+            if (depth == 1) {
+                shallow = enc.length;
+                pass &= stats.get(CodecStats.Counter.LATER_CANDIDATE_HITS) == 0;
+            } else {
+                pass &= enc.length < shallow && stats.get(CodecStats.Counter.LATER_CANDIDATE_HITS) > 0;
+            }
+            report.append(String.format(" depth=%d %d bytes collisions=%.3f later=%.3f", depth, enc.length,
+                    stats.collisionRate(), stats.laterCandidateHitRate()));
+        }
+        System.out.println("buckets" + report);
+        System.out.println("----------------------------------------------------");
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    /**
+     * Rolling must give the same fingerprint as hashing the window afresh,
+     * including blocks at and past the 64 bits of the gear hash, and every
+     * kind must round trip plain and delta encodings.
+     */
+    public void testRollingHash() {
+        byte[] input = generate(1 << 18, 31);
+        byte[] target = edit(input.clone(), new Random(31));
+        boolean pass = true;
+        StringBuilder report = new StringBuilder();
+        for (RollingHash.Kind kind : RollingHash.Kind.values()) {
+            for (int blockLen : new int[]{1, 8, 63, 64, 100}) {
+                RollingHash hash = kind.create(blockLen);
+                long fp = hash.hash(input, 0);
+                for (int p = 1; p + blockLen <= 4096; p++) {
+                    fp = hash.roll(fp, input[p - 1] & 0xFF, input[p + blockLen - 1] & 0xFF);
+                    pass &= fp == hash.hash(input, p);
+                }
+            }
+            BMDiffCodec bmdiff = new BMDiffCodec(blockSize);
+            bmdiff.setRollingHash(kind);
+            byte[] enc = bmdiff.encode(input);
+            pass &= Arrays.equals(input, bmdiff.decode(enc));
+            pass &= Arrays.equals(target, bmdiff.decode(bmdiff.encodeDelta(input, target), input));
+            report.append(String.format(" %s=%d", kind.name().toLowerCase(), enc.length));
+        }
+        System.out.println("hashes" + report);
+        System.out.println("----------------------------------------------------");
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    /**
+     * A new version with text inserted at the front and a few edits, encoded
+     * against the old one and after it. Anchors a few blocks apart index a
+     * fraction of the fixed offsets' blocks and still find most of the
+     * shifted text.
+     */
+    public void testContentAnchors() {
+        int blockLen = 16;
+        byte[] v1 = generate(1 << 18, 37);
+        byte[] v2 = edit(v1, new Random(37));
+        byte[] shifted = new byte[v2.length + 3];
+        shifted[0] = 'x';
+        shifted[1] = 'y';
+        shifted[2] = 'z';
+        System.arraycopy(v2, 0, shifted, 3, v2.length);
+        byte[] both = new byte[v1.length + shifted.length];
+        System.arraycopy(v1, 0, both, 0, v1.length);
+        System.arraycopy(shifted, 0, both, v1.length, shifted.length);
+        boolean pass = true;
+        StringBuilder report = new StringBuilder();
+        long[] tableSizes = new long[2];
+        int[] deltas = new int[2];
+        for (int a = 0; a < 2; a++) {
+            CodecStats stats = new CodecStats();
+            BMDiffCodec bmdiff = new BMDiffCodec(blockLen);
+            bmdiff.setContentAnchors(a == 0 ? null : new ContentAnchors(blockLen, 4 * blockLen, 16 * blockLen));
+            bmdiff.setListener(stats);
+            byte[] enc = bmdiff.encode(both);
+            pass &= Arrays.equals(both, bmdiff.decode(enc));
+            tableSizes[a] = stats.get(CodecStats.Counter.MAX_TABLE_SIZE);
+            byte[] delta = bmdiff.encodeDelta(v1, shifted);
+            pass &= Arrays.equals(shifted, bmdiff.decode(delta, v1));
+            deltas[a] = delta.length;
+            report.append(String.format(" %s=%d/%d table=%d", a == 0 ? "fixed" : "anchored",
+                    enc.length, delta.length, tableSizes[a]));
+        }
+        pass &= tableSizes[1] * 2 < tableSizes[0] && deltas[1] < 2 * deltas[0];
+        System.out.println("anchors" + report);
+        System.out.println("----------------------------------------------------");
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    /**
+     * Small records sharing field names and values, encoded one by one and
+     * as a batch. Every record decodes alone and all of them together.
+     */
+    public void testBatch() {
+        Random random = new Random(41);
+        String[] names = {"alice", "bob", "carol", "dave", "erin"};
+        byte[][] records = new byte[2000][];
+        for (int k = 0; k < records.length; k++) {
+            StringBuilder sb = new StringBuilder("{\"id\":").append(k);
+            int fields = 3 + random.nextInt(12);
+            for (int f = 0; f < fields; f++) {
+                sb.append(",\"").append(names[random.nextInt(names.length)]).append("_field\":\"")
+                        .append(names[random.nextInt(names.length)]).append(random.nextInt(100)).append('"');
+            }
+            records[k] = sb.append('}').toString().getBytes(StandardCharsets.UTF_8);
+        }
+        records[7] = new byte[0];
+        BMDiffCodec bmdiff = new BMDiffCodec(blockSize);
+        long single = 0;
+        for (byte[] record : records) {
+            single += bmdiff.encode(record).length;
+        }
+        BatchCodec batch = new BatchCodec(blockSize);
+        byte[] enc = batch.encode(records);
+        boolean pass = BatchCodec.recordCount(enc) == records.length;
+        for (int k : new int[]{0, 7, 1, 999, records.length - 1}) {
+            pass &= Arrays.equals(records[k], batch.decode(enc, k));
+        }
+        pass &= Arrays.deepEquals(records, batch.decodeAll(enc));
+        pass &= enc.length * 2 < single;
+        byte[] empty = batch.encode(new byte[0][]);
+        pass &= BatchCodec.recordCount(empty) == 0 && batch.decodeAll(empty).length == 0;
+        try {
+            batch.decode(enc, records.length);
+            pass = false;
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        System.out.println("batch of " + records.length + " records: one by one " + single + " bytes, batched " + enc.length);
+        System.out.println("----------------------------------------------------");
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    /**
+     * Compresses a small tree with frames smaller than some of its files,
+     * decompresses it elsewhere and compares. An output is also a
+     * FramedCodec container, existing outputs are kept and a corrupt input
+     * fails alone.
+     */
+    public void testTool() {
+        boolean pass = true;
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        PrintStream quiet = new PrintStream(log);
+        try {
+            Path root = Files.createTempDirectory("bmdiff");
+            Path in = root.resolve("in");
+            Files.createDirectories(in.resolve("sub"));
+            byte[][] contents = {generate(300000, 43), new byte[0], generate(1000, 47), "abc".getBytes(StandardCharsets.UTF_8)};
+            String[] names = {"big", "sub/empty", "sub/small", "sub/tiny"};
+            for (int k = 0; k < names.length; k++) {
+                Files.write(in.resolve(names[k]), contents[k]);
+            }
+            Path enc = root.resolve("enc");
+            Path dec = root.resolve("dec");
+            pass &= BMDiffTool.run(new String[]{"--threads", "3", "--frame", "65536", "--out", enc.toString(), in.toString()},
+                    quiet, quiet) == 0;
+            pass &= Arrays.equals(contents[0], new FramedCodec(blockSize, 1).decode(Files.readAllBytes(enc.resolve("in/big.bmd"))));
+            pass &= BMDiffTool.run(new String[]{"-d", "--threads", "2", "--out", dec.toString(), enc.resolve("in").toString()},
+                    quiet, quiet) == 0;
+            for (int k = 0; k < names.length; k++) {
+                pass &= Arrays.equals(contents[k], Files.readAllBytes(dec.resolve("in").resolve(names[k])));
+            }
+            // Existing outputs are kept without --force, a truncated container
+            // fails alone.
+            pass &= BMDiffTool.run(new String[]{"--out", enc.toString(), in.toString()}, quiet, quiet) == 1;
+            pass &= Arrays.equals(contents[0], new FramedCodec(blockSize, 1).decode(Files.readAllBytes(enc.resolve("in/big.bmd"))));
+            byte[] big = Files.readAllBytes(enc.resolve("in/big.bmd"));
+            Files.write(enc.resolve("in/big.bmd"), Arrays.copyOf(big, big.length / 2));
+            pass &= BMDiffTool.run(new String[]{"-d", "--force", "--out", dec.toString(), enc.resolve("in").toString()},
+                    quiet, quiet) == 1;
+            // Failing before any output was written leaves the old one alone.
+            pass &= Arrays.equals(contents[0], Files.readAllBytes(dec.resolve("in/big")))
+                    && Arrays.equals(contents[2], Files.readAllBytes(dec.resolve("in/sub/small")));
+            pass &= BMDiffTool.run(new String[]{"--threads", "0", in.toString()}, quiet, quiet) == 2;
+            deleteTree(root);
+        } catch (IOException e) {
+            e.printStackTrace();
+            pass = false;
+        }
+        System.out.println("tool");
+        System.out.println("----------------------------------------------------");
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    /**
+     * Maps in pieces which do not line up with the window, the encoding is an
+     * ordinary stream which declares its length, and a stream without one or
+     * with the wrong one is refused.
+     */
+    public void testMappedFiles() {
+        boolean pass = true;
+        try {
+            Path root = Files.createTempDirectory("bmdiff");
+            byte[] data = generate(700000, 53);
+            Path src = root.resolve("src");
+            Path enc = root.resolve("src.bms");
+            Path dec = root.resolve("dec");
+            Files.write(src, data);
+            long encLen = MappedFileCodec.encode(src, enc, 16, 1 << 16, 100003);
+            byte[] encoded = Files.readAllBytes(enc);
+            pass &= encLen == encoded.length && encLen < data.length / 2;
+            pass &= Arrays.equals(data, new BMDiffCodec(16).decode(encoded));
+            try (BMDiffInputStream in = new BMDiffInputStream(new ByteArrayInputStream(encoded))) {
+                pass &= in.length() == data.length;
+            }
+            pass &= MappedFileCodec.decode(enc, dec, 65537) == data.length;
+            pass &= Arrays.equals(data, Files.readAllBytes(dec));
+            Files.write(src, new byte[0]);
+            MappedFileCodec.encode(src, enc);
+            pass &= MappedFileCodec.decode(enc, dec) == 0 && Files.size(dec) == 0;
+            try (BMDiffOutputStream out = new BMDiffOutputStream(new ByteArrayOutputStream(), 16, 1 << 16, 10)) {
+                out.write(data, 0, 5);
+                out.finish();
+                pass = false;
+            } catch (IOException expected) {
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (BMDiffOutputStream out = new BMDiffOutputStream(bos, 16, 1 << 16)) {
+                out.write(data, 0, 1000);
+            }
+            Files.write(enc, bos.toByteArray());
+            try {
+                MappedFileCodec.decode(enc, dec);
+                pass = false;
+            } catch (IOException expected) {
+            }
+            deleteTree(root);
+        } catch (IOException e) {
+            e.printStackTrace();
+            pass = false;
+        }
+        System.out.println("mapped files");
+        System.out.println("----------------------------------------------------");
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    /**
+     * Records are readable before and after their block is written and after
+     * reopening, skewed concurrent reads mostly hit a cache too small for the
+     * whole store, a crash before a flush keeps the flushed records, and a
+     * store without its footer is refused.
+     */
+    public void testBlockStore() {
+        boolean pass = true;
+        try {
+            Path root = Files.createTempDirectory("bmdiff");
+            Path file = root.resolve("store");
+            byte[] data = generate(400000, 59);
+            final List<byte[]> records = new ArrayList<byte[]>();
+            Random random = new Random(61);
+            for (int from = 0; from < data.length;) {
+                int len = Math.min(data.length - from, 50 + random.nextInt(350));
+                records.add(Arrays.copyOfRange(data, from, from + len));
+                from += len;
+            }
+            int half = records.size() / 2;
+            try (BlockStore store = new BlockStore(file, 16, 8192, new BlockCache(1 << 16, 4))) {
+                for (int k = 0; k < half; k++) {
+                    pass &= store.append(records.get(k)) == k;
+                }
+                for (int k = 0; k < half; k++) {
+                    pass &= Arrays.equals(records.get(k), store.get(k));
+                }
+            }
+            pass &= Files.size(file) < data.length / 2;
+            final BlockCache cache = new BlockCache(1 << 18, 4);
+            try (final BlockStore store = new BlockStore(file, 16, 8192, cache)) {
+                pass &= store.size() == half && store.blockCount() > 10;
+                for (int k = half; k < records.size(); k++) {
+                    store.append(records.get(k));
+                }
+                final AtomicBoolean ok = new AtomicBoolean(true);
+                Thread[] readers = new Thread[3];
+                for (int t = 0; t < readers.length; t++) {
+                    final long seed = t;
+                    readers[t] = new Thread() {
+                        @Override
+                        public void run() {
+                            Random r = new Random(seed);
+                            try {
+                                for (int i = 0; i < 5000; i++) {
+                                    int id = r.nextInt(5) == 0 ? r.nextInt(records.size()) : r.nextInt(100);
+                                    if (!Arrays.equals(records.get(id), store.get(id))) {
+                                        ok.set(false);
+                                    }
+                                }
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                                ok.set(false);
+                            }
+                        }
+                    };
+                    readers[t].start();
+                }
+                for (Thread t : readers) {
+                    t.join();
+                }
+                pass &= ok.get();
+                pass &= cache.hits() > 2 * cache.misses() && cache.evictions() > 0 && cache.weight() <= cache.capacity();
+                try {
+                    store.get(records.size());
+                    pass = false;
+                } catch (IndexOutOfBoundsException expected) {
+                }
+            }
+            try (BlockStore store = new BlockStore(file, 1 << 20)) {
+                pass &= store.size() == records.size();
+                for (int k = 0; k < records.size(); k++) {
+                    pass &= Arrays.equals(records.get(k), store.get(k));
+                }
+                pass &= store.cache().evictions() == 0 && store.cache().misses() == store.blockCount();
+            }
+            // A crash after blocks were written but before the next flush
+            // keeps every flushed record, the unflushed tail is dropped.
+            Path crashed = root.resolve("crashed");
+            try (BlockStore store = new BlockStore(file, 16, 8192, new BlockCache(0))) {
+                int flushed = store.blockCount();
+                for (int k = 0; k < 200; k++) {
+                    store.append(records.get(k));
+                }
+                pass &= store.blockCount() > flushed;
+                Files.copy(file, crashed);
+            }
+            try (BlockStore store = new BlockStore(crashed, 16, 8192, new BlockCache(0))) {
+                pass &= store.size() == records.size();
+                pass &= Arrays.equals(records.get(0), store.get(0))
+                        && Arrays.equals(records.get(records.size() - 1), store.get(records.size() - 1));
+                store.append(records.get(0));
+            }
+            try (BlockStore store = new BlockStore(crashed, 16, 8192, new BlockCache(0))) {
+                pass &= store.size() == records.size() + 1 && Arrays.equals(records.get(0), store.get(records.size()));
+            }
+            // Default blocks fit a small default cache whatever the core count.
+            BlockCache small = new BlockCache(1 << 20);
+            small.put(0, new byte[][]{new byte[BlockStore.DEFAULT_BLOCK_SIZE]});
+            pass &= small.get(0) != null && small.stripes() == 1;
+            pass &= new BlockCache(64 << 20, 64).stripes() == 64;
+            Path other = root.resolve("default");
+            try (BlockStore store = new BlockStore(other, 1 << 20)) {
+                for (byte[] record : records) {
+                    store.append(record);
+                }
+                store.flush();
+                for (int round = 0; round < 2; round++) {
+                    for (int k = 0; k < records.size(); k++) {
+                        pass &= Arrays.equals(records.get(k), store.get(k));
+                    }
+                }
+                pass &= store.cache().misses() == store.blockCount()
+                        && store.cache().hits() == 2L * records.size() - store.blockCount();
+            }
+            // Stores sharing a cache do not see each other's blocks.
+            BlockCache shared = new BlockCache(1 << 20);
+            try (BlockStore a = new BlockStore(root.resolve("a"), 16, 8192, shared);
+                    BlockStore b = new BlockStore(root.resolve("b"), 16, 8192, shared)) {
+                a.append(records.get(0));
+                b.append(records.get(1));
+                a.flush();
+                b.flush();
+                pass &= Arrays.equals(records.get(0), a.get(0)) && Arrays.equals(records.get(1), b.get(0))
+                        && Arrays.equals(records.get(0), a.get(0)) && shared.misses() == 2;
+            }
+            byte[] bytes = Files.readAllBytes(file);
+            Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+            try {
+                new BlockStore(file, 1 << 20).close();
+                pass = false;
+            } catch (IOException expected) {
+            }
+            deleteTree(root);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            pass = false;
+        }
+        System.out.println("block store");
+        System.out.println("----------------------------------------------------");
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    /**
+     * Appends across a save and reload, every prefix of the segments decodes
+     * with both decoders, a repeat of an earlier append is encoded as copies
+     * and the snapshot stays near the window whatever was appended.
+     */
+    public void testAppendable() {
+        boolean pass = true;
+        try {
+            Path root = Files.createTempDirectory("bmdiff");
+            Path snapshot = root.resolve("snapshot");
+            byte[] data = generate(500000, 67);
+            System.arraycopy(data, 100000, data, 300000, 50000);// Repeats an earlier append.
+            int[] cuts = {0, 1, 120000, 250000, 300000, 350000, 500000};
+            int window = 1 << 18;
+            AppendableEncoder encoder = new AppendableEncoder(16, window);
+            ByteArrayOutputStream file = new ByteArrayOutputStream();
+            for (int k = 0; k + 1 < cuts.length; k++) {
+                if (k == 3) {
+                    encoder.save(snapshot);
+                    pass &= Files.size(snapshot) < 3 * window;
+                    encoder = AppendableEncoder.load(snapshot);
+                }
+                long n = encoder.append(data, cuts[k], cuts[k + 1] - cuts[k], file);
+                if (k == 4) {
+                    pass &= n < (cuts[k + 1] - cuts[k]) / 20;
+                }
+                byte[] enc = file.toByteArray();
+                byte[] prefix = Arrays.copyOf(data, cuts[k + 1]);
+                pass &= encoder.encodedLength() == enc.length && encoder.length() == cuts[k + 1] && encoder.segments() == k + 1;
+                pass &= Arrays.equals(prefix, new BMDiffCodec(16).decode(enc));
+                ByteArrayOutputStream dec = new ByteArrayOutputStream();
+                try (BMDiffInputStream in = new BMDiffInputStream(new ByteArrayInputStream(enc))) {
+                    byte[] chunk = new byte[7000];
+                    int r;
+                    while ((r = in.read(chunk)) > 0) {
+                        dec.write(chunk, 0, r);
+                    }
+                }
+                pass &= Arrays.equals(prefix, dec.toByteArray());
+            }
+            // A new encoder on an empty snapshot, and a continuation alone.
+            new AppendableEncoder(BMDiffCodec.AUTO, window).save(snapshot);
+            encoder = AppendableEncoder.load(snapshot);
+            ByteArrayOutputStream first = new ByteArrayOutputStream();
+            ByteArrayOutputStream second = new ByteArrayOutputStream();
+            encoder.append(data, 0, 1000, first);
+            encoder.append(data, 1000, 1000, second);
+            pass &= Arrays.equals(Arrays.copyOf(data, 2000), new BMDiffCodec(16).decode(concat(first.toByteArray(), second.toByteArray())));
+            try (BMDiffInputStream in = new BMDiffInputStream(new ByteArrayInputStream(second.toByteArray()))) {
+                in.read();
+                pass = false;
+            } catch (IOException expected) {
+            }
+            byte[] saved = Files.readAllBytes(snapshot);
+            Files.write(snapshot, Arrays.copyOf(saved, saved.length - 1));
+            try {
+                AppendableEncoder.load(snapshot);
+                pass = false;
+            } catch (IOException expected) {
+            }
+            deleteTree(root);
+        } catch (IOException e) {
+            e.printStackTrace();
+            pass = false;
+        }
+        System.out.println("appendable");
+        System.out.println("----------------------------------------------------");
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    /**
+     * Compares with a scan of the decoded text for patterns from one byte to
+     * longer than a block, periodic ones over runs and repeats, on one shot,
+     * stream and appended encodings. On a highly redundant text only a small
+     * part of the decoded bytes is scanned.
+     */
+    public void testSearch() {
+        boolean pass = true;
+        byte[] text = generate(300000, 71);
+        byte[] runs = new byte[100000];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = (byte) (i < 40000 ? 'a' : i < 70000 ? "abcab".charAt(i % 5) : 'a' + (i / 1000) % 3);
+        }
+        byte[] redundant = new byte[1 << 20];
+        byte[] unit = generate(2000, 73);
+        for (int i = 0; i < redundant.length; i++) {
+            redundant[i] = unit[i % unit.length];
+        }
+        redundant[500000] = 'Q';
+        List<byte[]> patterns = new ArrayList<byte[]>();
+        for (int len : new int[]{1, 2, 5, 9, 33, 100}) {
+            patterns.add(Arrays.copyOfRange(text, 150000, 150000 + len));
+            patterns.add(Arrays.copyOfRange(unit, 100, 100 + len));
+        }
+        patterns.add("aaaa".getBytes(StandardCharsets.UTF_8));
+        patterns.add("abcababcab".getBytes(StandardCharsets.UTF_8));
+        byte[] spanning = Arrays.copyOfRange(redundant, 1990, 2010);// Spans two units.
+        pass &= naiveFind(redundant, spanning).length > 0;
+        patterns.add(spanning);
+        patterns.add(Arrays.copyOfRange(redundant, 499990, 500010));
+        try {
+            for (byte[] data : new byte[][]{text, runs, redundant}) {
+                List<byte[]> encodings = new ArrayList<byte[]>();
+                encodings.add(new BMDiffCodec(8).encode(data));
+                encodings.add(new BMDiffCodec(32).encode(data));
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                try (BMDiffOutputStream out = new BMDiffOutputStream(bos, 16, 1 << 16)) {
+                    out.write(data);
+                }
+                encodings.add(bos.toByteArray());
+                bos = new ByteArrayOutputStream();
+                AppendableEncoder appender = new AppendableEncoder(16, 1 << 18);
+                appender.append(data, 0, data.length / 3, bos);
+                appender.append(data, data.length / 3, data.length - data.length / 3, bos);
+                encodings.add(bos.toByteArray());
+                for (byte[] pattern : patterns) {
+                    long[] expected = naiveFind(data, pattern);
+                    CompressedSearch search = new CompressedSearch(pattern);
+                    for (byte[] enc : encodings) {
+                        long[] found = search.find(enc);
+                        if (!Arrays.equals(expected, found)) {
+                            System.out.println("search " + new String(pattern, StandardCharsets.ISO_8859_1)
+                                    + " found " + found.length + " of " + expected.length);
+                            pass = false;
+                        }
+                        pass &= search.decodedLength() == data.length;
+                    }
+                }
+            }
+            CompressedSearch search = new CompressedSearch(Arrays.copyOfRange(unit, 500, 520));
+            pass &= search.find(new BMDiffCodec(32).encode(redundant)).length == naiveFind(redundant, Arrays.copyOfRange(unit, 500, 520)).length;
+            pass &= search.bytesScanned() < redundant.length / 20;
+            BMDiffCodec codec = new BMDiffCodec(16);
+            try {
+                search.find(codec.encode(text, codec.index(runs)));
+                pass = false;
+            } catch (IllegalArgumentException expected) {
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            pass = false;
+        }
+        System.out.println("search");
+        System.out.println("----------------------------------------------------");
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.out.println("----------------------------------------------------");
+    }
+
+    private static long[] naiveFind(byte[] data, byte[] pattern) {
+        List<Long> found = new ArrayList<Long>();
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            int k = 0;
+            while (k < pattern.length && data[i + k] == pattern[k]) {
+                k++;
+            }
+            if (k == pattern.length) {
+                found.add((long) i);
+            }
+        }
+        long[] offsets = new long[found.size()];
+        for (int k = 0; k < offsets.length; k++) {
+            offsets[k] = found.get(k);
+        }
+        return offsets;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @return bytes allocated by this thread for 1000 round trips after a
+     * warm up or -1 when the JVM can not tell.
+     */
+    private static long allocatedBytes(BufferCodec codec, byte[] input) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        byte[] enc = new byte[codec.maxEncodedLength(input.length)];
+        byte[] dec = new byte[input.length];
+        for (int i = 0; i < 20000; i++) {
+            codec.decode(enc, 0, codec.encode(input, 0, input.length, enc, 0), dec, 0);
+        }
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 1000; i++) {
+            codec.decode(enc, 0, codec.encode(input, 0, input.length, enc, 0), dec, 0);
+        }
+        return threads.getThreadAllocatedBytes(id) - before;
+    }
+
+    /**
+     * A few random inserts, deletes and overwrites.
+     */
+    static byte[] edit(byte[] b, Random random) {
+        for (int e = 0; e < 10; e++) {
+            int at = random.nextInt(b.length);
+            int len = 1 + random.nextInt(50);
+            byte[] next;
+            switch (random.nextInt(3)) {
+                case 0:
+                    next = new byte[b.length + len];
+                    System.arraycopy(b, 0, next, 0, at);
+                    for (int k = 0; k < len; k++) {
+                        next[at + k] = (byte) ('A' + random.nextInt(26));
+                    }
+                    System.arraycopy(b, at, next, at + len, b.length - at);
+                    break;
+                case 1:
+                    len = Math.min(len, b.length - at);
+                    next = new byte[b.length - len];
+                    System.arraycopy(b, 0, next, 0, at);
+                    System.arraycopy(b, at + len, next, at, b.length - at - len);
+                    break;
+                default:
+                    next = b.clone();
+                    for (int k = at; k < Math.min(b.length, at + len); k++) {
+                        next[k] = (byte) ('A' + random.nextInt(26));
+                    }
+            }
+            b = next;
+        }
+        return b;
+    }
+
+    /**
+     * Random bytes with copies of earlier text and runs of a repeated block
+     * sprinkled in.
+     */
+    static byte[] generate(int size, long seed) {
+        Random random = new Random(seed);
+        byte[] b = new byte[size];
+        int i = 0;
+        while (i < size) {
+            int len = Math.min(size - i, 1 + random.nextInt(200));
+            int choice = random.nextInt(4);
+            if (choice == 0 || i < 64) {
+                for (int k = 0; k < len; k++) {
+                    b[i + k] = (byte) ('a' + random.nextInt(26));
+                }
+            } else if (choice == 1) {
+                int period = 1 + random.nextInt(12);
+                for (int k = 0; k < len; k++) {
+                    b[i + k] = k < period ? (byte) random.nextInt(256) : b[i + k - period];
+                }
+            } else {
+                int from = random.nextInt(i);
+                for (int k = 0; k < len; k++) {
+                    b[i + k] = b[from + k];
+                }
+            }
+            i += len;
+        }
+        return b;
+    }
+
     /**
      * FileName without extension.
      * @param fileName 